@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.silverbaytech.blog.imageIoMetadata.BatchProcessor.FileTask;
+
+/**
+ * Command line options shared by the tools that process files and
+ * directories in bulk.
+ *
+ * <pre>
+ * -threads n|virtual   process files on n threads (default 1)
+ * -recursive           descend into subdirectories without limit
+ * -maxDepth n          descend at most n levels (default 1)
+ * -include glob        only process matching files (repeatable)
+ * -exclude glob        skip matching files and directories (repeatable)
+ * -links skip|files|follow
+ *                      symbolic link handling (default files)
+ * -minSize bytes       skip files smaller than this
+ * -maxSize bytes       skip files larger than this
+ * -cache file          reuse results for unchanged files from this cache
+ * -cacheSize mb        size the cache is trimmed to (default 256)
+ * -cacheHash           also compare a hash of each file's contents
+ * -stats               print run statistics and phase latencies to stderr
+ *                      when finished
+ * -metrics file        write phase latencies to file when finished, as
+ *                      JSON for a .json file and otherwise in the
+ *                      Prometheus text format
+ * -streams mapped|default
+ *                      read files through memory mappings and write them
+ *                      through a direct buffer, or use the JDK's streams
+ *                      (default mapped, except on Windows, where a mapped
+ *                      file can't be replaced); -stats reports the calls
+ *                      made
+ * -ranking file        order the readers and writers by a ranking saved
+ *                      by PluginCalibration
+ * -prefetch depth      read up to depth files ahead of parsing them, in the
+ *                      background, and parse them on the -threads threads
+ *                      (at least one) as they arrive
+ * -prefetchBuffers n   number of prefetch buffers (default depth)
+ * -prefetchSize kb     size of each prefetch buffer (default 256); smaller
+ *                      files are read whole, larger ones only this far
+ * </pre>
+ */
+public class BatchOptions
+{
+	private String threads = "1";
+	private final DirectoryWalker walker = new DirectoryWalker();
+	private long minSize = 0;
+	private long maxSize = Long.MAX_VALUE;
+	private File cacheFile;
+	private long cacheSizeMB = 256;
+	private boolean cacheHash;
+	private boolean stats;
+	private File metricsFile;
+	private FileChannelStreams.Mode streams = FileChannelStreams.getDefaultMode();
+	private File rankingFile;
+	private int prefetchDepth;
+	private int prefetchBuffers;
+	private int prefetchSizeKB = PrefetchStage.DEFAULT_BUFFER_SIZE / 1024;
+
+	private static final String[] USAGE = {
+		"Batch options:",
+		"    -threads n|virtual   -recursive   -maxDepth n",
+		"    -include glob   -exclude glob   -links skip|files|follow",
+		"    -minSize bytes   -maxSize bytes",
+		"    -cache file   -cacheSize mb   -cacheHash",
+		"    -stats   -metrics file   -streams mapped|default   -ranking file",
+		"    -prefetch depth   -prefetchBuffers n   -prefetchSize kb" };
+
+	private static String requireValue(String[] args, int i)
+	{
+		if (i + 1 >= args.length)
+		{
+			throw new IllegalArgumentException(args[i] + " requires a value");
+		}
+		return args[i + 1];
+	}
+
+	private static long requireCount(String[] args, int i)
+	{
+		String value = requireValue(args, i);
+		long count;
+		try
+		{
+			count = Long.parseLong(value);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException(args[i] + " requires a number, not " + value);
+		}
+		if (count < 0)
+		{
+			throw new IllegalArgumentException(args[i] + " can't be negative");
+		}
+		return count;
+	}
+
+	private static int requireIntCount(String[] args, int i)
+	{
+		long count = requireCount(args, i);
+		if (count > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException(args[i] + " can be at most " + Integer.MAX_VALUE);
+		}
+		return (int)count;
+	}
+
+	/**
+	 * Reports a command line that was rejected with an
+	 * <code>IllegalArgumentException</code>, either here or by the tool
+	 * itself, followed by the tool's usage and the options this class takes.
+	 */
+	public static void printUsage(IllegalArgumentException e, String... usage)
+	{
+		System.out.println(e.getMessage());
+		for (String line : usage)
+		{
+			System.out.println(line);
+		}
+		for (String line : USAGE)
+		{
+			System.out.println(line);
+		}
+	}
+
+	/**
+	 * Consumes the options this class understands and returns the remaining
+	 * arguments, in order.
+	 */
+	public List<String> parse(String[] args)
+	{
+		List<String> remaining = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-threads"))
+			{
+				threads = requireValue(args, i++);
+			}
+			else if (args[i].equals("-recursive"))
+			{
+				walker.setMaxDepth(Integer.MAX_VALUE);
+			}
+			else if (args[i].equals("-maxDepth"))
+			{
+				walker.setMaxDepth(requireIntCount(args, i++));
+			}
+			else if (args[i].equals("-include"))
+			{
+				walker.addInclude(requireValue(args, i++));
+			}
+			else if (args[i].equals("-exclude"))
+			{
+				walker.addExclude(requireValue(args, i++));
+			}
+			else if (args[i].equals("-links"))
+			{
+				String policy = requireValue(args, i++);
+				try
+				{
+					walker.setLinkPolicy(DirectoryWalker.LinkPolicy.valueOf(policy.toUpperCase(Locale.ENGLISH)));
+				}
+				catch (IllegalArgumentException e)
+				{
+					throw new IllegalArgumentException("-links must be skip, files or follow, not " + policy);
+				}
+			}
+			else if (args[i].equals("-minSize"))
+			{
+				minSize = requireCount(args, i++);
+			}
+			else if (args[i].equals("-maxSize"))
+			{
+				maxSize = requireCount(args, i++);
+			}
+			else if (args[i].equals("-cache"))
+			{
+				cacheFile = new File(requireValue(args, i++));
+			}
+			else if (args[i].equals("-cacheSize"))
+			{
+				cacheSizeMB = requireCount(args, i++);
+			}
+			else if (args[i].equals("-cacheHash"))
+			{
+				cacheHash = true;
+			}
+			else if (args[i].equals("-stats"))
+			{
+				stats = true;
+			}
+			else if (args[i].equals("-metrics"))
+			{
+				metricsFile = new File(requireValue(args, i++));
+			}
+			else if (args[i].equals("-streams"))
+			{
+				String mode = requireValue(args, i++);
+				try
+				{
+					streams = FileChannelStreams.parseMode(mode);
+				}
+				catch (IllegalArgumentException e)
+				{
+					throw new IllegalArgumentException("-streams must be mapped or default, not " + mode);
+				}
+			}
+			else if (args[i].equals("-ranking"))
+			{
+				rankingFile = new File(requireValue(args, i++));
+			}
+			else if (args[i].equals("-prefetch"))
+			{
+				prefetchDepth = requireIntCount(args, i++);
+			}
+			else if (args[i].equals("-prefetchBuffers"))
+			{
+				prefetchBuffers = requireIntCount(args, i++);
+			}
+			else if (args[i].equals("-prefetchSize"))
+			{
+				prefetchSizeKB = requireIntCount(args, i++);
+			}
+			else
+			{
+				remaining.add(args[i]);
+			}
+		}
+		walker.setSizeRange(minSize, maxSize);
+		FileChannelStreams.install(streams);
+		if (rankingFile != null)
+		{
+			try
+			{
+				PluginCalibration.applyRanking(rankingFile);
+			}
+			catch (IOException e)
+			{
+				throw new IllegalArgumentException("Can't read ranking " + rankingFile + ": " + e.getMessage(), e);
+			}
+		}
+		if (stats || metricsFile != null)
+		{
+			PhaseMetrics.enable();
+		}
+		return remaining;
+	}
+
+	/**
+	 * Returns a stream on standard output that only flushes when its buffer
+	 * fills or it's flushed explicitly, unlike <code>System.out</code>, which
+	 * flushes on every line.
+	 */
+	public static PrintStream createStandardOutput()
+	{
+		return new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false);
+	}
+
+	public DirectoryWalker getWalker()
+	{
+		return walker;
+	}
+
+	/**
+	 * @param namespace identifies the tool and any of its own options that
+	 *            affect the output, so cached results are only reused for
+	 *            identical runs. <code>null</code> for tools with side
+	 *            effects, which ignore <code>-cache</code>.
+	 */
+	public BatchProcessor createProcessor(FileTask task, String namespace, PrintStream out)
+		throws IOException
+	{
+		ExecutorService executor = BatchProcessor.createExecutor(threads);
+		if (executor == null && prefetchDepth > 0)
+		{
+			/*
+			 * A single parsing thread, so this one is free to issue reads
+			 * and write output.
+			 */
+			executor = Executors.newSingleThreadExecutor();
+		}
+
+		BatchProcessor batch = new BatchProcessor(task, executor, BatchProcessor.getParallelism(threads), out);
+		if (cacheFile != null && namespace != null)
+		{
+			if (rankingFile != null)
+			{
+				/*
+				 * The ranking decides which plugin reads each file, so a
+				 * different or recalibrated ranking can change the output.
+				 */
+				namespace += " ranking " + rankingFile.getCanonicalPath() + " " + rankingFile.length() + " "
+								+ rankingFile.lastModified();
+			}
+			batch.setCache(new ResultCache(cacheFile, cacheSizeMB * 1024 * 1024, cacheHash), namespace);
+		}
+		if (prefetchDepth > 0)
+		{
+			batch.setPrefetch(new PrefetchStage(prefetchDepth,
+												prefetchBuffers > 0 ? prefetchBuffers : prefetchDepth,
+												prefetchSizeKB * 1024));
+		}
+		return batch;
+	}
+
+	/**
+	 * Finishes the batch, releases the pooled readers and writers and, if
+	 * requested, prints the run statistics and exports the metrics.
+	 */
+	public void finish(BatchProcessor batch) throws IOException
+	{
+		batch.finish();
+
+		ReaderWriterPool pool = ReaderWriterPool.getDefault();
+		pool.dispose();
+
+		PhaseMetrics metrics = PhaseMetrics.get();
+		if (stats)
+		{
+			pool.printStatistics(System.err);
+			if (batch.getBudgetExceededCount() > 0)
+			{
+				System.err.println("Budget exceeded: " + batch.getBudgetExceededCount() + " files");
+			}
+			FileChannelStreams.printStatistics(System.err);
+			metrics.printSummary(System.err);
+		}
+		if (metricsFile != null)
+		{
+			metrics.export(metricsFile);
+		}
+	}
+}
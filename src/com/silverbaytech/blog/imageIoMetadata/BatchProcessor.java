@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a per-file task over a series of files, optionally in parallel.
+ *
+ * Each file's output is captured separately and written out in the order
+ * the files were submitted, so a parallel run produces exactly the same
+ * report as a serial one. A failure in one file is reported in that file's
+ * output and doesn't stop the rest of the batch.
+ *
+ * If a {@link ResultCache} is attached, files whose output is already in the
+ * cache are not opened at all; their stored output is written instead.
+ *
+ * With a {@link PrefetchStage} the batch becomes a pipeline: files are read
+ * in the background, parsed on the executor once they've been read, and
+ * their output written in order by the thread submitting them.
+ */
+public class BatchProcessor
+{
+	/**
+	 * The work to be done for a single file. Implementations must be safe to
+	 * call from several threads at once.
+	 */
+	public interface FileTask
+	{
+		void process(File file, PrintStream out) throws Exception;
+	}
+
+	/**
+	 * Implemented by a task whose output for some files depends on more than
+	 * the file itself, which the cache can't tell has changed. Those files
+	 * are always processed.
+	 */
+	public interface CachePolicy
+	{
+		boolean isCacheable(File file);
+	}
+
+	/**
+	 * Thrown by a task that has already written its own report of the
+	 * failure, so the batch should count it but not describe it again.
+	 */
+	public static class ReportedException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		public ReportedException(Throwable cause)
+		{
+			super(cause);
+		}
+	}
+
+	/**
+	 * Number of completed-but-unprinted files allowed per thread before
+	 * <code>submit</code> waits for the oldest one.
+	 */
+	private static final int PENDING_PER_THREAD = 4;
+
+	private final FileTask task;
+	private final PrintStream out;
+	private final ExecutorService executor;
+	private int maxPending;
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicInteger budgetsExceeded = new AtomicInteger();
+	private PrintStream messages;
+	private ResultCache cache;
+	private String cacheNamespace;
+	private PrefetchStage prefetch;
+
+	/**
+	 * @param executor executor to run the tasks on, which is shut down by
+	 *            {@link #finish()}; <code>null</code> for serial processing.
+	 * @param parallelism expected number of concurrently running tasks,
+	 *            used to size the reordering window.
+	 */
+	public BatchProcessor(FileTask task, ExecutorService executor, int parallelism, PrintStream out)
+	{
+		this.task = task;
+		this.out = out;
+		this.executor = executor;
+		this.maxPending = Math.max(1, parallelism) * PENDING_PER_THREAD;
+	}
+
+	/**
+	 * Creates an executor from a <code>-threads</code> argument: either a
+	 * thread count, or <code>virtual</code> for one virtual thread per file.
+	 * Returns <code>null</code> for serial processing.
+	 */
+	public static ExecutorService createExecutor(String threads)
+	{
+		if (threads.equals("virtual"))
+		{
+			try
+			{
+				return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+					.invoke(null);
+			}
+			catch (ReflectiveOperationException e)
+			{
+				throw new IllegalArgumentException("Virtual threads require Java 21 or later");
+			}
+		}
+
+		int count;
+		try
+		{
+			count = Integer.parseInt(threads);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Thread count must be a number or virtual, not " + threads);
+		}
+		if (count < 1)
+		{
+			throw new IllegalArgumentException("Thread count must be at least 1");
+		}
+		return count > 1 ? Executors.newFixedThreadPool(count) : null;
+	}
+
+	/**
+	 * Returns the reordering window size appropriate for a
+	 * <code>-threads</code> argument.
+	 */
+	public static int getParallelism(String threads)
+	{
+		if (threads.equals("virtual"))
+		{
+			return 64;
+		}
+		return Integer.parseInt(threads);
+	}
+
+	/**
+	 * Sends the text passed to {@link #println(String)} to a separate stream,
+	 * immediately, instead of placing it among the file output.
+	 */
+	public void setMessageStream(PrintStream messages)
+	{
+		this.messages = messages;
+	}
+
+	/**
+	 * Attaches a cache of previous results. <code>namespace</code> must
+	 * identify both the tool and any options that affect its output.
+	 */
+	public void setCache(ResultCache cache, String namespace)
+	{
+		this.cache = cache;
+		this.cacheNamespace = namespace;
+	}
+
+	/**
+	 * Reads files ahead of parsing them. Requires an executor.
+	 */
+	public void setPrefetch(PrefetchStage prefetch)
+	{
+		if (executor == null)
+		{
+			throw new IllegalStateException("Prefetching requires an executor");
+		}
+		this.prefetch = prefetch;
+		maxPending = Math.max(maxPending, prefetch.getDepth());
+	}
+
+	private void countFailure(Throwable e)
+	{
+		if (e instanceof ReadBudget.BudgetExceededException)
+		{
+			budgetsExceeded.incrementAndGet();
+		}
+		else
+		{
+			failures.incrementAndGet();
+		}
+	}
+
+	private boolean runUncachedTask(File file, PrintStream target)
+	{
+		try
+		{
+			task.process(file, target);
+			return true;
+		}
+		catch (ReportedException e)
+		{
+			countFailure(e.getCause());
+			return false;
+		}
+		catch (ReadBudget.BudgetExceededException e)
+		{
+			countFailure(e);
+			target.println("    Budget exceeded processing " + file.getName() + ": " + e.getMessage());
+			return false;
+		}
+		catch (Exception e)
+		{
+			countFailure(e);
+			target.println("    Error processing " + file.getName() + ": " + e);
+			return false;
+		}
+	}
+
+	private void runTask(File file, PrintStream target)
+	{
+		if (cache == null || (task instanceof CachePolicy && !((CachePolicy)task).isCacheable(file)))
+		{
+			runUncachedTask(file, target);
+			return;
+		}
+
+		ResultCache.Key key;
+		try
+		{
+			key = cache.getKey(cacheNamespace, file);
+			byte[] cached = cache.get(key);
+			if (cached != null)
+			{
+				long start = PhaseMetrics.start();
+				target.write(cached, 0, cached.length);
+				PhaseMetrics.stop(PhaseMetrics.Phase.WRITE, start);
+				return;
+			}
+		}
+		catch (IOException e)
+		{
+			target.println("    Error reading cache for " + file.getName() + ": " + e);
+			key = null;
+		}
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		PrintStream stream = new PrintStream(buffer);
+		boolean succeeded = runUncachedTask(file, stream);
+		stream.flush();
+
+		byte[] text = buffer.toByteArray();
+		long start = PhaseMetrics.start();
+		target.write(text, 0, text.length);
+		PhaseMetrics.stop(PhaseMetrics.Phase.WRITE, start);
+
+		if (succeeded && key != null)
+		{
+			try
+			{
+				cache.put(key, text);
+			}
+			catch (IOException e)
+			{
+				target.println("    Error updating cache for " + file.getName() + ": " + e);
+			}
+		}
+	}
+
+	private void write(Future<byte[]> future)
+	{
+		try
+		{
+			byte[] text = future.get();
+			long start = PhaseMetrics.start();
+			out.write(text, 0, text.length);
+			PhaseMetrics.stop(PhaseMetrics.Phase.WRITE, start);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for results", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException("Unexpected failure in batch task", e.getCause());
+		}
+	}
+
+	private void drain(boolean all)
+	{
+		while (!pending.isEmpty())
+		{
+			Future<byte[]> head = pending.peekFirst();
+			if (!all && !head.isDone() && pending.size() < maxPending)
+			{
+				return;
+			}
+			write(pending.removeFirst());
+		}
+	}
+
+	/**
+	 * Queues a line of text that is not associated with any file, keeping
+	 * it in order with the file output around it.
+	 */
+	public void println(final String text)
+	{
+		if (messages != null)
+		{
+			messages.println(text);
+			return;
+		}
+
+		if (executor == null)
+		{
+			out.println(text);
+			return;
+		}
+
+		FutureTask<byte[]> done = new FutureTask<byte[]>(new Callable<byte[]>()
+		{
+			@Override
+			public byte[] call()
+			{
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				PrintStream stream = new PrintStream(buffer);
+				stream.println(text);
+				stream.flush();
+				return buffer.toByteArray();
+			}
+		});
+		done.run();
+		pending.addLast(done);
+		drain(false);
+	}
+
+	/**
+	 * Processes <code>file</code>, either immediately or on a worker thread.
+	 * Output for earlier files is written as soon as it's available.
+	 */
+	public void submit(final File file)
+	{
+		if (executor == null)
+		{
+			runTask(file, out);
+			return;
+		}
+
+		if (prefetch != null)
+		{
+			submitPrefetched(file);
+			return;
+		}
+
+		pending.addLast(executor.submit(new Callable<byte[]>()
+		{
+			@Override
+			public byte[] call()
+			{
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				PrintStream stream = new PrintStream(buffer);
+				runTask(file, stream);
+				stream.flush();
+				return buffer.toByteArray();
+			}
+		}));
+		drain(false);
+	}
+
+	/**
+	 * Reserves a place in the pipeline for <code>file</code>, waiting if
+	 * it's full, and starts reading it. It's parsed on the executor once it
+	 * has been read.
+	 */
+	private void submitPrefetched(final File file)
+	{
+		final PrefetchStage.Prefetched prefetched;
+		try
+		{
+			prefetched = prefetch.acquire(file);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting to prefetch " + file, e);
+		}
+
+		FutureTask<byte[]> parse = new FutureTask<byte[]>(new Callable<byte[]>()
+		{
+			@Override
+			public byte[] call()
+			{
+				prefetch.started(prefetched);
+				FileChannelStreams.setPrefetched(prefetched);
+				try
+				{
+					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					PrintStream stream = new PrintStream(buffer);
+					runTask(file, stream);
+					stream.flush();
+					return buffer.toByteArray();
+				}
+				finally
+				{
+					FileChannelStreams.setPrefetched(null);
+					prefetch.release(prefetched);
+				}
+			}
+		});
+		pending.addLast(parse);
+		prefetch.read(prefetched, executor, parse);
+		drain(false);
+	}
+
+	/**
+	 * Waits for all submitted files, writes their output and releases the
+	 * worker threads and cache.
+	 */
+	public void finish() throws IOException
+	{
+		drain(true);
+		if (executor != null)
+		{
+			executor.shutdown();
+		}
+		long start = PhaseMetrics.start();
+		out.flush();
+		PhaseMetrics.stop(PhaseMetrics.Phase.WRITE, start);
+		if (cache != null)
+		{
+			cache.close();
+		}
+		if (prefetch != null)
+		{
+			prefetch.publishMetrics();
+		}
+		PhaseMetrics.setGauge("budget_exceeded_files", budgetsExceeded.get());
+	}
+
+	/**
+	 * Returns the number of files whose task threw an exception, other than
+	 * those that went over their {@link ReadBudget}.
+	 */
+	public int getFailureCount()
+	{
+		return failures.get();
+	}
+
+	/**
+	 * Returns the number of files abandoned for going over their
+	 * {@link ReadBudget}.
+	 */
+	public int getBudgetExceededCount()
+	{
+		return budgetsExceeded.get();
+	}
+}
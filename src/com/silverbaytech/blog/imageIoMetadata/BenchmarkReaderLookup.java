@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Compares the per-file cost of the ways of finding an
+ * <code>ImageReader</code> for a file: by file extension, by
+ * <code>canDecodeInput</code> probing, and by {@link FormatSniffer}.
+ */
+public class BenchmarkReaderLookup
+{
+	private static final NumberFormat FORMAT = new DecimalFormat("#,##0");
+
+	private static final int WARMUP_ITERATIONS = 200;
+	private static final int ITERATIONS = 2000;
+
+	private interface Lookup
+	{
+		ImageReader find(File file) throws IOException;
+	}
+
+	private static String getFileExtension(File file)
+	{
+		String fileName = file.getName();
+		int lastDot = fileName.lastIndexOf('.');
+		return fileName.substring(lastDot + 1);
+	}
+
+	private static final Lookup BY_EXTENSION = new Lookup()
+	{
+		@Override
+		public ImageReader find(File file)
+		{
+			Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(getFileExtension(file));
+			return readers.hasNext() ? readers.next() : null;
+		}
+	};
+
+	private static final Lookup BY_PROBING = new Lookup()
+	{
+		@Override
+		public ImageReader find(File file) throws IOException
+		{
+			ImageInputStream stream = ImageIO.createImageInputStream(file);
+			try
+			{
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+				return readers.hasNext() ? readers.next() : null;
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+	};
+
+	private static final Lookup BY_SIGNATURE = new Lookup()
+	{
+		@Override
+		public ImageReader find(File file) throws IOException
+		{
+			List<ImageReaderSpi> spis = FormatSniffer.findReaderSpis(file);
+			return spis.isEmpty() ? null : spis.get(0).createReaderInstance();
+		}
+	};
+
+	private static long run(Lookup lookup, List<File> files, int iterations) throws IOException
+	{
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+		{
+			for (File file : files)
+			{
+				ImageReader reader = lookup.find(file);
+				if (reader != null)
+				{
+					reader.dispose();
+				}
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void benchmark(String title, Lookup lookup, List<File> files) throws IOException
+	{
+		run(lookup, files, WARMUP_ITERATIONS);
+		long elapsed = run(lookup, files, ITERATIONS);
+
+		System.out.print(title);
+		System.out.print(FORMAT.format(elapsed / ((long)ITERATIONS * files.size())));
+		System.out.println(" ns per file");
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length == 0)
+		{
+			System.out.println("Usage: BenchmarkReaderLookup fileOrDirectory [...fileOrDirectory]");
+			return;
+		}
+
+		try
+		{
+			List<File> files = new ArrayList<File>();
+			for (String arg : args)
+			{
+				File fileOrDirectory = new File(arg);
+				if (fileOrDirectory.isFile())
+				{
+					files.add(fileOrDirectory);
+				}
+				else
+				{
+					for (File file : fileOrDirectory.listFiles())
+					{
+						if (file.isFile())
+						{
+							files.add(file);
+						}
+					}
+				}
+			}
+
+			System.out.println("Looking up readers for " + files.size() + " files, " + ITERATIONS + " times");
+			benchmark("    By extension:  ", BY_EXTENSION, files);
+			benchmark("    By probing:    ", BY_PROBING, files);
+			benchmark("    By signature:  ", BY_SIGNATURE, files);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
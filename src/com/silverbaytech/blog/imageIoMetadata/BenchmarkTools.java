@@ -0,0 +1,466 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.spi.ImageReaderSpi;
+
+/**
+ * Measures the per-file operations behind the tools in this package on each
+ * input file: header probing, reading resolution through ImageIO, dumping
+ * metadata, and changing resolution by re-encoding or by patching.
+ *
+ * Every (operation, file) pair is warmed up and then run repeatedly for a
+ * fixed time, reporting throughput, average latency and the bytes allocated
+ * per operation. Besides the files given, large images are generated in each
+ * format so the costs that scale with image size show up.
+ *
+ * The <code>-json</code> output records the JVM and the reader used for each
+ * file, so runs with and without the JAI jars on the classpath can be diffed.
+ */
+public class BenchmarkTools
+{
+	private static final NumberFormat RATE_FORMAT = new DecimalFormat("#,##0.0");
+	private static final NumberFormat BYTES_FORMAT = new DecimalFormat("#,##0");
+
+	private static final long DEFAULT_WARMUP_MILLIS = 1000;
+	private static final long DEFAULT_MEASURE_MILLIS = 3000;
+	private static final String DEFAULT_LARGE_SIZE = "3000x2000";
+	private static final String[] LARGE_FORMATS = { "png", "jpeg", "gif", "bmp", "tif" };
+	private static final double NEW_RESOLUTION_DPI = 300;
+
+	private static final PrintStream DISCARD = new PrintStream(new OutputStream()
+	{
+		@Override
+		public void write(int b)
+		{
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+		}
+	});
+
+	private static File outputDirectory;
+
+	private interface Operation
+	{
+		void run(File file) throws Exception;
+	}
+
+	private static File getOutputFile(File file)
+	{
+		String fileName = file.getName();
+		return new File(outputDirectory, "out" + fileName.substring(fileName.lastIndexOf('.')));
+	}
+
+	private static final Map<String, Operation> OPERATIONS = new LinkedHashMap<String, Operation>();
+
+	static
+	{
+		OPERATIONS.put("probe", new Operation()
+		{
+			@Override
+			public void run(File file) throws IOException
+			{
+				ResolutionProbe.probe(file);
+			}
+		});
+		OPERATIONS.put("resolution", new Operation()
+		{
+			@Override
+			public void run(File file) throws IOException
+			{
+				GetImageResolution.readResolution(file);
+			}
+		});
+		OPERATIONS.put("dump", new Operation()
+		{
+			@Override
+			public void run(File file) throws Exception
+			{
+				DumpImageMetadata.processFile(DISCARD, file);
+			}
+		});
+		OPERATIONS.put("change", new Operation()
+		{
+			@Override
+			public void run(File file) throws IOException
+			{
+				ChangeImageResolution.changeResolution(file, NEW_RESOLUTION_DPI, getOutputFile(file), false);
+			}
+		});
+		OPERATIONS.put("patch", new Operation()
+		{
+			@Override
+			public void run(File file) throws IOException
+			{
+				ChangeImageResolution.changeResolution(file, NEW_RESOLUTION_DPI, getOutputFile(file), true);
+			}
+		});
+	}
+
+	private static class Result
+	{
+		String operation;
+		File file;
+		String format;
+		String reader;
+		long operations;
+		long elapsedNanos;
+		long allocatedBytes;
+
+		double getOperationsPerSecond()
+		{
+			return operations * 1e9 / elapsedNanos;
+		}
+
+		double getAverageMicros()
+		{
+			return elapsedNanos / 1e3 / operations;
+		}
+
+		long getBytesPerOperation()
+		{
+			return allocatedBytes < 0 ? -1 : allocatedBytes / operations;
+		}
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the calling thread, or -1 if the
+	 * JVM can't report it.
+	 */
+	private static long getAllocatedBytes()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+		{
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread()
+				.getId());
+		}
+		return -1;
+	}
+
+	private static Result measure(String name, Operation operation, File file, long warmupMillis,
+									long measureMillis) throws Exception
+	{
+		long deadline = System.nanoTime() + warmupMillis * 1000000L;
+		do
+		{
+			operation.run(file);
+		}
+		while (System.nanoTime() < deadline);
+
+		Result result = new Result();
+		result.operation = name;
+		result.file = file;
+
+		long allocatedBefore = getAllocatedBytes();
+		long start = System.nanoTime();
+		long measureNanos = measureMillis * 1000000L;
+		do
+		{
+			operation.run(file);
+			result.operations++;
+			result.elapsedNanos = System.nanoTime() - start;
+		}
+		while (result.elapsedNanos < measureNanos);
+
+		long allocatedAfter = getAllocatedBytes();
+		result.allocatedBytes = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+		return result;
+	}
+
+	private static BufferedImage createLargeImage(String format, int width, int height)
+	{
+		/*
+		 * GIF needs a palette image; everything else gets 24-bit color.
+		 */
+		int type = format.equals("gif") ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_3BYTE_BGR;
+		BufferedImage image = new BufferedImage(width, height, type);
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				int rgb = ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | ((x ^ y) & 0xFF);
+				image.setRGB(x, y, rgb);
+			}
+		}
+		return image;
+	}
+
+	private static void addLargeFiles(List<File> files, String size, File directory) throws IOException
+	{
+		int separator = size.indexOf('x');
+		int width = Integer.parseInt(size.substring(0, separator));
+		int height = Integer.parseInt(size.substring(separator + 1));
+
+		for (String format : LARGE_FORMATS)
+		{
+			File file = new File(directory, "large-" + size + "." + format);
+			if (ImageIO.write(createLargeImage(format, width, height), format, file))
+			{
+				files.add(file);
+			}
+			else
+			{
+				System.out.println("No writer for " + format + ", skipping its large image");
+			}
+		}
+	}
+
+	private static void addFiles(List<File> files, File fileOrDirectory) throws IOException
+	{
+		if (fileOrDirectory.isFile())
+		{
+			files.add(fileOrDirectory);
+			return;
+		}
+
+		File[] children = fileOrDirectory.listFiles();
+		if (children == null)
+		{
+			System.out.println("Can't read " + fileOrDirectory);
+			return;
+		}
+		Arrays.sort(children);
+		for (File file : children)
+		{
+			if (file.isFile() && FormatSniffer.sniffFormat(file) != null)
+			{
+				files.add(file);
+			}
+		}
+	}
+
+	private static void describe(Result result) throws IOException
+	{
+		result.format = FormatSniffer.sniffFormat(result.file);
+		List<ImageReaderSpi> spis = FormatSniffer.findReaderSpis(result.file);
+		result.reader = spis.isEmpty() ? null : spis.get(0).getPluginClassName();
+	}
+
+	private static void print(Result result)
+	{
+		StringBuilder line = new StringBuilder("    ");
+		line.append(String.format("%-12s%-24s", result.operation, result.file.getName()));
+		line.append(String.format("%14s ops/s", RATE_FORMAT.format(result.getOperationsPerSecond())));
+		line.append(String.format("%14s us/op", RATE_FORMAT.format(result.getAverageMicros())));
+		long bytes = result.getBytesPerOperation();
+		line.append(String.format("%16s B/op", bytes < 0 ? "n/a" : BYTES_FORMAT.format(bytes)));
+		System.out.println(line);
+	}
+
+	private static void appendField(StringBuilder json, String name, String value)
+	{
+		JsonMetadataSerializer.appendString(json, name);
+		json.append(':');
+		if (value == null)
+		{
+			json.append("null");
+		}
+		else
+		{
+			JsonMetadataSerializer.appendString(json, value);
+		}
+	}
+
+	private static void writeJson(File jsonFile, List<Result> results, long warmupMillis, long measureMillis)
+		throws IOException
+	{
+		StringBuilder json = new StringBuilder();
+		json.append('{');
+		appendField(json, "javaVersion", System.getProperty("java.version"));
+		json.append(',');
+		appendField(json, "javaVendor", System.getProperty("java.vendor"));
+		json.append(",\"warmupMillis\":").append(warmupMillis);
+		json.append(",\"measureMillis\":").append(measureMillis);
+		json.append(",\"results\":[");
+		for (int i = 0; i < results.size(); i++)
+		{
+			Result result = results.get(i);
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append('{');
+			appendField(json, "operation", result.operation);
+			json.append(',');
+			appendField(json, "file", result.file.getName());
+			json.append(',');
+			appendField(json, "format", result.format);
+			json.append(',');
+			appendField(json, "reader", result.reader);
+			json.append(",\"fileSize\":").append(result.file.length());
+			json.append(",\"operations\":").append(result.operations);
+			json.append(",\"opsPerSecond\":").append(result.getOperationsPerSecond());
+			json.append(",\"averageMicros\":").append(result.getAverageMicros());
+			long bytes = result.getBytesPerOperation();
+			json.append(",\"bytesPerOp\":").append(bytes < 0 ? "null" : Long.toString(bytes));
+			json.append('}');
+		}
+		json.append("\n]}\n");
+
+		Writer writer = new OutputStreamWriter(Files.newOutputStream(jsonFile.toPath()), StandardCharsets.UTF_8);
+		try
+		{
+			writer.append(json);
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	private static void deleteAll(File directory)
+	{
+		File[] children = directory.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				child.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	public static void main(String[] args)
+	{
+		long warmupMillis = DEFAULT_WARMUP_MILLIS;
+		long measureMillis = DEFAULT_MEASURE_MILLIS;
+		String largeSize = DEFAULT_LARGE_SIZE;
+		File jsonFile = null;
+		List<String> operations = new ArrayList<String>(OPERATIONS.keySet());
+		List<String> inputs = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.startsWith("-") && i + 1 >= args.length)
+			{
+				inputs.clear();
+				break;
+			}
+			if (arg.equals("-warmup"))
+			{
+				warmupMillis = Long.parseLong(args[++i]);
+			}
+			else if (arg.equals("-time"))
+			{
+				measureMillis = Long.parseLong(args[++i]);
+			}
+			else if (arg.equals("-large"))
+			{
+				largeSize = args[++i];
+			}
+			else if (arg.equals("-json"))
+			{
+				jsonFile = new File(args[++i]);
+			}
+			else if (arg.equals("-operations"))
+			{
+				operations = Arrays.asList(args[++i].split(","));
+				if (!OPERATIONS.keySet().containsAll(operations))
+				{
+					inputs.clear();
+					break;
+				}
+			}
+			else
+			{
+				inputs.add(arg);
+			}
+		}
+
+		if (inputs.isEmpty())
+		{
+			System.out.println("Usage: BenchmarkTools [-warmup ms] [-time ms] [-large WIDTHxHEIGHT|none]");
+			System.out.println("           [-operations " + OPERATIONS.keySet().toString().replace(", ", ",")
+								+ "] [-json file] fileOrDirectory [...fileOrDirectory]");
+			return;
+		}
+
+		try
+		{
+			outputDirectory = Files.createTempDirectory("benchmark").toFile();
+			try
+			{
+				List<File> files = new ArrayList<File>();
+				for (String input : inputs)
+				{
+					addFiles(files, new File(input));
+				}
+				if (!largeSize.equals("none"))
+				{
+					addLargeFiles(files, largeSize, outputDirectory);
+				}
+
+				List<Result> results = new ArrayList<Result>();
+				for (String name : operations)
+				{
+					Operation operation = OPERATIONS.get(name);
+					for (File file : files)
+					{
+						try
+						{
+							Result result = measure(name, operation, file, warmupMillis, measureMillis);
+							describe(result);
+							print(result);
+							results.add(result);
+						}
+						catch (Exception e)
+						{
+							System.out.println("    " + name + " failed on " + file.getName() + ": " + e);
+						}
+					}
+				}
+
+				if (jsonFile != null)
+				{
+					writeJson(jsonFile, results, warmupMillis, measureMillis);
+				}
+			}
+			finally
+			{
+				ReaderWriterPool.getDefault().dispose();
+				deleteAll(outputDirectory);
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
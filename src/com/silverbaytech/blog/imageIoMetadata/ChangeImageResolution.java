@@ -16,10 +16,26 @@
 
 package com.silverbaytech.blog.imageIoMetadata;
 
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -27,14 +43,65 @@ import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataFormatImpl;
 import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 
+import com.silverbaytech.blog.imageIoMetadata.BatchProcessor.FileTask;
+
 public class ChangeImageResolution
 {
+	/**
+	 * Default number of files made durable together in batch mode.
+	 */
+	private static final int DEFAULT_SYNC_EVERY = 64;
+
+	/**
+	 * Marks the temporary files batch mode writes next to their targets, so
+	 * a directory walk that comes across them leaves them alone.
+	 */
+	private static final String TEMP_MARKER = ".dpi-tmp";
+
+	/**
+	 * Fraction of the maximum heap an image may take to be decoded whole
+	 * when there's no <code>-maxHeapMB</code>. The writer needs room too.
+	 */
+	private static final int HEAP_SHARE = 2;
+
+	/**
+	 * Fraction of the memory limit a single strip may use. The strip, the
+	 * writer's copy of it, and the reader's and writer's own buffers all
+	 * have to fit.
+	 */
+	private static final int STRIP_SHARE = 4;
+
+	/**
+	 * Images larger than this when decoded are re-encoded a strip at a
+	 * time, if their reader allows it. Applies to each file separately, so
+	 * with several threads the total is this times the thread count. Zero,
+	 * unless <code>-maxHeapMB</code> is given, for a share of the heap.
+	 */
+	private static long maxHeapBytes;
+
+	/**
+	 * Returns <code>true</code> if an image of <code>bytes</code> can be
+	 * decoded whole within the heap the JVM actually has.
+	 */
+	private static boolean fitsHeap(long bytes)
+	{
+		return bytes <= Runtime.getRuntime().maxMemory() / HEAP_SHARE;
+	}
+
+	private static long getHeapLimit()
+	{
+		return maxHeapBytes > 0 ? maxHeapBytes : Runtime.getRuntime().maxMemory() / HEAP_SHARE;
+	}
+
 	private static String getFileExtension(File file)
 	{
 		String fileName = file.getName();
@@ -42,31 +109,6 @@ public class ChangeImageResolution
 		return fileName.substring(lastDot + 1);
 	}
 
-	private static BufferedImage readImage(File file) throws IOException
-	{
-		ImageInputStream stream = null;
-		BufferedImage image = null;
-		try
-		{
-			stream = ImageIO.createImageInputStream(file);
-			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
-			if (readers.hasNext())
-			{
-				ImageReader reader = readers.next();
-				reader.setInput(stream);
-				image = reader.read(0);
-			}
-		}
-		finally
-		{
-			if (stream != null)
-			{
-				stream.close();
-			}
-		}
-
-		return image;
-	}
 	
 	private static IIOMetadataNode createResolutionMetadata(double resolutionDPI)
 	{
@@ -88,37 +130,278 @@ public class ChangeImageResolution
 		return root;
 	}
 	
-	private static void writeImage(File outputFile, BufferedImage image, IIOMetadataNode newMetadata) throws IOException
+	/**
+	 * Cache key for the writer and metadata template used for a kind of
+	 * output.
+	 */
+	private static class TemplateKey
 	{
-		String extension = getFileExtension(outputFile);
-		ImageTypeSpecifier imageType = ImageTypeSpecifier.createFromBufferedImageType(image.getType());
-		
-		ImageOutputStream stream = null;
-		try
+		final String suffix;
+		final ImageTypeSpecifier imageType;
+		final double resolutionDPI;
+
+		TemplateKey(String suffix, ImageTypeSpecifier imageType, double resolutionDPI)
+		{
+			this.suffix = suffix;
+			this.imageType = imageType;
+			this.resolutionDPI = resolutionDPI;
+		}
+
+		@Override
+		public boolean equals(Object obj)
 		{
-			Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(extension);
-			while(writers.hasNext())
+			if (!(obj instanceof TemplateKey))
 			{
-				ImageWriter writer = writers.next();
-				ImageWriteParam writeParam = writer.getDefaultWriteParam();
-				IIOMetadata imageMetadata = writer.getDefaultImageMetadata(imageType, writeParam);
-				if (!imageMetadata.isStandardMetadataFormatSupported())
+				return false;
+			}
+			TemplateKey other = (TemplateKey)obj;
+			return suffix.equals(other.suffix) && imageType.equals(other.imageType)
+					&& Double.compare(resolutionDPI, other.resolutionDPI) == 0;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (suffix.hashCode() * 31 + imageType.hashCode()) * 31 + Double.valueOf(resolutionDPI).hashCode();
+		}
+	}
+
+	/**
+	 * The writer chosen for a kind of output, and its default image metadata
+	 * with the new resolution already merged in. The template itself is never
+	 * handed to a writer; each image gets a clone.
+	 */
+	private static class WriteTemplate
+	{
+		final ImageWriterSpi spi;
+		final IIOMetadata metadata;
+		final IIOMetadataNode resolution;
+		final Method clone;
+
+		WriteTemplate(ImageWriterSpi spi, IIOMetadata metadata, IIOMetadataNode resolution)
+		{
+			this.spi = spi;
+			this.metadata = metadata;
+			this.resolution = resolution;
+			this.clone = getCloneMethod(metadata);
+		}
+
+		/**
+		 * Returns the metadata's public <code>clone()</code>, or
+		 * <code>null</code> if it has none or it can't be called from here,
+		 * as with plugins in modules that don't export their packages.
+		 */
+		private static Method getCloneMethod(IIOMetadata metadata)
+		{
+			if (!(metadata instanceof Cloneable))
+			{
+				return null;
+			}
+			try
+			{
+				Method clone = metadata.getClass().getMethod("clone");
+				clone.invoke(metadata);
+				return clone;
+			}
+			catch (ReflectiveOperationException e)
+			{
+				return null;
+			}
+			catch (RuntimeException e)
+			{
+				return null;
+			}
+		}
+
+		/**
+		 * Returns metadata for one image. Plugins whose metadata can't be
+		 * cloned get the template rebuilt from scratch.
+		 */
+		IIOMetadata newMetadata(ImageWriter writer, ImageTypeSpecifier imageType)
+		{
+			if (clone != null)
+			{
+				try
+				{
+					return (IIOMetadata)clone.invoke(metadata);
+				}
+				catch (ReflectiveOperationException e)
 				{
-					continue;
 				}
-				if (imageMetadata.isReadOnly())
+			}
+			return createMetadata(writer, imageType, resolution);
+		}
+	}
+
+	private static final ConcurrentMap<TemplateKey, WriteTemplate> TEMPLATES = new ConcurrentHashMap<TemplateKey, WriteTemplate>();
+
+	/**
+	 * Returns the writer's default metadata with <code>resolution</code>
+	 * merged in, or <code>null</code> if the writer can't take it.
+	 */
+	private static IIOMetadata createMetadata(ImageWriter writer, ImageTypeSpecifier imageType,
+												IIOMetadataNode resolution)
+	{
+		IIOMetadata imageMetadata = writer.getDefaultImageMetadata(imageType, writer.getDefaultWriteParam());
+		if (imageMetadata == null || !imageMetadata.isStandardMetadataFormatSupported()
+			|| imageMetadata.isReadOnly())
+		{
+			return null;
+		}
+
+		try
+		{
+			imageMetadata.mergeTree(IIOMetadataFormatImpl.standardMetadataFormatName, resolution);
+		}
+		catch (IIOInvalidTreeException e)
+		{
+			return null;
+		}
+		catch (RuntimeException e)
+		{
+			/*
+			 * Some plugins fail inside mergeTree for image types they
+			 * otherwise handle; try the next writer.
+			 */
+			return null;
+		}
+		return imageMetadata;
+	}
+
+	/**
+	 * Picks the first writer, in registry order, that can encode the image
+	 * type and take the new resolution. The choice and its metadata template
+	 * are made once per (suffix, image type, resolution).
+	 */
+	private static WriteTemplate getTemplate(String suffix, ImageTypeSpecifier imageType, double resolutionDPI)
+		throws IOException
+	{
+		TemplateKey key = new TemplateKey(suffix, imageType, resolutionDPI);
+		WriteTemplate template = TEMPLATES.get(key);
+		if (template != null)
+		{
+			return template;
+		}
+
+		IIOMetadataNode resolution = createResolutionMetadata(resolutionDPI);
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(suffix);
+		while (writers.hasNext() && template == null)
+		{
+			ImageWriter writer = writers.next();
+			try
+			{
+				ImageWriterSpi spi = writer.getOriginatingProvider();
+				if (spi.canEncodeImage(imageType))
 				{
-					continue;
+					IIOMetadata metadata = createMetadata(writer, imageType, resolution);
+					if (metadata != null)
+					{
+						template = new WriteTemplate(spi, metadata, resolution);
+					}
 				}
-				
-				imageMetadata.mergeTree(IIOMetadataFormatImpl.standardMetadataFormatName, newMetadata);
-				
-				IIOImage imageWithMetadata = new IIOImage(image, null, imageMetadata);
-				
-				stream = ImageIO.createImageOutputStream(outputFile);
-				writer.setOutput(stream);
-				writer.write(null, imageWithMetadata, writeParam);
 			}
+			finally
+			{
+				writer.dispose();
+			}
+		}
+
+		if (template == null)
+		{
+			throw new IOException("No writer can set the resolution of " + suffix + " files");
+		}
+
+		WriteTemplate existing = TEMPLATES.putIfAbsent(key, template);
+		return existing != null ? existing : template;
+	}
+
+	private static ImageOutputStream createOutput(File outputFile) throws IOException
+	{
+		/*
+		 * The stream doesn't truncate an existing file.
+		 */
+		Files.deleteIfExists(outputFile.toPath());
+		ImageOutputStream stream = ImageIO.createImageOutputStream(outputFile);
+		if (stream == null)
+		{
+			throw new IOException("Can't write " + outputFile);
+		}
+		return stream;
+	}
+
+	private static void writeImage(File outputFile, RenderedImage image, ImageTypeSpecifier imageType,
+									double resolutionDPI) throws IOException
+	{
+		String suffix = getFileExtension(outputFile).toLowerCase(Locale.ENGLISH);
+		WriteTemplate template = getTemplate(suffix, imageType, resolutionDPI);
+
+		ReaderWriterPool pool = ReaderWriterPool.getDefault();
+		ImageWriter writer = pool.getWriter(template.spi);
+		ImageOutputStream stream = null;
+		try
+		{
+			IIOMetadata imageMetadata = template.newMetadata(writer, imageType);
+			IIOImage imageWithMetadata = new IIOImage(image, null, imageMetadata);
+
+			stream = createOutput(outputFile);
+			writer.setOutput(stream);
+			writer.write(null, imageWithMetadata, null);
+		}
+		finally
+		{
+			if (stream != null)
+			{
+				stream.close();
+			}
+			pool.release(writer);
+		}
+	}
+
+	/**
+	 * Writes the image a strip at a time into an empty image laid out by
+	 * <code>prepareWriteEmpty</code>. Returns <code>false</code>, leaving
+	 * nothing useful behind, if the writer can't do that.
+	 */
+	private static boolean replaceStrips(ImageReader reader, ImageTypeSpecifier imageType, int stripHeight,
+											File outputFile, double resolutionDPI) throws IOException
+	{
+		String suffix = getFileExtension(outputFile).toLowerCase(Locale.ENGLISH);
+		WriteTemplate template = getTemplate(suffix, imageType, resolutionDPI);
+
+		ReaderWriterPool pool = ReaderWriterPool.getDefault();
+		ImageWriter writer = pool.getWriter(template.spi);
+		ImageOutputStream stream = null;
+		try
+		{
+			IIOMetadata imageMetadata = template.newMetadata(writer, imageType);
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+
+			stream = createOutput(outputFile);
+			writer.setOutput(stream);
+			if (!writer.canWriteEmpty())
+			{
+				return false;
+			}
+			writer.prepareWriteEmpty(null, imageType, width, height, imageMetadata, null, null);
+			if (!writer.canReplacePixels(0))
+			{
+				writer.endWriteEmpty();
+				return false;
+			}
+
+			for (int y = 0; y < height; y += stripHeight)
+			{
+				Rectangle region = new Rectangle(0, y, width, Math.min(stripHeight, height - y));
+				Raster strip = StripSourceImage.readRegion(reader, 0, imageType, region).getRaster();
+				ImageWriteParam param = writer.getDefaultWriteParam();
+				param.setDestinationOffset(new Point(0, y));
+				writer.prepareReplacePixels(0, region);
+				writer.replacePixels(strip, param);
+				writer.endReplacePixels();
+			}
+			writer.endWriteEmpty();
+			return true;
 		}
 		finally
 		{
@@ -126,27 +409,577 @@ public class ChangeImageResolution
 			{
 				stream.close();
 			}
+			pool.release(writer);
+		}
+	}
+
+	/**
+	 * Writes the image a strip at a time, either into an empty image or
+	 * through a {@link StripSourceImage}. Returns <code>false</code>, with
+	 * nothing written, if the writer wants the whole image at once.
+	 */
+	private static boolean writeStrips(ImageReader reader, ImageTypeSpecifier imageType, File outputFile,
+										double resolutionDPI) throws IOException
+	{
+		int width = reader.getWidth(0);
+		int height = reader.getHeight(0);
+		long stripBytes = getHeapLimit() / STRIP_SHARE;
+		long rowBytes = StripSourceImage.estimateBytes(imageType, width, 1);
+		int stripHeight = (int)Math.max(1, Math.min(height, stripBytes / rowBytes));
+
+		boolean written = false;
+		try
+		{
+			if (!replaceStrips(reader, imageType, stripHeight, outputFile, resolutionDPI))
+			{
+				StripSourceImage image = new StripSourceImage(reader, 0, imageType, stripHeight, stripBytes);
+				writeImage(outputFile, image, imageType, resolutionDPI);
+			}
+			written = true;
+		}
+		catch (IllegalStateException e)
+		{
+			/*
+			 * StripSourceImage refuses regions over the limit, which
+			 * happens with writers that want the whole image at once.
+			 */
+			if (!(e.getCause() instanceof IOException))
+			{
+				return false;
+			}
+			throw (IOException)e.getCause();
+		}
+		finally
+		{
+			if (!written)
+			{
+				Files.deleteIfExists(outputFile.toPath());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes the first image of <code>inputFile</code> and encodes it with
+	 * the new resolution. An image that would take more than the heap limit
+	 * to hold is streamed through in strips instead, if its reader can read
+	 * strips and its writer can take them, and otherwise is decoded whole
+	 * if it fits the heap the JVM has.
+	 */
+	private static void reencode(File inputFile, double resolutionDPI, File outputFile) throws IOException
+	{
+		List<ImageReaderSpi> spis = FormatSniffer.findReaderSpis(inputFile);
+		if (spis.isEmpty())
+		{
+			throw new IOException("No reader for " + inputFile.getName());
+		}
+
+		ReaderWriterPool pool = ReaderWriterPool.getDefault();
+		ImageReader reader = pool.getReader(spis.get(0));
+		ImageInputStream stream = null;
+		try
+		{
+			stream = ImageIO.createImageInputStream(inputFile);
+			reader.setInput(stream);
+
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+			ImageTypeSpecifier imageType = reader.getImageTypes(0).next();
+			long imageBytes = StripSourceImage.estimateBytes(imageType, width, height);
+
+			/*
+			 * The input is read while the output is written, so strips
+			 * need them to be different files.
+			 */
+			if (imageBytes > getHeapLimit() && StripSourceImage.canReadStrips(reader)
+				&& !(outputFile.exists() && Files.isSameFile(inputFile.toPath(), outputFile.toPath()))
+				&& writeStrips(reader, imageType, outputFile, resolutionDPI))
+			{
+				return;
+			}
+
+			if (imageBytes > getHeapLimit() && !fitsHeap(imageBytes))
+			{
+				throw new IOException("Can't re-encode " + inputFile.getName() + ": it takes " + imageBytes
+										/ (1024 * 1024) + " MB decoded, and can't be read or written in strips");
+			}
+
+			BufferedImage image = reader.read(0);
+			writeImage(outputFile, image, ImageTypeSpecifier.createFromRenderedImage(image), resolutionDPI);
+		}
+		finally
+		{
+			if (stream != null)
+			{
+				stream.close();
+			}
+			pool.release(reader);
+		}
+	}
+
+	static void changeResolution(File inputFile, double resolutionDPI, File outputFile, boolean patchHeader)
+		throws IOException
+	{
+		changeResolution(	inputFile,
+							resolutionDPI,
+							outputFile,
+							patchHeader,
+							outputFile.exists() && Files.isSameFile(inputFile.toPath(), outputFile.toPath()));
+	}
+
+	/**
+	 * @param replacesInput the input is deleted or replaced once the output
+	 *            has been written, which a mapping of it would prevent on
+	 *            Windows.
+	 */
+	private static void changeResolution(File inputFile, double resolutionDPI, File outputFile, boolean patchHeader,
+											boolean replacesInput) throws IOException
+	{
+		/*
+		 * In patch mode the resolution fields are rewritten in place in
+		 * a copy of the file.  Only formats that can't be patched go
+		 * through the (lossy, for JPEG) decode/encode path.
+		 */
+		if (patchHeader && ResolutionPatcher.patch(inputFile, outputFile, resolutionDPI))
+		{
+			return;
+		}
+
+		FileChannelStreams.setReplacing(replacesInput);
+		try
+		{
+			reencode(inputFile, resolutionDPI, outputFile);
+		}
+		finally
+		{
+			FileChannelStreams.setReplacing(false);
+		}
+	}
+
+	private static class BatchSettings
+	{
+		double resolutionDPI;
+		boolean patchHeader;
+		boolean sidecar;
+		File outputDirectory;
+		final List<Path> roots = new ArrayList<Path>();
+		final ConcurrentMap<File, File> targets = new ConcurrentHashMap<File, File>();
+		GroupCommit commit;
+		final AtomicLong changed = new AtomicLong();
+		final AtomicLong skipped = new AtomicLong();
+	}
+
+	/**
+	 * Reports each file once its group has been committed, which is the
+	 * first point it has actually changed.
+	 */
+	private static class CommitReport implements GroupCommit.Listener
+	{
+		private final BatchSettings settings;
+		private final PrintStream out;
+
+		CommitReport(BatchSettings settings, PrintStream out)
+		{
+			this.settings = settings;
+			this.out = out;
+		}
+
+		@Override
+		public void committed(File input, File target)
+		{
+			settings.changed.incrementAndGet();
+			if (settings.sidecar)
+			{
+				out.println("Changed " + input.getPath() + " in " + target.getName());
+			}
+			else
+			{
+				out.println("Changed " + input.getPath());
+			}
+		}
+
+		@Override
+		public void failed(File input, File target, IOException e)
+		{
+			out.println("    Error processing " + input.getName() + ": " + e);
+		}
+	}
+
+	/**
+	 * Checks there's a reader for <code>input</code> that will find its
+	 * sidecar. Only the first few bytes of the image are read.
+	 */
+	private static void requireReader(File input) throws IOException
+	{
+		if (FormatSniffer.findReaderSpis(input).isEmpty())
+		{
+			throw new IOException("No reader for " + input.getName());
+		}
+	}
+
+	/**
+	 * Records the new resolution in an XMP sidecar next to
+	 * <code>input</code>, which is left as it is.
+	 *
+	 * @return the sidecar.
+	 */
+	private static File writeSidecar(File input, double resolutionDPI) throws IOException
+	{
+		requireReader(input);
+		return XmpSidecar.write(input, resolutionDPI);
+	}
+
+	/**
+	 * Returns where the changed copy of <code>file</code> goes. Under an
+	 * output directory it keeps its path below the directory it was found
+	 * in, so files with the same name in different subdirectories stay
+	 * apart; two inputs that would still land on the same file are an
+	 * error rather than one silently replacing the other.
+	 */
+	private static File getTarget(File file, BatchSettings settings) throws IOException
+	{
+		if (settings.outputDirectory == null)
+		{
+			return file;
+		}
+
+		Path path = file.getAbsoluteFile().toPath().normalize();
+		Path relative = path.getFileName();
+		int longest = -1;
+		for (Path root : settings.roots)
+		{
+			if (path.startsWith(root) && root.getNameCount() > longest && !path.equals(root))
+			{
+				relative = root.relativize(path);
+				longest = root.getNameCount();
+			}
+		}
+
+		File target = new File(settings.outputDirectory, relative.toString()).getAbsoluteFile();
+		File previous = settings.targets.putIfAbsent(target, file);
+		if (previous != null && !previous.equals(file))
+		{
+			throw new IOException(file + " and " + previous + " would both be written to " + target);
+		}
+		Files.createDirectories(target.getParentFile().toPath());
+		return target;
+	}
+
+	/**
+	 * Changes one file in batch mode: the result is written to a temporary
+	 * file in the target's directory and handed to the group commit, which
+	 * syncs it and renames it over the target along with the rest of its
+	 * group, so the target is always either the old file or the complete
+	 * new one. The file is reported once its group has committed.
+	 */
+	private static void processBatchFile(PrintStream out, File file, BatchSettings settings) throws IOException
+	{
+		if (file.getName().contains(TEMP_MARKER))
+		{
+			return;
+		}
+		if (settings.sidecar && XmpSidecar.isSidecar(file))
+		{
+			return;
+		}
+		if (settings.commit.isDone(file))
+		{
+			settings.skipped.incrementAndGet();
+			out.println("Skipped " + file.getPath());
+			return;
+		}
+
+		if (settings.sidecar)
+		{
+			requireReader(file);
+			File sidecar = XmpSidecar.getSidecarFile(file);
+			settings.commit.completed(file, XmpSidecar.writeTemporary(file, settings.resolutionDPI), sidecar);
+			return;
+		}
+
+		File target = getTarget(file, settings);
+		File directory = target.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile("." + file.getName() + ".", TEMP_MARKER + "." + getFileExtension(file),
+										directory);
+		try
+		{
+			changeResolution(	file,
+								settings.resolutionDPI,
+								temp,
+								settings.patchHeader,
+								target.equals(file.getAbsoluteFile()));
+			if (temp.length() == 0)
+			{
+				throw new IOException("No writer for " + getFileExtension(file) + " files");
+			}
+			File written = temp;
+			temp = null;
+			settings.commit.completed(file, written, target);
+		}
+		finally
+		{
+			if (temp != null)
+			{
+				temp.delete();
+			}
+		}
+	}
+
+	private static void addManifest(List<String> arguments, File manifest) throws IOException
+	{
+		for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8))
+		{
+			line = line.trim();
+			if (line.length() > 0 && !line.startsWith("#"))
+			{
+				arguments.add(line);
+			}
+		}
+	}
+
+	/**
+	 * Batch mode: changes every file named on the command line, in a
+	 * manifest, or found in a directory.
+	 */
+	private static void runBatch(String[] args) throws IOException
+	{
+		BatchOptions options = new BatchOptions();
+		List<String> arguments = options.parse(args);
+
+		final BatchSettings settings = new BatchSettings();
+		File checkpointFile = null;
+		int syncEvery = DEFAULT_SYNC_EVERY;
+		List<String> inputs = new ArrayList<String>();
+
+		Iterator<String> flags = arguments.iterator();
+		while (flags.hasNext())
+		{
+			String flag = flags.next();
+			if (flag.equals("-patch"))
+			{
+				settings.patchHeader = true;
+			}
+			else if (flag.equals("-sidecar"))
+			{
+				settings.sidecar = true;
+			}
+			else if (flag.equals("-batch"))
+			{
+				String value = requireValue(flags, flag);
+				try
+				{
+					settings.resolutionDPI = Double.parseDouble(value);
+				}
+				catch (NumberFormatException e)
+				{
+					throw new IllegalArgumentException("-batch requires a resolution, not " + value);
+				}
+			}
+			else if (flag.equals("-outputDir"))
+			{
+				settings.outputDirectory = new File(requireValue(flags, flag));
+			}
+			else if (flag.equals("-manifest"))
+			{
+				addManifest(inputs, new File(requireValue(flags, flag)));
+			}
+			else if (flag.equals("-checkpoint"))
+			{
+				checkpointFile = new File(requireValue(flags, flag));
+			}
+			else if (flag.equals("-maxHeapMB"))
+			{
+				maxHeapBytes = parseNumber(flag, requireValue(flags, flag)) * 1024 * 1024;
+			}
+			else if (flag.equals("-syncEvery"))
+			{
+				syncEvery = (int)Math.min(parseNumber(flag, requireValue(flags, flag)), Integer.MAX_VALUE);
+			}
+			else
+			{
+				inputs.add(flag);
+			}
+		}
+
+		if (settings.sidecar && settings.outputDirectory != null)
+		{
+			throw new IllegalArgumentException("-sidecar writes next to the images, so -outputDir doesn't apply");
+		}
+
+		for (String input : inputs)
+		{
+			File fileOrDirectory = new File(input);
+			if (!fileOrDirectory.isFile())
+			{
+				settings.roots.add(fileOrDirectory.getAbsoluteFile().toPath().normalize());
+			}
+		}
+
+		PrintStream out = BatchOptions.createStandardOutput();
+		settings.commit = new GroupCommit(checkpointFile, syncEvery, new CommitReport(settings, out));
+		try
+		{
+			BatchProcessor batch = options.createProcessor(new FileTask()
+			{
+				@Override
+				public void process(File file, PrintStream out) throws IOException
+				{
+					processBatchFile(out, file, settings);
+				}
+			}, null, out);
+
+			for (String input : inputs)
+			{
+				File fileOrDirectory = new File(input);
+
+				if (fileOrDirectory.isFile())
+				{
+					batch.submit(fileOrDirectory);
+				}
+				else
+				{
+					options.getWalker().walk(fileOrDirectory, batch);
+				}
+			}
+
+			options.finish(batch);
+			settings.commit.close();
+
+			out.println("\nDone: " + settings.changed.get() + " changed, " + settings.skipped.get() + " skipped, "
+						+ (batch.getFailureCount() + settings.commit.getFailures()) + " failed");
+		}
+		finally
+		{
+			/*
+			 * Closing again after a successful run does nothing, since the
+			 * last group has already been committed.
+			 */
+			settings.commit.close();
+			out.flush();
 		}
 	}
 
+	private static String requireValue(Iterator<String> flags, String flag)
+	{
+		if (!flags.hasNext())
+		{
+			throw new IllegalArgumentException(flag + " requires a value");
+		}
+		return flags.next();
+	}
+
+	private static long parseNumber(String flag, String value)
+	{
+		try
+		{
+			long number = Long.parseLong(value);
+			if (number > 0)
+			{
+				return number;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+		}
+		throw new IllegalArgumentException(flag + " requires a positive number, not " + value);
+	}
+
+	private static void printUsage()
+	{
+		System.out.println("Usage: ChangeImageResolution [-patch] [-maxHeapMB n] inputFile newResolutionDPI outputFile");
+		System.out.println("       ChangeImageResolution -sidecar inputFile newResolutionDPI");
+		System.out.println("       ChangeImageResolution [-patch] [-maxHeapMB n] -batch newResolutionDPI [-outputDir dir]");
+		System.out.println("           [-sidecar] [-manifest file] [-checkpoint file] [-syncEvery n] [batch options]");
+		System.out.println("           [fileOrDirectory ...]");
+		System.out.println("    -sidecar leaves the image alone and writes the resolution to its .xmp sidecar");
+	}
+
 	public static void main(String[] args)
 	{
-		if (args.length != 3)
+		if (Arrays.asList(args).contains("-batch"))
+		{
+			try
+			{
+				runBatch(args);
+			}
+			catch (IllegalArgumentException e)
+			{
+				System.out.println(e.getMessage());
+				printUsage();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+			return;
+		}
+
+		boolean patchHeader = false;
+		boolean sidecar = false;
+		int first = 0;
+		while (first < args.length && args[first].startsWith("-"))
+		{
+			if (args[first].equals("-patch"))
+			{
+				patchHeader = true;
+				first++;
+			}
+			else if (args[first].equals("-sidecar"))
+			{
+				sidecar = true;
+				first++;
+			}
+			else if (args[first].equals("-maxHeapMB") && first + 1 < args.length)
+			{
+				try
+				{
+					maxHeapBytes = parseNumber(args[first], args[first + 1]) * 1024 * 1024;
+				}
+				catch (IllegalArgumentException e)
+				{
+					System.out.println(e.getMessage());
+					printUsage();
+					return;
+				}
+				first += 2;
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		if (args.length - first != (sidecar ? 2 : 3))
 		{
-			System.out
-				.println("Usage: ChangeImageResolution inputFile newResolutionDPI outputFile");
+			printUsage();
 			return;
 		}
 
+		double resolutionDPI;
 		try
 		{
-			File inputFile = new File(args[0]);
-			double resolutionDPI = Double.parseDouble(args[1]);
-			File outputFile = new File(args[2]);
+			resolutionDPI = Double.parseDouble(args[first + 1]);
+		}
+		catch (NumberFormatException e)
+		{
+			System.out.println("newResolutionDPI must be a number, not " + args[first + 1]);
+			printUsage();
+			return;
+		}
+
+		try
+		{
+			File inputFile = new File(args[first]);
+			if (sidecar)
+			{
+				File sidecarFile = writeSidecar(inputFile, resolutionDPI);
+				System.out.println("Wrote " + sidecarFile.getPath());
+				return;
+			}
+
+			File outputFile = new File(args[first + 2]);
 			
-			BufferedImage image = readImage(inputFile);
-			IIOMetadataNode newMetadata = createResolutionMetadata(resolutionDPI);
-			writeImage(outputFile, image, newMetadata);
+			changeResolution(inputFile, resolutionDPI, outputFile, patchHeader);
 		}
 		catch (Exception e)
 		{
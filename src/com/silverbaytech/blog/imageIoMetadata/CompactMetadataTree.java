@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.imageio.metadata.IIOMetadata;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A metadata tree held in a few primitive arrays rather than as DOM nodes,
+ * for keeping the metadata of many files in memory at once. A tree takes a
+ * tenth or less of the heap of the DOM tree it's built from.
+ *
+ * Nodes are numbered in document order, the root being 0, so a node's first
+ * child, if it has any, is the node after it. Each node has a name and two
+ * <code>int</code>s: the end of its subtree, which is also its next
+ * sibling, negated if it's the last child; and the index of its first
+ * attribute. A node's attributes are followed by those of the next node in
+ * document order, so their number needn't be stored, and its value, if it
+ * has one, is kept as an attribute with a name XML can't produce.
+ *
+ * Element and attribute names are ids in a {@link NamePool} shared between
+ * trees. Values are offsets into a byte arena holding each distinct value
+ * of the tree once, as a length and UTF-8 bytes. Node user objects aren't
+ * kept.
+ *
+ * Trees are immutable and can be read from any thread.
+ */
+public class CompactMetadataTree
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int NEXT = 0;
+	private static final int FIRST_ATTRIBUTE = 1;
+	private static final int LINK_FIELDS = 2;
+
+	/**
+	 * Name id of the attribute holding a node's value.
+	 */
+	private static final char VALUE_NAME = 0;
+
+	/**
+	 * Marks a missing child, sibling or value.
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * Interns element and attribute names as small integers. A metadata
+	 * format has a fixed vocabulary, so a pool shared by every tree stays
+	 * small however many trees there are; it holds at most 65,535 names.
+	 * Thread-safe.
+	 */
+	public static class NamePool
+	{
+		private static final int MAX_NAMES = 65536;
+
+		private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+		private volatile String[] names = new String[256];
+		private int size;
+
+		public NamePool()
+		{
+			intern("#value");
+		}
+
+		public int intern(String name)
+		{
+			Integer id = ids.get(name);
+			if (id != null)
+			{
+				return id;
+			}
+
+			synchronized (this)
+			{
+				id = ids.get(name);
+				if (id != null)
+				{
+					return id;
+				}
+				if (size == MAX_NAMES)
+				{
+					throw new IllegalStateException("Name pool is full");
+				}
+				String[] current = names;
+				if (size == current.length)
+				{
+					current = Arrays.copyOf(current, size * 2);
+				}
+				current[size] = name;
+				names = current;
+				ids.put(name, size);
+				return size++;
+			}
+		}
+
+		public String getName(int id)
+		{
+			return names[id];
+		}
+
+		public synchronized int size()
+		{
+			return size;
+		}
+	}
+
+	private static final NamePool DEFAULT_POOL = new NamePool();
+
+	private final NamePool pool;
+	private final char[] nodeNames;
+	private final int[] nodeLinks;
+	private final char[] attributeNames;
+	private final int[] attributeValues;
+	private final byte[] arena;
+
+	private CompactMetadataTree(NamePool pool, char[] nodeNames, int[] nodeLinks, char[] attributeNames,
+								int[] attributeValues, byte[] arena)
+	{
+		this.pool = pool;
+		this.nodeNames = nodeNames;
+		this.nodeLinks = nodeLinks;
+		this.attributeNames = attributeNames;
+		this.attributeValues = attributeValues;
+		this.arena = arena;
+	}
+
+	/**
+	 * Builds the arrays in one walk of a DOM tree.
+	 */
+	private static class Builder
+	{
+		private final NamePool pool;
+		private char[] nodeNames = new char[64];
+		private int[] nodeLinks = new int[64 * LINK_FIELDS];
+		private int nodeCount;
+		private char[] attributeNames = new char[64];
+		private int[] attributeValues = new int[64];
+		private int attributeCount;
+		private byte[] arena = new byte[1024];
+		private int arenaLength;
+		private final Map<String, Integer> values = new HashMap<String, Integer>();
+
+		Builder(NamePool pool)
+		{
+			this.pool = pool;
+		}
+
+		private int addValue(String value)
+		{
+			if (value == null)
+			{
+				return NONE;
+			}
+			Integer existing = values.get(value);
+			if (existing != null)
+			{
+				return existing;
+			}
+
+			byte[] bytes = value.getBytes(UTF8);
+			if (arenaLength + 5 + bytes.length > arena.length)
+			{
+				arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + 5 + bytes.length));
+			}
+
+			int offset = arenaLength;
+			int length = bytes.length;
+			while (length >= 0x80)
+			{
+				arena[arenaLength++] = (byte)(length | 0x80);
+				length >>>= 7;
+			}
+			arena[arenaLength++] = (byte)length;
+			System.arraycopy(bytes, 0, arena, arenaLength, bytes.length);
+			arenaLength += bytes.length;
+
+			values.put(value, offset);
+			return offset;
+		}
+
+		private void addAttribute(int name, String value)
+		{
+			if (attributeCount == attributeNames.length)
+			{
+				attributeNames = Arrays.copyOf(attributeNames, attributeCount * 2);
+				attributeValues = Arrays.copyOf(attributeValues, attributeCount * 2);
+			}
+			attributeNames[attributeCount] = (char)name;
+			attributeValues[attributeCount] = addValue(value);
+			attributeCount++;
+		}
+
+		/**
+		 * Adds <code>node</code> and its descendants, returning its index.
+		 * The node's next link is the end of its subtree; the caller
+		 * negates it if the node turns out to be the last child.
+		 */
+		int add(Node node)
+		{
+			if (nodeCount == nodeNames.length)
+			{
+				nodeNames = Arrays.copyOf(nodeNames, nodeCount * 2);
+				nodeLinks = Arrays.copyOf(nodeLinks, nodeCount * 2 * LINK_FIELDS);
+			}
+			int index = nodeCount++;
+			nodeNames[index] = (char)pool.intern(node.getNodeName());
+			nodeLinks[index * LINK_FIELDS + FIRST_ATTRIBUTE] = attributeCount;
+
+			String value = node.getNodeValue();
+			if (value != null)
+			{
+				addAttribute(VALUE_NAME, value);
+			}
+			NamedNodeMap nodeAttributes = node.getAttributes();
+			if (nodeAttributes != null)
+			{
+				int count = nodeAttributes.getLength();
+				for (int i = 0; i < count; i++)
+				{
+					Node attribute = nodeAttributes.item(i);
+					addAttribute(pool.intern(attribute.getNodeName()), attribute.getNodeValue());
+				}
+			}
+
+			int last = NONE;
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+			{
+				last = add(child);
+			}
+			if (last != NONE)
+			{
+				nodeLinks[last * LINK_FIELDS + NEXT] = -nodeLinks[last * LINK_FIELDS + NEXT];
+			}
+
+			nodeLinks[index * LINK_FIELDS + NEXT] = nodeCount;
+			return index;
+		}
+
+		CompactMetadataTree build(Node root)
+		{
+			int index = add(root);
+			nodeLinks[index * LINK_FIELDS + NEXT] = -nodeLinks[index * LINK_FIELDS + NEXT];
+
+			return new CompactMetadataTree(	pool,
+											Arrays.copyOf(nodeNames, nodeCount),
+											Arrays.copyOf(nodeLinks, nodeCount * LINK_FIELDS),
+											Arrays.copyOf(attributeNames, attributeCount),
+											Arrays.copyOf(attributeValues, attributeCount),
+											Arrays.copyOf(arena, arenaLength));
+		}
+	}
+
+	/**
+	 * Converts a DOM tree, such as one from <code>IIOMetadata.getAsTree</code>,
+	 * using the shared name pool.
+	 */
+	public static CompactMetadataTree build(Node root)
+	{
+		return build(root, DEFAULT_POOL);
+	}
+
+	public static CompactMetadataTree build(Node root, NamePool pool)
+	{
+		return new Builder(pool).build(root);
+	}
+
+	/**
+	 * Converts one format of <code>metadata</code>. The DOM tree it comes
+	 * from is only needed while converting.
+	 */
+	public static CompactMetadataTree fromMetadata(IIOMetadata metadata, String formatName)
+	{
+		return build(PhaseMetrics.getAsTree(metadata, formatName));
+	}
+
+	private String getString(int offset)
+	{
+		if (offset == NONE)
+		{
+			return null;
+		}
+
+		int length = 0;
+		int shift = 0;
+		int b;
+		do
+		{
+			b = arena[offset++];
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		}
+		while ((b & 0x80) != 0);
+		return new String(arena, offset, length, UTF8);
+	}
+
+	public int getRoot()
+	{
+		return 0;
+	}
+
+	public int getNodeCount()
+	{
+		return nodeNames.length;
+	}
+
+	public String getName(int node)
+	{
+		return pool.getName(nodeNames[node]);
+	}
+
+	/**
+	 * Returns the id of the node's name in the tree's {@link NamePool}, which
+	 * is cheaper to compare than the name.
+	 */
+	public int getNameId(int node)
+	{
+		return nodeNames[node];
+	}
+
+	public NamePool getNamePool()
+	{
+		return pool;
+	}
+
+	/**
+	 * @return the first child, or {@link #NONE}.
+	 */
+	public int getFirstChild(int node)
+	{
+		return Math.abs(nodeLinks[node * LINK_FIELDS + NEXT]) > node + 1 ? node + 1 : NONE;
+	}
+
+	/**
+	 * @return the next sibling, or {@link #NONE}.
+	 */
+	public int getNextSibling(int node)
+	{
+		int next = nodeLinks[node * LINK_FIELDS + NEXT];
+		return next > 0 ? next : NONE;
+	}
+
+	private int getAttributeStart(int node)
+	{
+		return nodeLinks[node * LINK_FIELDS + FIRST_ATTRIBUTE];
+	}
+
+	private int getAttributeEnd(int node)
+	{
+		return node + 1 < nodeNames.length ? getAttributeStart(node + 1) : attributeNames.length;
+	}
+
+	private boolean hasValue(int node)
+	{
+		int start = getAttributeStart(node);
+		return start < getAttributeEnd(node) && attributeNames[start] == VALUE_NAME;
+	}
+
+	/**
+	 * Returns the index in the attribute arrays of the node's first real
+	 * attribute, after its value if it has one.
+	 */
+	private int getFirstAttribute(int node)
+	{
+		return getAttributeStart(node) + (hasValue(node) ? 1 : 0);
+	}
+
+	/**
+	 * Returns the node's value, which for most metadata formats is
+	 * <code>null</code>.
+	 */
+	public String getValue(int node)
+	{
+		return hasValue(node) ? getString(attributeValues[getAttributeStart(node)]) : null;
+	}
+
+	public int getAttributeCount(int node)
+	{
+		return getAttributeEnd(node) - getFirstAttribute(node);
+	}
+
+	public String getAttributeName(int node, int index)
+	{
+		return pool.getName(attributeNames[getFirstAttribute(node) + index]);
+	}
+
+	public String getAttributeValue(int node, int index)
+	{
+		return getString(attributeValues[getFirstAttribute(node) + index]);
+	}
+
+	private static long arrayBytes(long contentBytes)
+	{
+		return (16 + contentBytes + 7) & ~7L;
+	}
+
+	/**
+	 * Returns the approximate heap size of the tree in bytes, not counting
+	 * the shared name pool.
+	 */
+	public long getFootprint()
+	{
+		return 32 + arrayBytes(2L * nodeNames.length) + arrayBytes(4L * nodeLinks.length)
+				+ arrayBytes(2L * attributeNames.length) + arrayBytes(4L * attributeValues.length)
+				+ arrayBytes(arena.length);
+	}
+}
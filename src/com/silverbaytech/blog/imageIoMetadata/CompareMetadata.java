@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.silverbaytech.blog.imageIoMetadata.FingerprintManifest.Entry;
+import com.silverbaytech.blog.imageIoMetadata.MetadataStore.StoredNode;
+
+/**
+ * Compares two runs of <code>DumpImageMetadata -fingerprint</code>, which
+ * may be over the same files at different times or over two copies of a
+ * corpus. Files are matched by their path below the directory the
+ * manifest's files have in common.
+ *
+ * Formats whose hashes match are identical and aren't looked at further.
+ * Given the store the runs wrote to, the differences in the others are
+ * listed by descending only into the subtrees whose hashes differ.
+ *
+ * @author Kevin Hunter
+ */
+public class CompareMetadata
+{
+	private final PrintStream out;
+	private final MetadataStore storeA;
+	private final MetadataStore storeB;
+	private int nodesRead;
+
+	private CompareMetadata(PrintStream out, MetadataStore storeA, MetadataStore storeB)
+	{
+		this.out = out;
+		this.storeA = storeA;
+		this.storeB = storeB;
+	}
+
+	/**
+	 * Returns the deepest directory containing every path in the manifest,
+	 * with a trailing separator, or an empty string if there isn't one.
+	 */
+	private static String getCommonDirectory(List<Entry> entries)
+	{
+		if (entries.isEmpty())
+		{
+			return "";
+		}
+
+		String directory = new File(entries.get(0).path).getParent();
+		while (directory != null)
+		{
+			String prefix = directory.endsWith(File.separator) ? directory : directory + File.separator;
+			boolean common = true;
+			for (Entry entry : entries)
+			{
+				if (!entry.path.startsWith(prefix))
+				{
+					common = false;
+					break;
+				}
+			}
+			if (common)
+			{
+				return prefix;
+			}
+			directory = new File(directory).getParent();
+		}
+		return "";
+	}
+
+	private static Map<String, Entry> index(List<Entry> entries)
+	{
+		String directory = getCommonDirectory(entries);
+		Map<String, Entry> index = new TreeMap<String, Entry>();
+		for (Entry entry : entries)
+		{
+			String key = entry.path.substring(directory.length()) + '\t' + entry.reader + '\t' + entry.kind + '\t'
+							+ entry.imageIndex + '\t' + entry.format;
+			index.put(key, entry);
+		}
+		return index;
+	}
+
+	private static String describe(String key)
+	{
+		return key.replace('\t', ' ');
+	}
+
+	private static String quote(String value)
+	{
+		return value == null ? "(none)" : "\"" + value + "\"";
+	}
+
+	private static Map<String, String> getAttributes(StoredNode node)
+	{
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		for (int i = 0; i < node.attributeNames.length; i++)
+		{
+			attributes.put(node.attributeNames[i], node.attributeValues[i]);
+		}
+		return attributes;
+	}
+
+	private StoredNode read(MetadataStore store, byte[] hash) throws IOException
+	{
+		nodesRead++;
+		return store.get(hash);
+	}
+
+	/**
+	 * Reads the children of <code>node</code> whose hashes aren't among
+	 * <code>others</code>, the other node's children, since those are
+	 * unchanged.
+	 */
+	private List<StoredNode> readChangedChildren(MetadataStore store, StoredNode node, byte[][] others)
+		throws IOException
+	{
+		Set<ByteBuffer> unchanged = new HashSet<ByteBuffer>();
+		for (byte[] other : others)
+		{
+			unchanged.add(ByteBuffer.wrap(other));
+		}
+
+		List<StoredNode> children = new ArrayList<StoredNode>();
+		for (byte[] child : node.children)
+		{
+			if (!unchanged.contains(ByteBuffer.wrap(child)))
+			{
+				StoredNode stored = read(store, child);
+				if (stored == null)
+				{
+					throw new IOException(MetadataStore.toHex(child) + " isn't in " + store);
+				}
+				children.add(stored);
+			}
+		}
+		return children;
+	}
+
+	private static boolean equal(String a, String b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Lists how two elements with the same name, and their subtrees,
+	 * differ. Changed children are paired by name, in order, so one
+	 * that's added or removed doesn't make its later siblings look changed.
+	 */
+	private void compare(StoredNode a, StoredNode b, String path) throws IOException
+	{
+		if (!equal(a.value, b.value))
+		{
+			out.println("    " + path + ": value " + quote(a.value) + " -> " + quote(b.value));
+		}
+
+		Map<String, String> attributesA = getAttributes(a);
+		Map<String, String> attributesB = getAttributes(b);
+		for (Map.Entry<String, String> attribute : attributesA.entrySet())
+		{
+			String name = attribute.getKey();
+			if (!attributesB.containsKey(name))
+			{
+				out.println("    " + path + ": " + name + " removed, was " + quote(attribute.getValue()));
+			}
+			else if (!equal(attribute.getValue(), attributesB.get(name)))
+			{
+				out.println("    " + path + ": " + name + " " + quote(attribute.getValue()) + " -> "
+							+ quote(attributesB.get(name)));
+			}
+		}
+		for (Map.Entry<String, String> attribute : attributesB.entrySet())
+		{
+			if (!attributesA.containsKey(attribute.getKey()))
+			{
+				out.println("    " + path + ": " + attribute.getKey() + " added, " + quote(attribute.getValue()));
+			}
+		}
+
+		List<StoredNode> childrenA = readChangedChildren(storeA, a, b.children);
+		List<StoredNode> childrenB = readChangedChildren(storeB, b, a.children);
+		Map<String, Integer> occurrences = new HashMap<String, Integer>();
+		for (StoredNode childA : childrenA)
+		{
+			Integer occurrence = occurrences.get(childA.name);
+			occurrence = occurrence == null ? 0 : occurrence + 1;
+			occurrences.put(childA.name, occurrence);
+			String childPath = path + "/" + childA.name + (occurrence > 0 ? "[" + occurrence + "]" : "");
+
+			StoredNode childB = null;
+			for (Iterator<StoredNode> i = childrenB.iterator(); i.hasNext();)
+			{
+				StoredNode candidate = i.next();
+				if (candidate.name.equals(childA.name))
+				{
+					childB = candidate;
+					i.remove();
+					break;
+				}
+			}
+
+			if (childB == null)
+			{
+				out.println("    " + childPath + ": removed");
+			}
+			else
+			{
+				compare(childA, childB, childPath);
+			}
+		}
+		for (StoredNode childB : childrenB)
+		{
+			out.println("    " + path + "/" + childB.name + ": added");
+		}
+	}
+
+	private void compare(List<Entry> entriesA, List<Entry> entriesB) throws IOException
+	{
+		Map<String, Entry> a = index(entriesA);
+		Map<String, Entry> b = index(entriesB);
+
+		int identical = 0;
+		int changed = 0;
+		List<String> onlyA = new ArrayList<String>();
+		for (Map.Entry<String, Entry> entry : a.entrySet())
+		{
+			Entry other = b.get(entry.getKey());
+			if (other == null)
+			{
+				onlyA.add(entry.getKey());
+			}
+			else if (Arrays.equals(entry.getValue().hash, other.hash))
+			{
+				identical++;
+			}
+			else
+			{
+				changed++;
+				out.println("Changed: " + describe(entry.getKey()));
+				if (storeA != null)
+				{
+					StoredNode rootA = read(storeA, entry.getValue().hash);
+					StoredNode rootB = read(storeB, other.hash);
+					if (rootA == null || rootB == null)
+					{
+						out.println("    not in the store");
+					}
+					else
+					{
+						compare(rootA, rootB, "/" + rootA.name);
+					}
+				}
+			}
+		}
+
+		for (String key : onlyA)
+		{
+			out.println("Only in A: " + describe(key));
+		}
+		int onlyB = 0;
+		for (String key : b.keySet())
+		{
+			if (!a.containsKey(key))
+			{
+				out.println("Only in B: " + describe(key));
+				onlyB++;
+			}
+		}
+
+		out.println();
+		out.println(identical + " identical, " + changed + " changed, " + onlyA.size() + " only in A, " + onlyB
+					+ " only in B");
+		if (storeA != null)
+		{
+			out.println(nodesRead + " subtrees read from the store");
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		List<String> storeFiles = new ArrayList<String>();
+		List<String> manifests = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-store") && i + 1 < args.length)
+			{
+				storeFiles.add(args[++i]);
+			}
+			else
+			{
+				manifests.add(args[i]);
+			}
+		}
+
+		if (manifests.size() != 2 || storeFiles.size() > 2)
+		{
+			System.out.println("Usage: CompareMetadata [-store file [-store file]] manifestA manifestB");
+			System.out.println("    a second -store is the one manifestB's run wrote to, if it's different");
+			return;
+		}
+
+		List<MetadataStore> stores = new ArrayList<MetadataStore>();
+		try
+		{
+			for (String storeFile : storeFiles)
+			{
+				File file = new File(storeFile);
+				if (!file.isFile())
+				{
+					throw new IOException(file + " doesn't exist");
+				}
+				stores.add(new MetadataStore(file));
+			}
+			MetadataStore storeA = stores.isEmpty() ? null : stores.get(0);
+			MetadataStore storeB = stores.size() > 1 ? stores.get(1) : storeA;
+
+			List<Entry> a = FingerprintManifest.read(new File(manifests.get(0)));
+			List<Entry> b = FingerprintManifest.read(new File(manifests.get(1)));
+			new CompareMetadata(System.out, storeA, storeB).compare(a, b);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			for (MetadataStore store : stores)
+			{
+				try
+				{
+					store.close();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
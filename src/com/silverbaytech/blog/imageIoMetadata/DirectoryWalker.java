@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Walks a directory tree lazily, handing each matching file to a
+ * {@link BatchProcessor} as soon as it's found. Nothing is collected up
+ * front, so output starts while the walk is still in progress.
+ */
+public class DirectoryWalker
+{
+	/**
+	 * What to do with symbolic links.
+	 */
+	public enum LinkPolicy
+	{
+		/** Ignore links entirely. */
+		SKIP,
+		/** Process links to files, but don't descend into linked directories. */
+		FILES,
+		/** Follow all links, including linked directories. */
+		FOLLOW
+	}
+
+	private final List<PathMatcher> includes = new ArrayList<PathMatcher>();
+	private final List<PathMatcher> excludes = new ArrayList<PathMatcher>();
+	private int maxDepth = 1;
+	private LinkPolicy linkPolicy = LinkPolicy.FILES;
+	private long minSize = 0;
+	private long maxSize = Long.MAX_VALUE;
+
+	private static PathMatcher createMatcher(String glob)
+	{
+		return FileSystems.getDefault().getPathMatcher("glob:" + glob);
+	}
+
+	/**
+	 * Only process files whose name (or, for patterns containing a
+	 * separator, whose path relative to the starting directory) matches
+	 * <code>glob</code>. May be given more than once.
+	 */
+	public void addInclude(String glob)
+	{
+		includes.add(createMatcher(glob));
+	}
+
+	/**
+	 * Skip files and directories matching <code>glob</code>. May be given
+	 * more than once.
+	 */
+	public void addExclude(String glob)
+	{
+		excludes.add(createMatcher(glob));
+	}
+
+	/**
+	 * Sets how many levels to descend. 1, the default, processes only the
+	 * files directly inside the starting directory.
+	 */
+	public void setMaxDepth(int maxDepth)
+	{
+		this.maxDepth = maxDepth;
+	}
+
+	public void setLinkPolicy(LinkPolicy linkPolicy)
+	{
+		this.linkPolicy = linkPolicy;
+	}
+
+	/**
+	 * Restricts processing to files of between <code>minSize</code> and
+	 * <code>maxSize</code> bytes, inclusive.
+	 */
+	public void setSizeRange(long minSize, long maxSize)
+	{
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+	}
+
+	private static boolean matchesAny(List<PathMatcher> matchers, Path root, Path path)
+	{
+		Path name = path.getFileName();
+		Path relative = root.relativize(path);
+		for (PathMatcher matcher : matchers)
+		{
+			if ((name != null && matcher.matches(name)) || matcher.matches(relative))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean accept(Path root, Path path, long size)
+	{
+		if (size < minSize || size > maxSize)
+		{
+			return false;
+		}
+		if (!includes.isEmpty() && !matchesAny(includes, root, path))
+		{
+			return false;
+		}
+		return !matchesAny(excludes, root, path);
+	}
+
+	/**
+	 * Processes every matching file under <code>directory</code>. Errors
+	 * reading individual entries are reported through the batch and don't
+	 * stop the walk.
+	 */
+	public void walk(File directory, final BatchProcessor batch) throws IOException
+	{
+		final Path root = directory.toPath();
+
+		Set<FileVisitOption> options = linkPolicy == LinkPolicy.FOLLOW
+			? EnumSet.of(FileVisitOption.FOLLOW_LINKS)
+			: EnumSet.noneOf(FileVisitOption.class);
+
+		Files.walkFileTree(root, options, maxDepth, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+			{
+				if (!dir.equals(root) && matchesAny(excludes, root, dir))
+				{
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				batch.println("Processing all files in " + dir.toFile().getAbsolutePath());
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				long size = attrs.size();
+				if (attrs.isSymbolicLink())
+				{
+					if (linkPolicy == LinkPolicy.SKIP || !Files.isRegularFile(file))
+					{
+						return FileVisitResult.CONTINUE;
+					}
+					size = Files.size(file);
+				}
+				else if (!attrs.isRegularFile())
+				{
+					return FileVisitResult.CONTINUE;
+				}
+
+				if (accept(root, file, size))
+				{
+					batch.submit(file.toFile());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e)
+			{
+				batch.println("    Error reading " + file + ": " + e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
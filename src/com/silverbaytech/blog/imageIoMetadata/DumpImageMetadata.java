@@ -18,13 +18,26 @@ package com.silverbaytech.blog.imageIoMetadata;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.stream.ImageInputStream;
 
+import com.silverbaytech.blog.imageIoMetadata.BatchProcessor.FileTask;
+import com.silverbaytech.blog.imageIoMetadata.BatchProcessor.ReportedException;
+
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
@@ -36,22 +49,127 @@ import org.w3c.dom.Node;
  */
 public class DumpImageMetadata
 {
-	private static String getFileExtension(File file)
+	/**
+	 * Output format, set from the command line before any files are processed.
+	 */
+	private static MetadataSerializer.Format format = MetadataSerializer.Format.TEXT;
+
+	/**
+	 * If set, every image in the file is dumped rather than just the first.
+	 */
+	private static boolean allImages;
+
+	/**
+	 * Runs the second and later readers of a file in <code>-fanOut</code>
+	 * mode, or <code>null</code> if each file's readers run one after
+	 * another.
+	 */
+	private static ExecutorService fanOutExecutor;
+
+	/**
+	 * Receives the fingerprint of each metadata tree in <code>-fingerprint</code>
+	 * mode, or <code>null</code>.
+	 */
+	private static FingerprintManifest fingerprints;
+
+	/**
+	 * Limits on the work done for each file.
+	 */
+	private static ReadBudget.Limits limits = ReadBudget.Limits.NONE;
+
+	/**
+	 * Receives the metadata a reader returns, in order.
+	 */
+	private interface MetadataSink
 	{
-		String fileName = file.getName();
-		int lastDot = fileName.lastIndexOf('.');
-		return fileName.substring(lastDot + 1);
+		void add(String kind, int imageIndex, IIOMetadata metadata) throws IOException;
 	}
 
-	private static void indent(int level)
+	/**
+	 * One reader's metadata for a file in fan-out mode, converted to compact
+	 * trees on the thread that read it, and whatever stopped the reader part
+	 * way. Every reader's metadata for the file is held until it's written,
+	 * so DOM trees would take several times the memory.
+	 */
+	private static class ReaderRecord implements MetadataSink
 	{
-		for (int i = 0; i < level; i++)
+		private static class Metadata
+		{
+			final String kind;
+			final int imageIndex;
+			final String[] names;
+			final List<CompactMetadataTree> trees = new ArrayList<CompactMetadataTree>();
+
+			Metadata(String kind, int imageIndex, String[] names)
+			{
+				this.kind = kind;
+				this.imageIndex = imageIndex;
+				this.names = names;
+			}
+		}
+
+		final ReadBudget budget;
+		String readerName;
+		final List<Metadata> metadata = new ArrayList<Metadata>();
+		Exception failure;
+
+		ReaderRecord(ReadBudget budget)
 		{
-			System.out.print("    ");
+			this.budget = budget;
+		}
+
+		@Override
+		public void add(String kind, int imageIndex, IIOMetadata source) throws IOException
+		{
+			Metadata entry = new Metadata(kind, imageIndex, source.getMetadataFormatNames());
+			metadata.add(entry);
+			for (String name : entry.names)
+			{
+				CompactMetadataTree tree = CompactMetadataTree.fromMetadata(source, name);
+				budget.chargeNodes(tree.getNodeCount());
+				entry.trees.add(tree);
+			}
+		}
+
+		/**
+		 * Writes the record as processing the file directly would have,
+		 * including stopping where the reader failed.
+		 */
+		void replay(MetadataSerializer out) throws Exception
+		{
+			if (readerName == null)
+			{
+				throw failure;
+			}
+
+			out.startReader(readerName);
+			for (Metadata entry : metadata)
+			{
+				out.startMetadata(entry.kind, entry.imageIndex);
+				for (int i = 0; i < entry.trees.size(); i++)
+				{
+					long start = PhaseMetrics.start();
+					out.startFormat(entry.names[i]);
+					CompactMetadataTree tree = entry.trees.get(i);
+					displayMetadataNode(out, tree, tree.getRoot());
+					out.endFormat();
+					PhaseMetrics.stop(PhaseMetrics.Phase.SERIALIZE, start);
+				}
+				if (entry.trees.size() < entry.names.length)
+				{
+					break;
+				}
+				out.endMetadata();
+			}
+			if (failure != null)
+			{
+				throw failure;
+			}
+			out.endReader();
 		}
 	}
 
-	private static void displayAttributes(NamedNodeMap attributes)
+	private static void displayAttributes(MetadataSerializer out, NamedNodeMap attributes)
 	{
 		if (attributes != null)
 		{
@@ -60,95 +178,180 @@ public class DumpImageMetadata
 			{
 				Node attribute = attributes.item(i);
 
-				System.out.print(" ");
-				System.out.print(attribute.getNodeName());
-				System.out.print("='");
-				System.out.print(attribute.getNodeValue());
-				System.out.print("'");
+				out.attribute(attribute.getNodeName(), attribute.getNodeValue());
 			}
 		}
 	}
 
-	private static void displayMetadataNode(Node node, int level)
+	private static void displayMetadataNode(MetadataSerializer out, Node node)
 	{
-		indent(level);
-		System.out.print("<");
-		System.out.print(node.getNodeName());
+		out.startElement(node.getNodeName());
 
 		NamedNodeMap attributes = node.getAttributes();
-		displayAttributes(attributes);
+		displayAttributes(out, attributes);
 
 		Node child = node.getFirstChild();
 		if (child == null)
 		{
-			String value = node.getNodeValue();
-			if (value == null || value.length() == 0)
-			{
-				System.out.println("/>");
-			}
-			else
-			{
-				System.out.print(">");
-				System.out.print(value);
-				System.out.print("<");
-				System.out.print(node.getNodeName());
-				System.out.println(">");
-			}
-			return;
+			out.value(node.getNodeValue());
 		}
 
-		System.out.println(">");
 		while (child != null)
 		{
-			displayMetadataNode(child, level + 1);
+			displayMetadataNode(out, child);
 			child = child.getNextSibling();
 		}
 
-		indent(level);
-		System.out.print("</");
-		System.out.print(node.getNodeName());
-		System.out.println(">");
+		out.endElement(node.getNodeName());
 	}
 	
-	private static void dumpMetadata(IIOMetadata metadata)
+	/**
+	 * Writes a node of a compact tree, as {@link #displayMetadataNode(MetadataSerializer, Node)}
+	 * does a DOM node.
+	 */
+	private static void displayMetadataNode(MetadataSerializer out, CompactMetadataTree tree, int node)
+	{
+		String name = tree.getName(node);
+		out.startElement(name);
+
+		int count = tree.getAttributeCount(node);
+		for (int i = 0; i < count; i++)
+		{
+			out.attribute(tree.getAttributeName(node, i), tree.getAttributeValue(node, i));
+		}
+
+		int child = tree.getFirstChild(node);
+		if (child == CompactMetadataTree.NONE)
+		{
+			out.value(tree.getValue(node));
+		}
+
+		while (child != CompactMetadataTree.NONE)
+		{
+			displayMetadataNode(out, tree, child);
+			child = tree.getNextSibling(child);
+		}
+
+		out.endElement(name);
+	}
+
+	private static int countNodes(Node node)
+	{
+		int count = 1;
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			count += countNodes(child);
+		}
+		return count;
+	}
+
+	private static void dumpMetadata(MetadataSerializer out, String kind, int imageIndex, IIOMetadata metadata,
+										ReadBudget budget) throws IOException
 	{
+		out.startMetadata(kind, imageIndex);
 		String[] names = metadata.getMetadataFormatNames();
 		int length = names.length;
 		for (int i = 0; i < length; i++)
 		{
-			indent(2);
-			System.out.println("Format name: " + names[i]);
-			displayMetadataNode(metadata.getAsTree(names[i]), 3);
+			Node tree = PhaseMetrics.getAsTree(metadata, names[i]);
+			budget.chargeNodes(countNodes(tree));
+			long start = PhaseMetrics.start();
+			out.startFormat(names[i]);
+			displayMetadataNode(out, tree);
+			out.endFormat();
+			PhaseMetrics.stop(PhaseMetrics.Phase.SERIALIZE, start);
 		}
+		out.endMetadata();
 	}
 
-	private static void processFileWithReader(File file, ImageReader reader) throws IOException
+	/**
+	 * Returns a sink that writes metadata to <code>out</code> as it's read.
+	 */
+	private static MetadataSink createDirectSink(final MetadataSerializer out, final ReadBudget budget)
 	{
-		ImageInputStream stream = null;
+		return new MetadataSink()
+		{
+			@Override
+			public void add(String kind, int imageIndex, IIOMetadata metadata) throws IOException
+			{
+				dumpMetadata(out, kind, imageIndex, metadata, budget);
+			}
+		};
+	}
 
+	/**
+	 * Returns a reader to the pool, or disposes of it if it may have been
+	 * aborted.
+	 */
+	private static void releaseReader(ReaderWriterPool pool, ImageReader reader, ReadBudget budget)
+	{
+		if (budget.isExceeded())
+		{
+			pool.discard(reader);
+		}
+		else
+		{
+			pool.release(reader);
+		}
+	}
+
+	/**
+	 * Reads the metadata from <code>stream</code>, which is closed
+	 * afterwards, into <code>out</code>, charging the reads to
+	 * <code>budget</code>.
+	 */
+	private static void processFileWithReader(MetadataSink out, ImageInputStream stream, ImageReader reader,
+												boolean dumpAllImages, ReadBudget budget) throws IOException
+	{
+		budget.register(reader);
 		try
 		{
-			stream = ImageIO.createImageInputStream(file);
+			reader.setInput(budget.wrap(stream), true);
 
-			reader.setInput(stream, true);
+			if (!dumpAllImages)
+			{
+				IIOMetadata metadata = PhaseMetrics.getImageMetadata(reader, 0);
+				budget.check();
+				
+				out.add("Image", -1, metadata);
+				
+				metadata = PhaseMetrics.getStreamMetadata(reader);
+				budget.check();
+				if (metadata != null)
+				{
+					out.add("Stream", -1, metadata);
+				}
+				return;
+			}
+
+			/*
+			 * Stream metadata is fetched first, since the stream is read
+			 * forward only, but written after the images as it always has
+			 * been.
+			 */
+			IIOMetadata streamMetadata = PhaseMetrics.getStreamMetadata(reader);
+			budget.check();
 
-			IIOMetadata metadata = reader.getImageMetadata(0);
-			
-			indent(1);
-			System.out.println("Image metadata");
-			dumpMetadata(metadata);
-			
-			metadata = reader.getStreamMetadata();
-			if (metadata != null)
+			ImageMetadataIterator images = new ImageMetadataIterator(reader);
+			while (images.hasNext())
 			{
-				indent(1);
-				System.out.println("Stream metadata");
-				dumpMetadata(metadata);
+				IIOMetadata metadata = images.next();
+				budget.check();
+				if (metadata != null)
+				{
+					out.add("Image", images.getIndex(), metadata);
+				}
+			}
+
+			if (streamMetadata != null)
+			{
+				out.add("Stream", -1, streamMetadata);
 			}
 
 		}
 		finally
 		{
+			budget.unregister(reader);
 			if (stream != null)
 			{
 				stream.close();
@@ -156,61 +359,357 @@ public class DumpImageMetadata
 		}
 	}
 
-	private static void processFile(File file) throws IOException
+	/**
+	 * Reads the file with one reader from a stream over <code>contents</code>.
+	 * Failures are kept in the record rather than thrown.
+	 */
+	private static Callable<ReaderRecord> createFanOutTask(final ImageReaderSpi spi,
+															final FileChannelStreams.FileContents contents,
+															final boolean dumpAllImages, final ReadBudget budget)
 	{
-		System.out.println("\nProcessing " + file.getName() + ":\n");
+		return new Callable<ReaderRecord>()
+		{
+			@Override
+			public ReaderRecord call()
+			{
+				ReaderRecord record = new ReaderRecord(budget);
+				ReaderWriterPool pool = ReaderWriterPool.getDefault();
+				try
+				{
+					ImageReader reader = pool.getReader(spi);
+					try
+					{
+						record.readerName = reader.getClass().getName();
+						processFileWithReader(record, contents.newStream(), reader, dumpAllImages, budget);
+					}
+					finally
+					{
+						releaseReader(pool, reader, budget);
+					}
+				}
+				catch (Exception e)
+				{
+					record.failure = e;
+				}
+				return record;
+			}
+		};
+	}
 
-		String extension = getFileExtension(file);
+	/**
+	 * Reads the file once and runs all its readers at the same time over
+	 * the one copy, the first on this thread. Their records are written in
+	 * reader order, so the output is the same as reading the file with each
+	 * in turn.
+	 */
+	private static void processFileFanOut(MetadataSerializer out, File file, List<ImageReaderSpi> spis,
+											boolean dumpAllImages, ReadBudget budget) throws Exception
+	{
+		if (spis.isEmpty())
+		{
+			return;
+		}
 
-		Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(extension);
+		long start = PhaseMetrics.start();
+		FileChannelStreams.FileContents contents;
+		try
+		{
+			contents = FileChannelStreams.FileContents.read(file);
+		}
+		finally
+		{
+			PhaseMetrics.stop(PhaseMetrics.Phase.OPEN, start);
+		}
 
-		while (readers.hasNext())
+		List<Future<ReaderRecord>> others = new ArrayList<Future<ReaderRecord>>();
+		for (ImageReaderSpi spi : spis.subList(1, spis.size()))
 		{
-			ImageReader reader = readers.next();
+			others.add(fanOutExecutor.submit(createFanOutTask(spi, contents, dumpAllImages, budget)));
+		}
 
-			System.out.println("Reader: " + reader.getClass().getName());
+		try
+		{
+			createFanOutTask(spis.get(0), contents, dumpAllImages, budget).call().replay(out);
+			for (Future<ReaderRecord> other : others)
+			{
+				try
+				{
+					other.get().replay(out);
+				}
+				catch (ExecutionException e)
+				{
+					if (e.getCause() instanceof Error)
+					{
+						throw (Error)e.getCause();
+					}
+					throw new IOException(e.getCause());
+				}
+			}
+		}
+		finally
+		{
+			/*
+			 * If a replay failed, the other readers are still going. They
+			 * mustn't outlive the file: the budget's deadline, which is what
+			 * stops one that loops, is cancelled once it's finished, and
+			 * the contents may be a prefetch buffer about to be reused.
+			 */
+			for (Future<ReaderRecord> other : others)
+			{
+				awaitQuietly(other);
+			}
+		}
+	}
 
-			processFileWithReader(file, reader);
+	/**
+	 * Waits for a task whose result is no longer wanted.
+	 */
+	private static void awaitQuietly(Future<?> future)
+	{
+		boolean interrupted = false;
+		while (true)
+		{
+			try
+			{
+				future.get();
+				break;
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+			catch (ExecutionException | CancellationException e)
+			{
+				break;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
 		}
 	}
 
-	private static void processDirectory(File directory) throws IOException
+	static void processFile(PrintStream stream, File file) throws ReportedException
 	{
-		System.out.println("Processing all files in " + directory.getAbsolutePath());
+		processFile(stream, file, format, allImages);
+	}
 
-		File[] contents = directory.listFiles();
-		for (File file : contents)
+	/**
+	 * Dumps one file with the given settings rather than the command line's.
+	 */
+	static void processFile(PrintStream stream, File file, MetadataSerializer.Format outputFormat,
+							boolean dumpAllImages) throws ReportedException
+	{
+		MetadataSerializer out = outputFormat.create(stream);
+		if (fingerprints != null)
+		{
+			out = fingerprints.wrap(out);
+		}
+
+		ReadBudget budget = new ReadBudget(limits);
+		budget.start();
+		try
 		{
-			if (file.isFile())
+			out.startFile(file);
+
+			List<ImageReaderSpi> spis = FormatSniffer.findReaderSpis(file);
+			if (fanOutExecutor != null && spis.size() > 1)
 			{
-				processFile(file);
+				processFileFanOut(out, file, spis, dumpAllImages, budget);
+			}
+			else
+			{
+				ReaderWriterPool pool = ReaderWriterPool.getDefault();
+				MetadataSink sink = createDirectSink(out, budget);
+
+				for (ImageReaderSpi spi : spis)
+				{
+					ImageReader reader = pool.getReader(spi);
+					try
+					{
+						out.startReader(reader.getClass().getName());
+
+						processFileWithReader(	sink,
+												PhaseMetrics.openImageInputStream(file),
+												reader,
+												dumpAllImages,
+												budget);
+
+						out.endReader();
+					}
+					finally
+					{
+						releaseReader(pool, reader, budget);
+					}
+				}
 			}
+
+			out.endFile();
+		}
+		catch (Exception e)
+		{
+			e = budget.explain(e);
+			out.failFile(file, e);
+			throw new ReportedException(e);
+		}
+		finally
+		{
+			budget.finish();
+		}
+	}
+
+	private static String requireValue(Iterator<String> flags, String flag)
+	{
+		flags.remove();
+		if (!flags.hasNext())
+		{
+			throw new IllegalArgumentException(flag + " requires a value");
 		}
+		String value = flags.next();
+		flags.remove();
+		return value;
 	}
 
 	public static void main(String[] args)
 	{
+		PrintStream out = BatchOptions.createStandardOutput();
+		File fingerprintFile = null;
+		File storeFile = null;
+
 		try
 		{
-			for (int i = 0; i < args.length; i++)
+			BatchOptions options = new BatchOptions();
+			List<String> arguments = options.parse(args);
+
+			Iterator<String> flags = arguments.iterator();
+			while (flags.hasNext())
 			{
-				File fileOrDirectory = new File(args[i]);
+				String flag = flags.next();
+				if (flag.equals("-allImages"))
+				{
+					allImages = true;
+					flags.remove();
+				}
+				else if (flag.equals("-fanOut"))
+				{
+					fanOutExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+					flags.remove();
+				}
+				else if (flag.equals("-format"))
+				{
+					String value = requireValue(flags, flag);
+					try
+					{
+						format = MetadataSerializer.Format.valueOf(value.toUpperCase(Locale.ENGLISH));
+					}
+					catch (IllegalArgumentException e)
+					{
+						throw new IllegalArgumentException("-format must be text, xml or json, not " + value);
+					}
+				}
+				else if (flag.equals("-fingerprint"))
+				{
+					fingerprintFile = new File(requireValue(flags, flag));
+				}
+				else if (flag.equals("-store"))
+				{
+					storeFile = new File(requireValue(flags, flag));
+				}
+				else if (flag.equals("-maxBytes"))
+				{
+					limits = limits.withMaxBytes(Long.parseLong(requireValue(flags, flag)));
+				}
+				else if (flag.equals("-maxNodes"))
+				{
+					limits = limits.withMaxNodes(Long.parseLong(requireValue(flags, flag)));
+				}
+				else if (flag.equals("-timeout"))
+				{
+					limits = limits.withTimeoutMillis(Long.parseLong(requireValue(flags, flag)));
+				}
+			}
+
+			if (fingerprintFile != null)
+			{
+				fingerprints = new FingerprintManifest(	fingerprintFile,
+														storeFile != null ? new MetadataStore(storeFile) : null);
+			}
+			else if (storeFile != null)
+			{
+				throw new IllegalArgumentException("-store requires -fingerprint");
+			}
+
+			/*
+			 * Results replayed from the cache wouldn't be fingerprinted, so
+			 * the cache is bypassed when fingerprinting.
+			 */
+			BatchProcessor batch = options.createProcessor(new FileTask()
+			{
+				@Override
+				public void process(File file, PrintStream out) throws ReportedException
+				{
+					processFile(out, file);
+				}
+			}, fingerprints != null ? null : "DumpImageMetadata " + format + " " + allImages, out);
+
+			if (format != MetadataSerializer.Format.TEXT)
+			{
+				/*
+				 * Keep progress messages out of the structured output.
+				 */
+				batch.setMessageStream(System.err);
+			}
+
+			format.beginDocument(out);
+
+			for (String argument : arguments)
+			{
+				File fileOrDirectory = new File(argument);
 
 				if (fileOrDirectory.isFile())
 				{
-					processFile(fileOrDirectory);
+					batch.submit(fileOrDirectory);
 				}
 				else
 				{
-					processDirectory(fileOrDirectory);
+					options.getWalker().walk(fileOrDirectory, batch);
 				}
 			}
 
-			System.out.println("\nDone");
+			options.finish(batch);
+
+			format.endDocument(out);
+		}
+		catch (IllegalArgumentException e)
+		{
+			out.flush();
+			BatchOptions.printUsage(e,
+									"Usage: DumpImageMetadata [-format text|xml|json] [-allImages] [-fanOut]",
+									"           [-fingerprint file [-store file]] [-maxBytes n] [-maxNodes n] [-timeout ms]",
+									"           [batch options] fileOrDirectory [...]");
 		}
 		catch (IOException e)
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			if (fingerprints != null)
+			{
+				try
+				{
+					fingerprints.close();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+			if (fanOutExecutor != null)
+			{
+				fanOutExecutor.shutdown();
+			}
+			out.flush();
+		}
 	}
 }
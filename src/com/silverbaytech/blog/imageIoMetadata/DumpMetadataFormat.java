@@ -16,259 +16,267 @@
 
 package com.silverbaytech.blog.imageIoMetadata;
 
-import java.util.HashSet;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
 
 import javax.imageio.metadata.IIOMetadataFormat;
 import javax.imageio.metadata.IIOMetadataFormatImpl;
 import javax.imageio.spi.IIORegistry;
 import javax.imageio.spi.ImageReaderSpi;
 
+import com.silverbaytech.blog.imageIoMetadata.MetadataSchema.Attribute;
+import com.silverbaytech.blog.imageIoMetadata.MetadataSchema.Element;
+
+/**
+ * Dumps the metadata formats supported by the readers of one or more
+ * graphics formats. The formats are read through a
+ * {@link MetadataSchemaIndex}, which <code>-schemaIndex file</code> keeps
+ * on disk between runs. Nothing here is static state, so formats can be
+ * dumped from any number of threads.
+ */
 public class DumpMetadataFormat
 {
-	private static Set<String> ALREADY_DUMPED;
-	
-	private static void indent(int level)
+	private static void indent(StringBuilder out, int level)
 	{
 		for (int i = 0; i < level; i++)
 		{
-			System.out.print("    ");
+			out.append("    ");
 		}
 	}
 	
-	private static void dumpEnumeration(IIOMetadataFormat format, String elementName, String attributeName)
+	private static void dumpEnumeration(StringBuilder out, Attribute attribute)
 	{
-		String[] values = format.getAttributeEnumerations(elementName, attributeName);
-		System.out.print(":");
-		System.out.print(values[0]);
-		for (int i = 1; i < values.length; i++)
+		List<String> values = attribute.enumerations;
+		out.append(":");
+		out.append(values.get(0));
+		for (int i = 1; i < values.size(); i++)
 		{
-			System.out.print("|");
-			System.out.print(values[i]);
+			out.append("|");
+			out.append(values.get(i));
 		}
 	}
 	
-	private static void dumpRange(IIOMetadataFormat format, String elementName, String attributeName, int valueType)
+	private static void dumpRange(StringBuilder out, Attribute attribute)
 	{
-		String minValue = format.getAttributeMinValue(elementName, attributeName);
-		String maxValue = format.getAttributeMaxValue(elementName, attributeName);
+		out.append(":");
+		out.append(attribute.minValue);
 		
-		System.out.print(":");
-		System.out.print(minValue);
-		
-		if ((valueType & IIOMetadataFormat.VALUE_RANGE_MIN_INCLUSIVE_MASK) != 0)
+		if ((attribute.valueType & IIOMetadataFormat.VALUE_RANGE_MIN_INCLUSIVE_MASK) != 0)
 		{
-			System.out.print("<=");
+			out.append("<=");
 		}
 		else
 		{
-			System.out.print("<");
+			out.append("<");
 		}
 		
-		System.out.print("x");
+		out.append("x");
 		
-		if ((valueType & IIOMetadataFormat.VALUE_RANGE_MAX_INCLUSIVE_MASK) != 0)
+		if ((attribute.valueType & IIOMetadataFormat.VALUE_RANGE_MAX_INCLUSIVE_MASK) != 0)
 		{
-			System.out.print("<=");
+			out.append("<=");
 		}
 		else
 		{
-			System.out.print("<");
+			out.append("<");
 		}
-		System.out.print(maxValue);
+		out.append(attribute.maxValue);
 	}
 	
-	private static void dumpList(IIOMetadataFormat format, String elementName, String attributeName)
+	private static void dumpList(StringBuilder out, Attribute attribute)
 	{
-		int minLength = format.getAttributeListMinLength(elementName, attributeName);
-		int maxLength = format.getAttributeListMaxLength(elementName, attributeName);
-		System.out.print("[");
-		System.out.print(minLength);
-		System.out.print(",");
-		System.out.print(maxLength);
-		System.out.print("]");
+		out.append("[");
+		out.append(attribute.listMinLength);
+		out.append(",");
+		out.append(attribute.listMaxLength);
+		out.append("]");
 	}
 	
-	private static void dumpAttributes(IIOMetadataFormat format, String elementName)
+	private static void dumpAttributes(StringBuilder out, Element element)
 	{
-		String[] attributeNames = format.getAttributeNames(elementName);
-		if (attributeNames != null && attributeNames.length > 0)
+		for (Attribute attribute : element.attributes)
 		{
-			for (String attributeName : attributeNames)
+			out.append(" ");
+			out.append(attribute.name);
+			out.append("='");
+			
+			switch(attribute.dataType)
+			{
+			case IIOMetadataFormat.DATATYPE_BOOLEAN:
+				out.append("(BOOLEAN)");
+				break;
+			case IIOMetadataFormat.DATATYPE_DOUBLE:
+				out.append("(DOUBLE)");
+				break;
+			case IIOMetadataFormat.DATATYPE_FLOAT:
+				out.append("(FLOAT)");
+				break;
+			case IIOMetadataFormat.DATATYPE_INTEGER:
+				out.append("(INTEGER)");
+				break;
+			case IIOMetadataFormat.DATATYPE_STRING:
+				out.append("(STRING)");
+				break;
+			}
+			
+			switch(attribute.valueType)
 			{
-				System.out.print(" ");
-				System.out.print(attributeName);
-				System.out.print("='");
-				
-				int dataType = format.getAttributeDataType(elementName, attributeName);
-				switch(dataType)
-				{
-				case IIOMetadataFormat.DATATYPE_BOOLEAN:
-					System.out.print("(BOOLEAN)");
-					break;
-				case IIOMetadataFormat.DATATYPE_DOUBLE:
-					System.out.print("(DOUBLE)");
-					break;
-				case IIOMetadataFormat.DATATYPE_FLOAT:
-					System.out.print("(FLOAT)");
-					break;
-				case IIOMetadataFormat.DATATYPE_INTEGER:
-					System.out.print("(INTEGER)");
-					break;
-				case IIOMetadataFormat.DATATYPE_STRING:
-					System.out.print("(STRING)");
-					break;
-				}
-				
-				int valueType = format.getAttributeValueType(elementName, attributeName);
-				switch(valueType)
-				{
-				case IIOMetadataFormat.VALUE_ARBITRARY:
-				case IIOMetadataFormat.VALUE_NONE:
-					break;
-				case IIOMetadataFormat.VALUE_ENUMERATION:
-					dumpEnumeration(format, elementName, attributeName);
-					break;
-				case IIOMetadataFormat.VALUE_LIST:
-					dumpList(format, elementName, attributeName);
-					break;
-				case IIOMetadataFormat.VALUE_RANGE:
-				case IIOMetadataFormat.VALUE_RANGE_MAX_INCLUSIVE:
-				case IIOMetadataFormat.VALUE_RANGE_MIN_INCLUSIVE:
-				case IIOMetadataFormat.VALUE_RANGE_MIN_MAX_INCLUSIVE:
-					dumpRange(format, elementName, attributeName, valueType);
-					break;
-				}
-				
-				String defaultValue = format.getAttributeDefaultValue(elementName, attributeName);
-				if (defaultValue != null)
-				{
-					System.out.print("=");
-					System.out.print(defaultValue);
-				}
-				
-				System.out.print("'");
-				if (format.isAttributeRequired(elementName, attributeName))
-				{
-					System.out.print("*");
-				}
+			case IIOMetadataFormat.VALUE_ARBITRARY:
+			case IIOMetadataFormat.VALUE_NONE:
+				break;
+			case IIOMetadataFormat.VALUE_ENUMERATION:
+				dumpEnumeration(out, attribute);
+				break;
+			case IIOMetadataFormat.VALUE_LIST:
+				dumpList(out, attribute);
+				break;
+			case IIOMetadataFormat.VALUE_RANGE:
+			case IIOMetadataFormat.VALUE_RANGE_MAX_INCLUSIVE:
+			case IIOMetadataFormat.VALUE_RANGE_MIN_INCLUSIVE:
+			case IIOMetadataFormat.VALUE_RANGE_MIN_MAX_INCLUSIVE:
+				dumpRange(out, attribute);
+				break;
+			}
+			
+			if (attribute.defaultValue != null)
+			{
+				out.append("=");
+				out.append(attribute.defaultValue);
+			}
+			
+			out.append("'");
+			if (attribute.required)
+			{
+				out.append("*");
 			}
 		}
 	}
 	
-	private static void dumpElement(IIOMetadataFormat format, String elementName, int indent)
+	/**
+	 * @param dumped whether each element of the schema, by index, is an
+	 *            ancestor of this one or a leaf that's already been dumped.
+	 *            Either way it's only referred to.
+	 */
+	private static void dumpElement(StringBuilder out, Element element, int indent, boolean[] dumped)
 	{
-		indent(indent);
-		System.out.print("<");
-		System.out.print(elementName);
+		indent(out, indent);
+		out.append("<");
+		out.append(element.name);
 		
 		/*
 		 * Handle possible recursion in element children.  (TIFF does this)
 		 */
-		if (ALREADY_DUMPED.contains(elementName))
+		if (dumped[element.index])
 		{
-			System.out.println("> (see above)");
+			out.append("> (see above)\n");
 			return;
 		}
 		
-		ALREADY_DUMPED.add(elementName);
+		dumped[element.index] = true;
 		
-		dumpAttributes(format, elementName);
+		dumpAttributes(out, element);
 		
-		String[] children = format.getChildNames(elementName);
-		if (children == null || children.length == 0)
+		List<Element> children = element.getChildren();
+		if (children.isEmpty())
 		{
-			System.out.println("/>");
+			out.append("/>\n");
 			return;
 		}
 		
-		System.out.print("> ");
+		out.append("> ");
 		
-		int childPolicy = format.getChildPolicy(elementName);
-		switch(childPolicy)
+		switch(element.childPolicy)
 		{
 		case IIOMetadataFormat.CHILD_POLICY_ALL:
-			System.out.println("(single instance of all children required)");
+			out.append("(single instance of all children required)\n");
 			break;
 		case IIOMetadataFormat.CHILD_POLICY_CHOICE:
-			System.out.println("(0 or 1 instance of legal child elements)");
+			out.append("(0 or 1 instance of legal child elements)\n");
 			break;
 		case IIOMetadataFormat.CHILD_POLICY_EMPTY:
-			System.out.println("");
+			out.append("\n");
 			break;
 		case IIOMetadataFormat.CHILD_POLICY_REPEAT:
-			System.out.println("(zero or more instances of child element)");
+			out.append("(zero or more instances of child element)\n");
 			break;
 		case IIOMetadataFormat.CHILD_POLICY_SEQUENCE:
-			System.out.println("(sequence of instances of any of its legal child elements)");
+			out.append("(sequence of instances of any of its legal child elements)\n");
 			break;
 		case IIOMetadataFormat.CHILD_POLICY_SOME:
-			System.out.println("(zero or one instance of each of its legal child elements, in order)");
+			out.append("(zero or one instance of each of its legal child elements, in order)\n");
 			break;
 		}
 		
-		for (String child : children)
+		for (Element child : children)
 		{
-			dumpElement(format, child, indent + 1);
+			dumpElement(out, child, indent + 1, dumped);
 		}
 		
-		indent(indent);
-		System.out.print("</");
-		System.out.print(elementName);
-		System.out.println(">");
+		indent(out, indent);
+		out.append("</");
+		out.append(element.name);
+		out.append(">\n");
 		
-		ALREADY_DUMPED.remove(elementName);
+		dumped[element.index] = false;
+	}
+	
+	/**
+	 * Appends an indented outline of <code>schema</code> to <code>out</code>.
+	 */
+	static void dumpSchema(StringBuilder out, MetadataSchema schema, int indent)
+	{
+		dumpElement(out, schema.getRoot(), indent, new boolean[schema.getElements().size()]);
 	}
 	
-	private static void dumpFormat(IIOMetadataFormat format)
+	private static void dumpSchema(StringBuilder out, String heading, MetadataSchema schema)
 	{
-		ALREADY_DUMPED = new HashSet<String>();
-		String rootNodeName = format.getRootName();
-		dumpElement(format, rootNodeName, 3);
+		indent(out, 2);
+		out.append(heading);
+		out.append(schema == null ? "" : schema.getFormatName());
+		out.append("\n");
+		if (schema != null)
+		{
+			dumpSchema(out, schema, 3);
+		}
 	}
 	
-	private static void dumpProvider(ImageReaderSpi provider)
+	private static void dumpProvider(StringBuilder out, MetadataSchemaIndex index, ImageReaderSpi provider)
 	{
-		indent(1);
-		System.out.println(provider.getPluginClassName());
+		indent(out, 1);
+		out.append(provider.getPluginClassName());
+		out.append("\n");
 		
+		List<String> imageFormats = new ArrayList<String>();
 		if (provider.isStandardImageMetadataFormatSupported())
 		{
-			indent(2);
-			System.out.print("Image format: ");
-			System.out.println(IIOMetadataFormatImpl.standardMetadataFormatName);
-			IIOMetadataFormat format = provider.getImageMetadataFormat(IIOMetadataFormatImpl.standardMetadataFormatName);
-			dumpFormat(format);
+			imageFormats.add(IIOMetadataFormatImpl.standardMetadataFormatName);
 		}
-		
-		String formatName = provider.getNativeImageMetadataFormatName();
-		if (formatName != null)
+		if (provider.getNativeImageMetadataFormatName() != null)
 		{
-			indent(2);
-			System.out.print("Image format: ");
-			System.out.println(formatName);
-			IIOMetadataFormat format = provider.getImageMetadataFormat(formatName);
-			dumpFormat(format);
+			imageFormats.add(provider.getNativeImageMetadataFormatName());
+		}
+		for (String formatName : imageFormats)
+		{
+			MetadataSchema schema = index.getImageSchema(provider, formatName);
+			dumpSchema(out, "Image format: " + (schema == null ? formatName + " (not available)" : ""), schema);
 		}
 		
+		List<String> streamFormats = new ArrayList<String>();
 		if (provider.isStandardStreamMetadataFormatSupported())
 		{
-			indent(2);
-			System.out.print("Stream format: ");
-			System.out.println(IIOMetadataFormatImpl.standardMetadataFormatName);
-			IIOMetadataFormat format = provider.getStreamMetadataFormat(IIOMetadataFormatImpl.standardMetadataFormatName);
-			dumpFormat(format);
+			streamFormats.add(IIOMetadataFormatImpl.standardMetadataFormatName);
 		}
-		
-		formatName = provider.getNativeStreamMetadataFormatName();
-		if (formatName != null)
+		if (provider.getNativeStreamMetadataFormatName() != null)
 		{
-			indent(2);
-			System.out.print("Stream format: ");
-			System.out.println(formatName);
-			IIOMetadataFormat format = provider.getStreamMetadataFormat(formatName);
-			dumpFormat(format);
+			streamFormats.add(provider.getNativeStreamMetadataFormatName());
+		}
+		for (String formatName : streamFormats)
+		{
+			MetadataSchema schema = index.getStreamSchema(provider, formatName);
+			dumpSchema(out, "Stream format: " + (schema == null ? formatName + " (not available)" : ""), schema);
 		}
 	}
 	
@@ -286,10 +294,16 @@ public class DumpMetadataFormat
 		return false;
 	}
 	
-	private static void dumpFormat(String format)
+	/**
+	 * Returns the dump of every reader of the graphics format
+	 * <code>format</code>.
+	 */
+	static String dumpFormat(MetadataSchemaIndex index, String format)
 	{
-		System.out.print("Format: ");
-		System.out.println(format);
+		StringBuilder out = new StringBuilder();
+		out.append("Format: ");
+		out.append(format);
+		out.append("\n");
 		
 		IIORegistry registry = IIORegistry.getDefaultInstance();
 		Iterator<ImageReaderSpi> providers = registry.getServiceProviders(ImageReaderSpi.class, true);
@@ -298,24 +312,73 @@ public class DumpMetadataFormat
 			ImageReaderSpi provider = providers.next();
 			if (supportsFormat(provider, format))
 			{
-				dumpProvider(provider);
+				dumpProvider(out, index, provider);
+			}
+		}
+		return out.toString();
+	}
+	
+	/**
+	 * Loads the index in <code>file</code>, or starts a new one if there's no
+	 * usable index there.
+	 */
+	static MetadataSchemaIndex loadIndex(File file)
+	{
+		if (file != null && file.isFile())
+		{
+			try
+			{
+				return MetadataSchemaIndex.load(file);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Ignoring " + file + ": " + e.getMessage());
+			}
+		}
+		return new MetadataSchemaIndex();
+	}
+	
+	/**
+	 * Writes <code>index</code> back to <code>file</code> if schemas were
+	 * added to it.
+	 */
+	static void saveIndex(MetadataSchemaIndex index, File file)
+	{
+		if (file != null && index.isModified())
+		{
+			try
+			{
+				index.write(file);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Can't write " + file + ": " + e.getMessage());
 			}
 		}
 	}
 	
 	public static void main(String[] args)
 	{
-		if (args.length == 0)
+		File indexFile = null;
+		int first = 0;
+		if (args.length >= 2 && args[0].equals("-schemaIndex"))
 		{
-			System.out.println("Usage: DumpMetadataFormat graphicsFormat [...graphicsFormat]");
+			indexFile = new File(args[1]);
+			first = 2;
+		}
+		
+		if (args.length == first)
+		{
+			System.out.println("Usage: DumpMetadataFormat [-schemaIndex file] graphicsFormat [...graphicsFormat]");
 			return;
 		}
 		
-		for (int i = 0; i < args.length; i++)
+		MetadataSchemaIndex index = loadIndex(indexFile);
+		for (int i = first; i < args.length; i++)
 		{
-			dumpFormat(args[i]);
+			System.out.print(dumpFormat(index, args[i]));
 		}
+		saveIndex(index, indexFile);
 		System.out.println("Done");
 	}
 }
-
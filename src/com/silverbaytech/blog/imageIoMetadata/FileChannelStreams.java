@@ -0,0 +1,879 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageInputStreamSpi;
+import javax.imageio.spi.ImageOutputStreamSpi;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * Replaces the streams <code>ImageIO</code> creates for files.
+ *
+ * The JDK's file streams go through a <code>RandomAccessFile</code>, so every
+ * read a reader makes, however small, and every seek is a system call. In
+ * {@link Mode#MAPPED} mode input files are memory-mapped instead, so readers
+ * that seek around the file, such as TIFF's, read straight from the page
+ * cache, and output goes through a large direct buffer that is written to a
+ * <code>FileChannel</code> only when it fills or the writer seeks away from
+ * it. {@link Mode#DEFAULT} keeps the JDK's streams, but counts the calls
+ * they make so the two can be compared.
+ *
+ * A mapping outlives its stream until it's garbage collected, and Windows
+ * won't delete or replace a file while it's mapped, so there
+ * {@link #getDefaultMode()} is {@link Mode#DEFAULT}, and files that are
+ * about to be replaced are read into memory instead (see
+ * {@link #setReplacing(boolean)}).
+ *
+ * The providers are registered with the default <code>IIORegistry</code>
+ * ahead of every other provider for <code>File</code>s, so everything that
+ * calls <code>ImageIO.createImageInputStream</code> or
+ * <code>createImageOutputStream</code> picks them up.
+ */
+public class FileChannelStreams
+{
+	public enum Mode
+	{
+		MAPPED, DEFAULT
+	}
+
+	/**
+	 * Files smaller than this are read into memory with a single read, which
+	 * is cheaper than setting up and faulting in a mapping.
+	 */
+	private static final int MAP_THRESHOLD = 64 * 1024;
+
+	/**
+	 * Largest region mapped at once. Larger files are mapped in pieces.
+	 */
+	private static final int REGION_SIZE = 1 << 30;
+
+	/**
+	 * Size of the write buffer of an output stream.
+	 */
+	private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Write buffers of closed output streams. Direct buffers are expensive
+	 * to allocate and are only freed by the garbage collector, so they're
+	 * reused rather than allocated per file.
+	 */
+	private static final ConcurrentLinkedQueue<ByteBuffer> WRITE_BUFFERS = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * The file the current thread is working on, if a {@link PrefetchStage}
+	 * has already read the whole of it.
+	 */
+	private static final ThreadLocal<PrefetchStage.Prefetched> PREFETCHED = new ThreadLocal<PrefetchStage.Prefetched>();
+
+	/**
+	 * Whether the files opened on the current thread are about to be
+	 * replaced.
+	 */
+	private static final ThreadLocal<Boolean> REPLACING = new ThreadLocal<Boolean>();
+
+	private static final boolean WINDOWS = System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH)
+		.startsWith("windows");
+
+	private static final AtomicLong opened = new AtomicLong();
+	private static final AtomicLong calls = new AtomicLong();
+	private static final AtomicLong bytesRead = new AtomicLong();
+	private static final AtomicLong bytesWritten = new AtomicLong();
+
+	private static volatile Mode installed;
+	private static volatile long installedNanos;
+
+	private static final ImageInputStreamSpi MAPPED_INPUT = new MappedInputStreamSpi();
+	private static final ImageOutputStreamSpi CHANNEL_OUTPUT = new ChannelOutputStreamSpi();
+	private static final ImageInputStreamSpi COUNTING_INPUT = new CountingInputStreamSpi();
+	private static final ImageOutputStreamSpi COUNTING_OUTPUT = new CountingOutputStreamSpi();
+
+	/**
+	 * Records the work a stream did. Streams keep their own counts and add
+	 * them when they're closed, so the shared counters aren't contended on
+	 * every byte.
+	 */
+	private static void record(long streamCalls, long streamBytesRead, long streamBytesWritten)
+	{
+		opened.incrementAndGet();
+		calls.addAndGet(streamCalls);
+		bytesRead.addAndGet(streamBytesRead);
+		bytesWritten.addAndGet(streamBytesWritten);
+	}
+
+	/**
+	 * The contents of a file, read into memory if it's small and mapped
+	 * otherwise, which any number of streams can read at once. The file is
+	 * closed once it's been read; a mapping stays valid after its channel
+	 * is closed.
+	 */
+	static class FileContents
+	{
+		private final ByteBuffer[] regions;
+		private final long length;
+		private final long readCalls;
+
+		private FileContents(ByteBuffer[] regions, long length, long readCalls)
+		{
+			this.regions = regions;
+			this.length = length;
+			this.readCalls = readCalls;
+		}
+
+		static FileContents read(File file) throws IOException
+		{
+			PrefetchStage.Prefetched prefetched = PREFETCHED.get();
+			if (prefetched != null && prefetched.getFile().equals(file))
+			{
+				ByteBuffer contents = prefetched.getContents();
+				if (contents != null)
+				{
+					return new FileContents(new ByteBuffer[] { contents }, contents.limit(), 0);
+				}
+			}
+
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try
+			{
+				long length = channel.size();
+				long readCalls = 3;
+				boolean map = length >= MAP_THRESHOLD && !(WINDOWS && REPLACING.get() != null);
+				ByteBuffer[] regions = new ByteBuffer[(int)Math.max(1, (length + REGION_SIZE - 1) / REGION_SIZE)];
+				for (int i = 0; i < regions.length; i++)
+				{
+					long position = (long)i * REGION_SIZE;
+					int size = (int)Math.min(REGION_SIZE, length - position);
+					if (map)
+					{
+						regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+						readCalls++;
+					}
+					else
+					{
+						ByteBuffer contents = ByteBuffer.allocate(size);
+						while (contents.hasRemaining() && channel.read(contents, position + contents.position()) >= 0)
+						{
+							readCalls++;
+						}
+						contents.flip();
+						regions[i] = contents;
+					}
+				}
+				return new FileContents(regions, length, readCalls);
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+
+		/**
+		 * Returns a stream of its own over the contents.
+		 */
+		ImageInputStream newStream()
+		{
+			return new MappedImageInputStream(this, 0);
+		}
+	}
+
+	/**
+	 * Tells the streams opened on this thread whether their files are about
+	 * to be deleted or replaced, in which case, on Windows, they're read
+	 * into memory rather than mapped. Must be cleared with
+	 * <code>false</code>.
+	 */
+	public static void setReplacing(boolean replacing)
+	{
+		if (replacing)
+		{
+			REPLACING.set(Boolean.TRUE);
+		}
+		else
+		{
+			REPLACING.remove();
+		}
+	}
+
+	/**
+	 * Returns the mode used unless <code>-streams</code> says otherwise:
+	 * {@link Mode#MAPPED}, except on Windows.
+	 */
+	public static Mode getDefaultMode()
+	{
+		return WINDOWS ? Mode.DEFAULT : Mode.MAPPED;
+	}
+
+	/**
+	 * Lets the streams opened on this thread for <code>prefetched</code>'s
+	 * file, in {@link Mode#MAPPED} mode, read its prefetched contents rather
+	 * than the file, until it's cleared with <code>null</code>.
+	 */
+	static void setPrefetched(PrefetchStage.Prefetched prefetched)
+	{
+		if (prefetched == null)
+		{
+			PREFETCHED.remove();
+		}
+		else
+		{
+			PREFETCHED.set(prefetched);
+		}
+	}
+
+	/**
+	 * Reads {@link FileContents}. Several streams can share one set of
+	 * contents, each with its own position.
+	 */
+	private static class MappedImageInputStream extends ImageInputStreamImpl
+	{
+		private final ByteBuffer[] regions;
+		private final long length;
+		private long streamCalls;
+		private long streamBytesRead;
+
+		MappedImageInputStream(FileContents contents, long streamCalls)
+		{
+			regions = new ByteBuffer[contents.regions.length];
+			for (int i = 0; i < regions.length; i++)
+			{
+				regions[i] = contents.regions[i].duplicate();
+			}
+			length = contents.length;
+			this.streamCalls = streamCalls;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			checkClosed();
+			bitOffset = 0;
+			if (streamPos >= length)
+			{
+				return -1;
+			}
+			int value = regions[(int)(streamPos / REGION_SIZE)].get((int)(streamPos % REGION_SIZE)) & 0xFF;
+			streamPos++;
+			streamBytesRead++;
+			return value;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			checkClosed();
+			if (off < 0 || len < 0 || off + len > b.length || off + len < 0)
+			{
+				throw new IndexOutOfBoundsException();
+			}
+			bitOffset = 0;
+			if (len == 0)
+			{
+				return 0;
+			}
+			if (streamPos >= length)
+			{
+				return -1;
+			}
+
+			int total = (int)Math.min(len, length - streamPos);
+			int remaining = total;
+			while (remaining > 0)
+			{
+				ByteBuffer region = regions[(int)(streamPos / REGION_SIZE)];
+				int offset = (int)(streamPos % REGION_SIZE);
+				int count = Math.min(remaining, region.limit() - offset);
+				region.position(offset);
+				region.get(b, off, count);
+				off += count;
+				remaining -= count;
+				streamPos += count;
+			}
+			streamBytesRead += total;
+			return total;
+		}
+
+		@Override
+		public long length()
+		{
+			return length;
+		}
+
+		@Override
+		public boolean isCached()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isCachedMemory()
+		{
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			super.close();
+			record(streamCalls, streamBytesRead, 0);
+		}
+	}
+
+	/**
+	 * Writes through a direct buffer that holds one contiguous run of the
+	 * file. Writes inside or just after the run go into the buffer; a seek
+	 * elsewhere, a read or running out of room writes it out first.
+	 */
+	private static class ChannelImageOutputStream extends ImageOutputStreamImpl
+	{
+		private final FileChannel channel;
+		private ByteBuffer buffer;
+		private long bufferStart;
+		private int bufferLength;
+		private long streamCalls;
+		private long streamBytesRead;
+		private long streamBytesWritten;
+
+		ChannelImageOutputStream(File file) throws IOException
+		{
+			/*
+			 * Like the JDK's stream, this doesn't truncate an existing file.
+			 */
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+										StandardOpenOption.CREATE);
+			streamCalls = 1;
+			buffer = WRITE_BUFFERS.poll();
+			if (buffer == null)
+			{
+				buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+			}
+			buffer.clear();
+		}
+
+		private void flushBuffer() throws IOException
+		{
+			if (bufferLength == 0)
+			{
+				return;
+			}
+			buffer.position(0).limit(bufferLength);
+			long position = bufferStart;
+			while (buffer.hasRemaining())
+			{
+				position += channel.write(buffer, position);
+				streamCalls++;
+			}
+			streamBytesWritten += bufferLength;
+			buffer.clear();
+			bufferLength = 0;
+		}
+
+		/**
+		 * Returns the offset in the buffer of the stream position, first
+		 * writing the buffer out if the position isn't in or just after it.
+		 */
+		private int bufferOffset() throws IOException
+		{
+			long offset = streamPos - bufferStart;
+			if (offset < 0 || offset > bufferLength || offset >= buffer.capacity())
+			{
+				flushBuffer();
+				bufferStart = streamPos;
+				return 0;
+			}
+			return (int)offset;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			checkClosed();
+			flushBits();
+			int offset = bufferOffset();
+			buffer.put(offset, (byte)b);
+			bufferLength = Math.max(bufferLength, offset + 1);
+			streamPos++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			checkClosed();
+			flushBits();
+			if (off < 0 || len < 0 || off + len > b.length || off + len < 0)
+			{
+				throw new IndexOutOfBoundsException();
+			}
+
+			while (len > 0)
+			{
+				int offset = bufferOffset();
+				if (offset == 0 && bufferLength == 0 && len >= buffer.capacity())
+				{
+					/*
+					 * Nothing to gain by copying this much through the buffer.
+					 */
+					ByteBuffer source = ByteBuffer.wrap(b, off, len);
+					while (source.hasRemaining())
+					{
+						streamPos += channel.write(source, streamPos);
+						streamCalls++;
+					}
+					streamBytesWritten += len;
+					return;
+				}
+
+				int count = Math.min(len, buffer.capacity() - offset);
+				buffer.position(offset);
+				buffer.put(b, off, count);
+				bufferLength = Math.max(bufferLength, offset + count);
+				streamPos += count;
+				off += count;
+				len -= count;
+			}
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			checkClosed();
+			if (off < 0 || len < 0 || off + len > b.length || off + len < 0)
+			{
+				throw new IndexOutOfBoundsException();
+			}
+			bitOffset = 0;
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			flushBuffer();
+			int count = channel.read(ByteBuffer.wrap(b, off, len), streamPos);
+			streamCalls++;
+			if (count > 0)
+			{
+				streamPos += count;
+				streamBytesRead += count;
+			}
+			return count;
+		}
+
+		@Override
+		public long length()
+		{
+			try
+			{
+				streamCalls++;
+				return Math.max(channel.size(), bufferStart + bufferLength);
+			}
+			catch (IOException e)
+			{
+				return -1;
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			super.close();
+			try
+			{
+				flushBuffer();
+			}
+			finally
+			{
+				WRITE_BUFFERS.offer(buffer);
+				buffer = null;
+				channel.close();
+				record(streamCalls + 1, streamBytesRead, streamBytesWritten);
+			}
+		}
+	}
+
+	/**
+	 * The JDK's input stream, counting the calls it makes on its
+	 * <code>RandomAccessFile</code>.
+	 */
+	private static class CountingImageInputStream extends FileImageInputStream
+	{
+		private long streamCalls = 1;
+		private long streamBytesRead;
+
+		CountingImageInputStream(File file) throws IOException
+		{
+			super(file);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			streamCalls++;
+			int value = super.read();
+			if (value >= 0)
+			{
+				streamBytesRead++;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			streamCalls++;
+			int count = super.read(b, off, len);
+			if (count > 0)
+			{
+				streamBytesRead += count;
+			}
+			return count;
+		}
+
+		@Override
+		public void seek(long pos) throws IOException
+		{
+			streamCalls++;
+			super.seek(pos);
+		}
+
+		@Override
+		public long length()
+		{
+			streamCalls++;
+			return super.length();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			super.close();
+			record(streamCalls + 1, streamBytesRead, 0);
+		}
+	}
+
+	/**
+	 * The JDK's output stream, counting the calls it makes on its
+	 * <code>RandomAccessFile</code>.
+	 */
+	private static class CountingImageOutputStream extends FileImageOutputStream
+	{
+		private long streamCalls = 1;
+		private long streamBytesRead;
+		private long streamBytesWritten;
+
+		CountingImageOutputStream(File file) throws IOException
+		{
+			super(file);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			streamCalls++;
+			int value = super.read();
+			if (value >= 0)
+			{
+				streamBytesRead++;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			streamCalls++;
+			int count = super.read(b, off, len);
+			if (count > 0)
+			{
+				streamBytesRead += count;
+			}
+			return count;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			streamCalls++;
+			super.write(b);
+			streamBytesWritten++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			streamCalls++;
+			super.write(b, off, len);
+			streamBytesWritten += len;
+		}
+
+		@Override
+		public void seek(long pos) throws IOException
+		{
+			streamCalls++;
+			super.seek(pos);
+		}
+
+		@Override
+		public long length()
+		{
+			streamCalls++;
+			return super.length();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			super.close();
+			record(streamCalls + 1, streamBytesRead, streamBytesWritten);
+		}
+	}
+
+	/*
+	 * Like the JDK's providers, these return null rather than throwing if
+	 * the file can't be opened.
+	 */
+
+	private static class MappedInputStreamSpi extends ImageInputStreamSpi
+	{
+		MappedInputStreamSpi()
+		{
+			super("SilverBay Technology", "1.0", File.class);
+		}
+
+		@Override
+		public ImageInputStream createInputStreamInstance(Object input, boolean useCache, File cacheDir)
+		{
+			try
+			{
+				FileContents contents = FileContents.read((File)input);
+				return new MappedImageInputStream(contents, contents.readCalls);
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public String getDescription(Locale locale)
+		{
+			return "Memory-mapped file input stream";
+		}
+	}
+
+	private static class ChannelOutputStreamSpi extends ImageOutputStreamSpi
+	{
+		ChannelOutputStreamSpi()
+		{
+			super("SilverBay Technology", "1.0", File.class);
+		}
+
+		@Override
+		public ImageOutputStream createOutputStreamInstance(Object output, boolean useCache, File cacheDir)
+		{
+			try
+			{
+				return new ChannelImageOutputStream((File)output);
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public String getDescription(Locale locale)
+		{
+			return "Buffered file channel output stream";
+		}
+	}
+
+	private static class CountingInputStreamSpi extends ImageInputStreamSpi
+	{
+		CountingInputStreamSpi()
+		{
+			super("SilverBay Technology", "1.0", File.class);
+		}
+
+		@Override
+		public ImageInputStream createInputStreamInstance(Object input, boolean useCache, File cacheDir)
+		{
+			try
+			{
+				return new CountingImageInputStream((File)input);
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public String getDescription(Locale locale)
+		{
+			return "Counting file input stream";
+		}
+	}
+
+	private static class CountingOutputStreamSpi extends ImageOutputStreamSpi
+	{
+		CountingOutputStreamSpi()
+		{
+			super("SilverBay Technology", "1.0", File.class);
+		}
+
+		@Override
+		public ImageOutputStream createOutputStreamInstance(Object output, boolean useCache, File cacheDir)
+		{
+			try
+			{
+				return new CountingImageOutputStream((File)output);
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public String getDescription(Locale locale)
+		{
+			return "Counting file output stream";
+		}
+	}
+
+	private static boolean handlesFiles(Object spi)
+	{
+		if (spi instanceof ImageInputStreamSpi)
+		{
+			return ((ImageInputStreamSpi)spi).getInputClass() == File.class;
+		}
+		return ((ImageOutputStreamSpi)spi).getOutputClass() == File.class;
+	}
+
+	/**
+	 * Registers <code>provider</code> and orders it ahead of the other
+	 * providers in <code>category</code> that handle files.
+	 */
+	private static <T> void prefer(IIORegistry registry, Class<T> category, T provider)
+	{
+		registry.registerServiceProvider(provider, category);
+
+		List<T> others = new ArrayList<T>();
+		Iterator<T> providers = registry.getServiceProviders(category, false);
+		while (providers.hasNext())
+		{
+			T other = providers.next();
+			if (other != provider && handlesFiles(other))
+			{
+				others.add(other);
+			}
+		}
+		for (T other : others)
+		{
+			registry.setOrdering(category, provider, other);
+		}
+	}
+
+	/**
+	 * Makes <code>mode</code>'s streams the ones <code>ImageIO</code> creates
+	 * for files, and starts counting their work afresh.
+	 */
+	public static synchronized void install(Mode mode)
+	{
+		IIORegistry registry = IIORegistry.getDefaultInstance();
+		registry.deregisterServiceProvider(MAPPED_INPUT, ImageInputStreamSpi.class);
+		registry.deregisterServiceProvider(COUNTING_INPUT, ImageInputStreamSpi.class);
+		registry.deregisterServiceProvider(CHANNEL_OUTPUT, ImageOutputStreamSpi.class);
+		registry.deregisterServiceProvider(COUNTING_OUTPUT, ImageOutputStreamSpi.class);
+
+		if (mode == Mode.MAPPED)
+		{
+			prefer(registry, ImageInputStreamSpi.class, MAPPED_INPUT);
+			prefer(registry, ImageOutputStreamSpi.class, CHANNEL_OUTPUT);
+		}
+		else
+		{
+			prefer(registry, ImageInputStreamSpi.class, COUNTING_INPUT);
+			prefer(registry, ImageOutputStreamSpi.class, COUNTING_OUTPUT);
+		}
+
+		opened.set(0);
+		calls.set(0);
+		bytesRead.set(0);
+		bytesWritten.set(0);
+		installed = mode;
+		installedNanos = System.nanoTime();
+	}
+
+	/**
+	 * Parses the value of a <code>-streams</code> option.
+	 */
+	public static Mode parseMode(String value)
+	{
+		return Mode.valueOf(value.toUpperCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Prints the number of streams closed since {@link #install(Mode)}, the
+	 * file system calls they made and the rate they moved data at. Calls
+	 * are those the streams make on their file, so page faults on a mapping
+	 * aren't included.
+	 */
+	public static void printStatistics(PrintStream out)
+	{
+		Mode mode = installed;
+		if (mode == null)
+		{
+			return;
+		}
+
+		double seconds = (System.nanoTime() - installedNanos) / 1e9;
+		double megabytes = (bytesRead.get() + bytesWritten.get()) / (1024.0 * 1024.0);
+		out.println(String.format(	Locale.ENGLISH,
+									"File streams (%s): %d streams, %d calls, %d bytes read, %d written, %.1f MB/s",
+									mode.name().toLowerCase(Locale.ENGLISH),
+									opened.get(),
+									calls.get(),
+									bytesRead.get(),
+									bytesWritten.get(),
+									seconds > 0 ? megabytes / seconds : 0));
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fingerprints of a run of {@link DumpImageMetadata}: one line for each
+ * metadata format of each reader of each file, giving the hash of the
+ * format's tree in a {@link MetadataStore}.
+ *
+ * <pre>
+ * path &lt;tab&gt; reader &lt;tab&gt; kind &lt;tab&gt; imageIndex &lt;tab&gt; format &lt;tab&gt; hash
+ * </pre>
+ *
+ * A file's lines are written together when it's finished, so files
+ * processed on several threads don't interleave, although files may be in
+ * any order.
+ */
+public class FingerprintManifest
+{
+	private static final String HEADER = "# Metadata fingerprints: path, reader, kind, image, format, SHA-256";
+
+	/**
+	 * One line of a manifest.
+	 */
+	public static class Entry
+	{
+		public final String path;
+		public final String reader;
+		public final String kind;
+		public final int imageIndex;
+		public final String format;
+		public final byte[] hash;
+
+		public Entry(String path, String reader, String kind, int imageIndex, String format, byte[] hash)
+		{
+			this.path = path;
+			this.reader = reader;
+			this.kind = kind;
+			this.imageIndex = imageIndex;
+			this.format = format;
+			this.hash = hash;
+		}
+
+		@Override
+		public String toString()
+		{
+			return path + '\t' + reader + '\t' + kind + '\t' + imageIndex + '\t' + format + '\t'
+					+ MetadataStore.toHex(hash);
+		}
+	}
+
+	private final File manifestFile;
+	private final PrintWriter writer;
+	private final MetadataStore store;
+
+	/**
+	 * Creates (or replaces) <code>manifestFile</code>.
+	 *
+	 * @param store where the subtrees are kept, or <code>null</code> to only
+	 *            record the hashes.
+	 */
+	public FingerprintManifest(File manifestFile, MetadataStore store) throws IOException
+	{
+		this.manifestFile = manifestFile;
+		this.store = store;
+		writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(manifestFile), "UTF-8"));
+		writer.println(HEADER);
+	}
+
+	/**
+	 * Returns a serializer that passes everything on to <code>out</code>
+	 * and records the fingerprints of the file in this manifest.
+	 */
+	public MetadataSerializer wrap(MetadataSerializer out)
+	{
+		return new FingerprintingSerializer(out, this, store);
+	}
+
+	synchronized void write(List<Entry> entries)
+	{
+		for (Entry entry : entries)
+		{
+			writer.println(entry);
+		}
+	}
+
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			writer.close();
+			if (writer.checkError())
+			{
+				throw new IOException("Can't write " + manifestFile);
+			}
+		}
+		finally
+		{
+			if (store != null)
+			{
+				store.close();
+			}
+		}
+	}
+
+	public static List<Entry> read(File manifestFile) throws IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+		try
+		{
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				if (line.isEmpty() || line.startsWith("#"))
+				{
+					continue;
+				}
+
+				String[] fields = line.split("\t");
+				if (fields.length != 6)
+				{
+					throw new IOException(manifestFile + ":" + lineNumber + ": expected 6 fields");
+				}
+				try
+				{
+					entries.add(new Entry(	fields[0],
+											fields[1],
+											fields[2],
+											Integer.parseInt(fields[3]),
+											fields[4],
+											MetadataStore.fromHex(fields[5])));
+				}
+				catch (IllegalArgumentException e)
+				{
+					throw new IOException(manifestFile + ":" + lineNumber + ": " + e.getMessage(), e);
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes a dump on to another serializer while hashing each element from
+ * the bottom up, as {@link MetadataStore} describes, so the hash of a
+ * format's root stands for the whole tree. The elements go into the store,
+ * if there is one, and the root hashes into a {@link FingerprintManifest}
+ * when the file is finished.
+ */
+public class FingerprintingSerializer extends MetadataSerializer
+{
+	private static class Element
+	{
+		final String name;
+		String value;
+		final List<String> attributeNames = new ArrayList<String>();
+		final List<String> attributeValues = new ArrayList<String>();
+		final List<byte[]> children = new ArrayList<byte[]>();
+
+		Element(String name)
+		{
+			this.name = name;
+		}
+	}
+
+	private final MetadataSerializer out;
+	private final FingerprintManifest manifest;
+	private final MetadataStore store;
+	private final MessageDigest digest = MetadataStore.createDigest();
+	private final List<Element> stack = new ArrayList<Element>();
+	private final List<FingerprintManifest.Entry> entries = new ArrayList<FingerprintManifest.Entry>();
+
+	private String path;
+	private String reader;
+	private String kind;
+	private int imageIndex;
+	private String format;
+
+	public FingerprintingSerializer(MetadataSerializer out, FingerprintManifest manifest, MetadataStore store)
+	{
+		this.out = out;
+		this.manifest = manifest;
+		this.store = store;
+	}
+
+	@Override
+	public void flush()
+	{
+		out.flush();
+	}
+
+	@Override
+	public void startFile(File file)
+	{
+		path = file.getPath();
+		out.startFile(file);
+	}
+
+	@Override
+	public void startReader(String className)
+	{
+		reader = className;
+		out.startReader(className);
+	}
+
+	@Override
+	public void startMetadata(String kind, int imageIndex)
+	{
+		this.kind = kind;
+		this.imageIndex = imageIndex;
+		out.startMetadata(kind, imageIndex);
+	}
+
+	@Override
+	public void startFormat(String formatName)
+	{
+		format = formatName;
+		stack.clear();
+		out.startFormat(formatName);
+	}
+
+	@Override
+	public void startElement(String name)
+	{
+		stack.add(new Element(name));
+		out.startElement(name);
+	}
+
+	@Override
+	public void attribute(String name, String value)
+	{
+		Element element = stack.get(stack.size() - 1);
+		element.attributeNames.add(name);
+		element.attributeValues.add(value);
+		out.attribute(name, value);
+	}
+
+	@Override
+	public void value(String value)
+	{
+		stack.get(stack.size() - 1).value = value;
+		out.value(value);
+	}
+
+	@Override
+	public void endElement(String name)
+	{
+		Element element = stack.remove(stack.size() - 1);
+		byte[] node = MetadataStore.encode(	element.name,
+											element.value,
+											element.attributeNames,
+											element.attributeValues,
+											element.children);
+		byte[] hash = digest.digest(node);
+		if (store != null)
+		{
+			try
+			{
+				store.put(hash, node);
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Can't write to " + store + ": " + e.getMessage(), e);
+			}
+		}
+
+		if (stack.isEmpty())
+		{
+			entries.add(new FingerprintManifest.Entry(path, reader, kind, imageIndex, format, hash));
+		}
+		else
+		{
+			stack.get(stack.size() - 1).children.add(hash);
+		}
+		out.endElement(name);
+	}
+
+	@Override
+	public void endFormat()
+	{
+		out.endFormat();
+	}
+
+	@Override
+	public void endMetadata()
+	{
+		out.endMetadata();
+	}
+
+	@Override
+	public void endReader()
+	{
+		out.endReader();
+	}
+
+	@Override
+	public void endFile()
+	{
+		manifest.write(entries);
+		entries.clear();
+		out.endFile();
+	}
+
+	/**
+	 * Records whatever formats were finished before the failure.
+	 */
+	@Override
+	public void failFile(File file, Exception e)
+	{
+		manifest.write(entries);
+		entries.clear();
+		out.failFile(file, e);
+	}
+}
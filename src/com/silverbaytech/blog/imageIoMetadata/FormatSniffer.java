@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+
+/**
+ * Identifies image files by their leading bytes, and maps the result to the
+ * registered <code>ImageReaderSpi</code>s for that format.
+ *
+ * The SPI lists are built once from the <code>IIORegistry</code>, so finding
+ * the readers for a file costs one small read and a hash lookup, rather than
+ * a registry scan or a round of <code>canDecodeInput</code> probing.
+ */
+public class FormatSniffer
+{
+	/**
+	 * Number of leading bytes needed to recognise any of the signatures.
+	 */
+	public static final int SIGNATURE_BYTES = 32;
+
+	/**
+	 * A byte pattern at a fixed offset. <code>-1</code> in the pattern
+	 * matches any byte.
+	 */
+	private static class Signature
+	{
+		final String format;
+		final int offset;
+		final int[] pattern;
+
+		Signature(String format, int offset, int... pattern)
+		{
+			this.format = format;
+			this.offset = offset;
+			this.pattern = pattern;
+		}
+
+		boolean matches(ByteBuffer header)
+		{
+			if (header.limit() < offset + pattern.length)
+			{
+				return false;
+			}
+			for (int i = 0; i < pattern.length; i++)
+			{
+				if (pattern[i] >= 0 && (header.get(offset + i) & 0xFF) != pattern[i])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final Signature[] SIGNATURES = {
+		new Signature("png", 0, 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'),
+		new Signature("jpeg", 0, 0xFF, 0xD8, 0xFF),
+		new Signature("gif", 0, 'G', 'I', 'F', '8', -1, 'a'),
+		new Signature("tiff", 0, 'I', 'I', 42, 0),
+		new Signature("tiff", 0, 'M', 'M', 0, 42),
+		new Signature("bmp", 0, 'B', 'M'),
+		new Signature("jpeg2000", 0, 0, 0, 0, 12, 'j', 'P', ' ', ' ', '\r', '\n', 0x87, '\n'),
+		new Signature("jpeg2000", 0, 0xFF, 0x4F, 0xFF, 0x51)
+	};
+
+	private static volatile Map<String, List<ImageReaderSpi>> readersByFormat;
+	private static volatile Map<String, List<ImageReaderSpi>> readersBySuffix;
+
+	private static void add(Map<String, List<ImageReaderSpi>> map, String key, ImageReaderSpi spi)
+	{
+		key = key.toLowerCase(Locale.ENGLISH);
+		List<ImageReaderSpi> list = map.get(key);
+		if (list == null)
+		{
+			list = new ArrayList<ImageReaderSpi>();
+			map.put(key, list);
+		}
+		if (!list.contains(spi))
+		{
+			list.add(spi);
+		}
+	}
+
+	/**
+	 * Rebuilds the format and suffix tables from the registry. Needed only
+	 * if plugins are registered, deregistered or reordered after the first
+	 * lookup.
+	 */
+	public static synchronized void refresh()
+	{
+		Map<String, List<ImageReaderSpi>> byFormat = new HashMap<String, List<ImageReaderSpi>>();
+		Map<String, List<ImageReaderSpi>> bySuffix = new HashMap<String, List<ImageReaderSpi>>();
+
+		IIORegistry registry = IIORegistry.getDefaultInstance();
+		Iterator<ImageReaderSpi> providers = registry.getServiceProviders(ImageReaderSpi.class, true);
+		while (providers.hasNext())
+		{
+			ImageReaderSpi spi = providers.next();
+			for (String name : spi.getFormatNames())
+			{
+				add(byFormat, name, spi);
+			}
+			String[] suffixes = spi.getFileSuffixes();
+			if (suffixes != null)
+			{
+				for (String suffix : suffixes)
+				{
+					add(bySuffix, suffix, spi);
+				}
+			}
+		}
+
+		readersByFormat = byFormat;
+		readersBySuffix = bySuffix;
+	}
+
+	private static Map<String, List<ImageReaderSpi>> getReadersByFormat()
+	{
+		if (readersByFormat == null)
+		{
+			refresh();
+		}
+		return readersByFormat;
+	}
+
+	private static Map<String, List<ImageReaderSpi>> getReadersBySuffix()
+	{
+		if (readersBySuffix == null)
+		{
+			refresh();
+		}
+		return readersBySuffix;
+	}
+
+	/**
+	 * Returns the format name matching the first bytes of a file, or
+	 * <code>null</code> if none match. Only the bytes up to the buffer's
+	 * limit are examined; its position is ignored.
+	 */
+	public static String sniffFormat(ByteBuffer header)
+	{
+		for (Signature signature : SIGNATURES)
+		{
+			if (signature.matches(header))
+			{
+				return signature.format;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the format name of <code>file</code> based on its content, or
+	 * <code>null</code> if it isn't recognised.
+	 */
+	public static String sniffFormat(File file) throws IOException
+	{
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = input.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(SIGNATURE_BYTES);
+			while (header.hasRemaining())
+			{
+				if (channel.read(header) < 0)
+				{
+					break;
+				}
+			}
+			header.flip();
+			return sniffFormat(header);
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	/**
+	 * Returns the reader SPIs registered for <code>format</code>, in registry
+	 * order.
+	 */
+	public static List<ImageReaderSpi> getReaderSpis(String format)
+	{
+		List<ImageReaderSpi> spis = getReadersByFormat().get(format.toLowerCase(Locale.ENGLISH));
+		if (spis == null)
+		{
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(spis);
+	}
+
+	private static String getFileExtension(File file)
+	{
+		String fileName = file.getName();
+		int lastDot = fileName.lastIndexOf('.');
+		return fileName.substring(lastDot + 1).toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Returns the reader SPIs for <code>file</code>. The format is taken from
+	 * the file's content where possible; otherwise its extension is tried as
+	 * a suffix and then as a format name.
+	 */
+	public static List<ImageReaderSpi> findReaderSpis(File file) throws IOException
+	{
+		long start = PhaseMetrics.start();
+		try
+		{
+			return lookUpReaderSpis(file);
+		}
+		finally
+		{
+			PhaseMetrics.stop(PhaseMetrics.Phase.LOOKUP, start);
+		}
+	}
+
+	private static List<ImageReaderSpi> lookUpReaderSpis(File file) throws IOException
+	{
+		String format = sniffFormat(file);
+		if (format != null)
+		{
+			List<ImageReaderSpi> spis = getReaderSpis(format);
+			if (!spis.isEmpty())
+			{
+				return spis;
+			}
+		}
+
+		String extension = getFileExtension(file);
+		List<ImageReaderSpi> spis = getReadersBySuffix().get(extension);
+		if (spis == null)
+		{
+			spis = getReadersByFormat().get(extension);
+		}
+		if (spis == null)
+		{
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(spis);
+	}
+}
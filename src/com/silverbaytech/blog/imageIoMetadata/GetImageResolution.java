@@ -18,96 +18,119 @@ package com.silverbaytech.blog.imageIoMetadata;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.Iterator;
+import java.util.List;
 
-import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.metadata.IIOMetadata;
-import javax.imageio.metadata.IIOMetadataFormatImpl;
 import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.stream.ImageInputStream;
 
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import com.silverbaytech.blog.imageIoMetadata.BatchProcessor.CachePolicy;
+import com.silverbaytech.blog.imageIoMetadata.BatchProcessor.FileTask;
+import com.silverbaytech.blog.imageIoMetadata.ResolutionProbe.Resolution;
 
 public class GetImageResolution
 {
 	private static final NumberFormat FORMAT = new DecimalFormat("#0.0");
 
-	private static String getFileExtension(File file)
-	{
-		String fileName = file.getName();
-		int lastDot = fileName.lastIndexOf('.');
-		return fileName.substring(lastDot + 1);
-	}
+	private static final MetadataQuery HORIZONTAL_PIXEL_SIZE = MetadataQuery
+		.compile("javax_imageio_1.0/Dimension/HorizontalPixelSize@value");
+	private static final MetadataQuery VERTICAL_PIXEL_SIZE = MetadataQuery
+		.compile("javax_imageio_1.0/Dimension/VerticalPixelSize@value");
+
+	/**
+	 * Skip the header probe and always go through an ImageReader.
+	 */
+	private static boolean imageIoOnly;
+
+	/**
+	 * Read every file both ways and report any disagreement.
+	 */
+	private static boolean verify;
+
+	/**
+	 * Report every image in the file rather than just the first. The probe
+	 * only looks at the first image, so this always goes through ImageIO.
+	 */
+	private static boolean allImages;
+
+	/**
+	 * Report what's in the image even if an XMP sidecar overrides it.
+	 */
+	private static boolean ignoreSidecars;
+
+	/**
+	 * The sidecars found while going through the command line's files, or
+	 * <code>null</code> when called for a single file.
+	 */
+	private static XmpSidecar.Index sidecars;
 
-	private static Element getChildElement(Node parent, String name)
+	private static class ResolutionTask implements FileTask, CachePolicy
 	{
-		NodeList children = parent.getChildNodes();
-		int count = children.getLength();
-		for (int i = 0; i < count; i++)
+		@Override
+		public void process(File file, PrintStream out) throws IOException
 		{
-			Node child = children.item(i);
-			if (child.getNodeType() == Node.ELEMENT_NODE)
-			{
-				if (child.getNodeName().equals(name))
-				{
-					return (Element)child;
-				}
-			}
+			processFile(out, file);
 		}
 
-		return null;
+		/**
+		 * The cache only knows about the image, so files with a sidecar
+		 * are always read again, in case the sidecar has changed.
+		 */
+		@Override
+		public boolean isCacheable(File file)
+		{
+			return findSidecar(file) == null;
+		}
 	}
 
-	private static void dumpResolution(String title, Element element)
+	private static void dumpResolution(PrintStream out, String title, double mmPerPixel)
 	{
-		System.out.print(title);
-		if (element == null)
+		out.print(title);
+		if (Double.isNaN(mmPerPixel))
 		{
-			System.out.println("(none)");
+			out.println("(none)");
 			return;
 		}
 
-		String value = element.getAttribute("value");
-		if (value == null)
+		double pixelsPerInch = 25.4 / mmPerPixel;
+
+		out.print(FORMAT.format(pixelsPerInch));
+		out.println(" pixels per inch");
+	}
+
+	private static double getPixelSize(String value)
+	{
+		if (value == null || value.length() == 0)
 		{
-			System.out.println("(none)");
-			return;
+			return Double.NaN;
 		}
 
-		double mmPerPixel = Double.parseDouble(value);
-		double pixelsPerInch = 25.4 / mmPerPixel;
+		return Double.parseDouble(value);
+	}
+
+	private static Resolution getResolution(IIOMetadata metadata)
+	{
+		String[] values = MetadataQuery.evaluate(metadata, HORIZONTAL_PIXEL_SIZE, VERTICAL_PIXEL_SIZE);
 
-		System.out.print(FORMAT.format(pixelsPerInch));
-		System.out.println(" pixels per inch");
+		return new Resolution(getPixelSize(values[0]), getPixelSize(values[1]));
 	}
 
-	private static void processFileWithReader(File file, ImageReader reader) throws IOException
+	private static Resolution readResolutionWithReader(File file, ImageReader reader) throws IOException
 	{
 		ImageInputStream stream = null;
 
 		try
 		{
-			stream = ImageIO.createImageInputStream(file);
+			stream = PhaseMetrics.openImageInputStream(file);
 
 			reader.setInput(stream, true);
 
-			IIOMetadata metadata = reader.getImageMetadata(0);
-
-			Node root = metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
-			Element dimension = getChildElement(root, "Dimension");
-			if (dimension != null)
-			{
-				Element horizontalPixelSize = getChildElement(dimension, "HorizontalPixelSize");
-				Element verticalPixelSize = getChildElement(dimension, "VerticalPixelSize");
-
-				dumpResolution("    Horizontal resolution: ", horizontalPixelSize);
-				dumpResolution("    Vertical resolution: ", verticalPixelSize);
-			}
+			return getResolution(PhaseMetrics.getImageMetadata(reader, 0));
 		}
 		finally
 		{
@@ -118,67 +141,257 @@ public class GetImageResolution
 		}
 	}
 
-	private static void processFile(File file) throws IOException
+	/**
+	 * Reads the resolution through the ImageIO standard metadata tree.
+	 * Returns <code>null</code> if there is no suitable reader.
+	 */
+	static Resolution readResolution(File file) throws IOException
 	{
-		System.out.println("\nProcessing " + file.getName() + ":\n");
+		for (ImageReaderSpi spi : FormatSniffer.findReaderSpis(file))
+		{
+			if (spi.isStandardImageMetadataFormatSupported())
+			{
+				ReaderWriterPool pool = ReaderWriterPool.getDefault();
+				ImageReader reader = pool.getReader(spi);
+				try
+				{
+					return readResolutionWithReader(file, reader);
+				}
+				finally
+				{
+					pool.release(reader);
+				}
+			}
+		}
 
-		String extension = getFileExtension(file);
+		return null;
+	}
 
-		Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(extension);
+	private static boolean samePixelSize(double a, double b)
+	{
+		if (Double.isNaN(a) || Double.isNaN(b))
+		{
+			return Double.isNaN(a) && Double.isNaN(b);
+		}
+
+		/*
+		 * Several plugins store the size as a float, so allow for rounding.
+		 */
+		return Math.abs(a - b) <= Math.abs(a) * 1e-5;
+	}
 
-		while (readers.hasNext())
+	/**
+	 * Prints the resolution of each image in the file as it's read, or
+	 * <code>override</code> in place of each image's own if it isn't
+	 * <code>null</code>. Returns <code>false</code> if there is no suitable
+	 * reader.
+	 */
+	private static boolean processAllImages(PrintStream out, File file, Resolution override) throws IOException
+	{
+		for (ImageReaderSpi spi : FormatSniffer.findReaderSpis(file))
 		{
-			ImageReader reader = readers.next();
+			if (!spi.isStandardImageMetadataFormatSupported())
+			{
+				continue;
+			}
 
-			ImageReaderSpi spi = reader.getOriginatingProvider();
+			ReaderWriterPool pool = ReaderWriterPool.getDefault();
+			ImageReader reader = pool.getReader(spi);
+			ImageInputStream stream = null;
+			try
+			{
+				stream = PhaseMetrics.openImageInputStream(file);
 
-			if (spi.isStandardImageMetadataFormatSupported())
+				reader.setInput(stream, true);
+
+				ImageMetadataIterator images = new ImageMetadataIterator(reader);
+				while (images.hasNext())
+				{
+					IIOMetadata metadata = images.next();
+					out.println("    Image " + images.getIndex() + ":");
+					if (metadata == null && override == null)
+					{
+						out.println("        No metadata");
+						continue;
+					}
+					Resolution resolution = override != null ? override : getResolution(metadata);
+					long start = PhaseMetrics.start();
+					dumpResolution(out, "        Horizontal resolution: ", resolution.horizontalPixelSize);
+					dumpResolution(out, "        Vertical resolution: ", resolution.verticalPixelSize);
+					PhaseMetrics.stop(PhaseMetrics.Phase.SERIALIZE, start);
+				}
+				return true;
+			}
+			finally
 			{
-				processFileWithReader(file, reader);
-				return;
+				if (stream != null)
+				{
+					stream.close();
+				}
+				pool.release(reader);
 			}
 		}
 
-		System.out.println("    No compatible reader found");
+		return false;
 	}
 
-	private static void processDirectory(File directory) throws IOException
+	private static File findSidecar(File file)
 	{
-		System.out.println("Processing all files in " + directory.getAbsolutePath());
+		if (ignoreSidecars)
+		{
+			return null;
+		}
+		return sidecars != null ? sidecars.find(file) : XmpSidecar.find(file);
+	}
+
+	static void processFile(PrintStream out, File file) throws IOException
+	{
+		if (!ignoreSidecars && XmpSidecar.isSidecar(file))
+		{
+			return;
+		}
+
+		out.println("\nProcessing " + file.getName() + ":\n");
+
+		/*
+		 * A sidecar takes the place of the image's own resolution, without
+		 * opening the image at all unless every image is to be listed, in
+		 * which case it applies to each of them.
+		 */
+		File sidecar = findSidecar(file);
+		Resolution fromSidecar = sidecar != null ? XmpSidecar.read(sidecar) : null;
 
-		File[] contents = directory.listFiles();
-		for (File file : contents)
+		if (allImages)
 		{
-			if (file.isFile())
+			if (fromSidecar != null)
 			{
-				processFile(file);
+				out.println("    From sidecar " + sidecar.getName());
 			}
+			if (!processAllImages(out, file, fromSidecar))
+			{
+				out.println("    No compatible reader found");
+			}
+			return;
 		}
+
+		if (fromSidecar != null)
+		{
+			long start = PhaseMetrics.start();
+			out.println("    From sidecar " + sidecar.getName());
+			dumpResolution(out, "    Horizontal resolution: ", fromSidecar.horizontalPixelSize);
+			dumpResolution(out, "    Vertical resolution: ", fromSidecar.verticalPixelSize);
+			PhaseMetrics.stop(PhaseMetrics.Phase.SERIALIZE, start);
+			return;
+		}
+
+		Resolution resolution = null;
+		if (!imageIoOnly)
+		{
+			resolution = ResolutionProbe.probe(file);
+		}
+
+		if (resolution == null || verify)
+		{
+			Resolution fromReader = readResolution(file);
+			if (resolution != null && fromReader != null
+				&& !(samePixelSize(resolution.horizontalPixelSize, fromReader.horizontalPixelSize)
+				&& samePixelSize(resolution.verticalPixelSize, fromReader.verticalPixelSize)))
+			{
+				out.println("    Probe mismatch: probe " + resolution.horizontalPixelSize + "x"
+									+ resolution.verticalPixelSize + " mm, ImageIO "
+									+ fromReader.horizontalPixelSize + "x"
+									+ fromReader.verticalPixelSize + " mm");
+			}
+			if (resolution == null)
+			{
+				resolution = fromReader;
+			}
+		}
+
+		if (resolution == null)
+		{
+			out.println("    No compatible reader found");
+			return;
+		}
+
+		long start = PhaseMetrics.start();
+		dumpResolution(out, "    Horizontal resolution: ", resolution.horizontalPixelSize);
+		dumpResolution(out, "    Vertical resolution: ", resolution.verticalPixelSize);
+		PhaseMetrics.stop(PhaseMetrics.Phase.SERIALIZE, start);
 	}
 
 	public static void main(String[] args)
 	{
+		PrintStream out = BatchOptions.createStandardOutput();
+
 		try
 		{
-			for (int i = 0; i < args.length; i++)
+			BatchOptions options = new BatchOptions();
+			List<String> arguments = options.parse(args);
+
+			Iterator<String> flags = arguments.iterator();
+			while (flags.hasNext())
+			{
+				String flag = flags.next();
+				if (flag.equals("-imageio"))
+				{
+					imageIoOnly = true;
+					flags.remove();
+				}
+				else if (flag.equals("-verify"))
+				{
+					verify = true;
+					flags.remove();
+				}
+				else if (flag.equals("-allImages"))
+				{
+					allImages = true;
+					flags.remove();
+				}
+				else if (flag.equals("-ignoreSidecars"))
+				{
+					ignoreSidecars = true;
+					flags.remove();
+				}
+			}
+
+			sidecars = new XmpSidecar.Index();
+			String namespace = "GetImageResolution " + imageIoOnly + " " + verify + " " + allImages + " "
+								+ ignoreSidecars;
+			BatchProcessor batch = options.createProcessor(new ResolutionTask(), namespace, out);
+
+			for (String argument : arguments)
 			{
-				File fileOrDirectory = new File(args[i]);
+				File fileOrDirectory = new File(argument);
 
 				if (fileOrDirectory.isFile())
 				{
-					processFile(fileOrDirectory);
+					batch.submit(fileOrDirectory);
 				}
 				else
 				{
-					processDirectory(fileOrDirectory);
+					options.getWalker().walk(fileOrDirectory, batch);
 				}
 			}
 
-			System.out.println("\nDone");
+			options.finish(batch);
+
+			out.println("\nDone");
+		}
+		catch (IllegalArgumentException e)
+		{
+			out.flush();
+			BatchOptions.printUsage(e,
+									"Usage: GetImageResolution [-imageio] [-verify] [-allImages] [-ignoreSidecars]",
+									"           [batch options] fileOrDirectory [...]");
 		}
 		catch (IOException e)
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			out.flush();
+		}
 	}
 }
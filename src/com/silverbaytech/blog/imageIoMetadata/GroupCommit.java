@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replaces files durably in groups and records them in an optional
+ * checkpoint, so an interrupted run can skip what it already finished.
+ *
+ * Each new file is written to a temporary file next to its target and
+ * handed over, unsynced, to {@link #completed(File, File, File)}. Once a
+ * group is full it's committed in one step: the group's temporary files
+ * are synced back to back, which lets the file system fold them into one
+ * journal commit, then renamed over their targets, then each directory
+ * involved is synced once, and finally the checkpoint. A file is only
+ * written to the checkpoint after its rename has been made durable, so a
+ * crash can lose checkpoint entries but never records a replacement that
+ * didn't survive; until its group commits, a target still holds the old
+ * file.
+ *
+ * The commit is done by the thread that fills the group, but without
+ * holding up the threads adding to the next one. Its outcome is reported
+ * for every file in the group, to the {@link Listener}, so nothing should
+ * be reported as replaced until then.
+ *
+ * The checkpoint is a text file of absolute input paths, one per line.
+ */
+public class GroupCommit implements Closeable
+{
+	private final FileChannel checkpoint;
+	private final Set<String> previouslyDone;
+	private final int groupSize;
+	private final Listener listener;
+	private final Object commitLock = new Object();
+	private List<Replacement> pending = new ArrayList<Replacement>();
+	private long commits;
+	private long failures;
+
+	/**
+	 * Told the outcome of each file once its group has been committed.
+	 * Called on the committing thread, one group at a time.
+	 */
+	public interface Listener
+	{
+		void committed(File input, File target);
+
+		/**
+		 * The commit of the file's group failed with <code>e</code>, so
+		 * <code>target</code> may still hold the old file, and if it
+		 * doesn't, the new one may not be durable.
+		 */
+		void failed(File input, File target, IOException e);
+	}
+
+	/**
+	 * A file waiting for its group to be committed.
+	 */
+	private static class Replacement
+	{
+		final File input;
+		File temp;
+		final File target;
+
+		Replacement(File input, File temp, File target)
+		{
+			this.input = input;
+			this.temp = temp;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * @param checkpointFile checkpoint to resume from and append to, or
+	 *            <code>null</code> for none.
+	 * @param groupSize number of files per group.
+	 */
+	public GroupCommit(File checkpointFile, int groupSize, Listener listener) throws IOException
+	{
+		this.groupSize = groupSize;
+		this.listener = listener;
+
+		if (checkpointFile == null)
+		{
+			checkpoint = null;
+			previouslyDone = Collections.emptySet();
+			return;
+		}
+
+		previouslyDone = checkpointFile.exists() ? load(checkpointFile) : new HashSet<String>();
+		checkpoint = FileChannel.open(	checkpointFile.toPath(),
+										StandardOpenOption.CREATE,
+										StandardOpenOption.WRITE,
+										StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Reads the completed lines of a checkpoint. A line without its newline
+	 * was cut short by a crash and is ignored.
+	 */
+	private static Set<String> load(File checkpointFile) throws IOException
+	{
+		String text = new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.UTF_8);
+		Set<String> done = new HashSet<String>();
+		int start = 0;
+		int end;
+		while ((end = text.indexOf('\n', start)) >= 0)
+		{
+			if (end > start)
+			{
+				done.add(text.substring(start, end));
+			}
+			start = end + 1;
+		}
+		return done;
+	}
+
+	/**
+	 * Returns <code>true</code> if a previous run recorded <code>input</code>
+	 * as finished.
+	 */
+	public boolean isDone(File input)
+	{
+		return previouslyDone.contains(input.getAbsolutePath());
+	}
+
+	/**
+	 * Forces a file's contents to disk.
+	 */
+	public static void sync(File file) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try
+		{
+			channel.force(true);
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	private static void syncDirectory(File directory)
+	{
+		/*
+		 * Not every platform lets a directory be opened, Windows being the
+		 * usual exception; there the rename is as durable as it gets.
+		 */
+		try
+		{
+			FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try
+			{
+				channel.force(true);
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	/**
+	 * Records that <code>input</code>'s replacement has been written to
+	 * <code>temp</code>, to be renamed over <code>target</code> when the
+	 * group commits, committing the group if it's full. From here on the
+	 * temporary file belongs to this object, which deletes it if the
+	 * commit fails. Either way the outcome goes to the listener rather than
+	 * the caller.
+	 */
+	public void completed(File input, File temp, File target)
+	{
+		List<Replacement> group;
+		synchronized (this)
+		{
+			pending.add(new Replacement(input, temp, target));
+			if (pending.size() < groupSize)
+			{
+				return;
+			}
+			group = pending;
+			pending = new ArrayList<Replacement>();
+		}
+		commit(group);
+	}
+
+	private void commit(List<Replacement> group)
+	{
+		if (group.isEmpty())
+		{
+			return;
+		}
+
+		synchronized (commitLock)
+		{
+			IOException failure = null;
+			try
+			{
+				for (Replacement replacement : group)
+				{
+					sync(replacement.temp);
+				}
+
+				Set<File> directories = new LinkedHashSet<File>();
+				for (Replacement replacement : group)
+				{
+					Files.move(	replacement.temp.toPath(),
+								replacement.target.toPath(),
+								StandardCopyOption.ATOMIC_MOVE);
+					replacement.temp = null;
+					directories.add(replacement.target.getAbsoluteFile().getParentFile());
+				}
+				for (File directory : directories)
+				{
+					syncDirectory(directory);
+				}
+
+				if (checkpoint != null)
+				{
+					StringBuilder lines = new StringBuilder();
+					for (Replacement replacement : group)
+					{
+						lines.append(replacement.input.getAbsolutePath()).append('\n');
+					}
+					ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+					while (bytes.hasRemaining())
+					{
+						checkpoint.write(bytes);
+					}
+					checkpoint.force(false);
+				}
+			}
+			catch (IOException e)
+			{
+				failure = new IOException("Couldn't commit a group of " + group.size() + " files: " + e, e);
+			}
+			finally
+			{
+				for (Replacement replacement : group)
+				{
+					if (replacement.temp != null)
+					{
+						replacement.temp.delete();
+					}
+				}
+			}
+
+			/*
+			 * A failure can come after some of the renames, but without
+			 * the checkpoint entries those aren't known to be durable, so
+			 * the whole group counts as failed.
+			 */
+			synchronized (this)
+			{
+				if (failure == null)
+				{
+					commits++;
+				}
+				else
+				{
+					failures += group.size();
+				}
+			}
+			for (Replacement replacement : group)
+			{
+				if (failure == null)
+				{
+					listener.committed(replacement.input, replacement.target);
+				}
+				else
+				{
+					listener.failed(replacement.input, replacement.target, failure);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of groups committed so far.
+	 */
+	public synchronized long getCommits()
+	{
+		return commits;
+	}
+
+	/**
+	 * Returns the number of files whose group failed to commit.
+	 */
+	public synchronized long getFailures()
+	{
+		return failures;
+	}
+
+	/**
+	 * Commits the last, partial, group and closes the checkpoint.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		List<Replacement> group;
+		synchronized (this)
+		{
+			group = pending;
+			pending = new ArrayList<Replacement>();
+		}
+		try
+		{
+			commit(group);
+		}
+		finally
+		{
+			if (checkpoint != null)
+			{
+				checkpoint.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+
+/**
+ * Returns the image metadata of each image in a reader's input, one at a
+ * time, in a single forward pass.
+ *
+ * The reader's input should be set with <code>seekForwardOnly</code> so it
+ * can discard what it has already read. The number of images is never
+ * asked for up front, since that can mean reading the whole stream:
+ * <code>getNumImages(false)</code> is used only if the reader already knows,
+ * and otherwise iteration ends at the first index the reader rejects.
+ */
+public class ImageMetadataIterator
+{
+	private final ImageReader reader;
+	private int nextIndex;
+	private boolean fetched;
+	private boolean finished;
+	private IIOMetadata metadata;
+
+	public ImageMetadataIterator(ImageReader reader)
+	{
+		this.reader = reader;
+	}
+
+	/**
+	 * Returns <code>true</code> if there's another image, reading its
+	 * metadata if so.
+	 */
+	public boolean hasNext() throws IOException
+	{
+		if (fetched)
+		{
+			return true;
+		}
+		if (finished)
+		{
+			return false;
+		}
+
+		int count = reader.getNumImages(false);
+		if (count >= 0 && nextIndex >= count)
+		{
+			finished = true;
+			return false;
+		}
+
+		try
+		{
+			metadata = PhaseMetrics.getImageMetadata(reader, nextIndex);
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			/*
+			 * A file without even one image is an error, as it is when
+			 * only the first image is read.
+			 */
+			if (nextIndex == 0)
+			{
+				throw e;
+			}
+			finished = true;
+			return false;
+		}
+
+		fetched = true;
+		return true;
+	}
+
+	/**
+	 * Returns the metadata read by {@link #hasNext()}, which may be
+	 * <code>null</code> if the reader has none for the image.
+	 */
+	public IIOMetadata next() throws IOException
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+		fetched = false;
+		nextIndex++;
+		IIOMetadata result = metadata;
+		metadata = null;
+		return result;
+	}
+
+	/**
+	 * Returns the index of the image most recently returned by
+	 * {@link #next()}.
+	 */
+	public int getIndex()
+	{
+		return nextIndex - 1;
+	}
+}
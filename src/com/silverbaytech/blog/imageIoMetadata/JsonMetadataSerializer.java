@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+
+/**
+ * Writes metadata as JSON Lines: one object per file, on a single line.
+ *
+ * <pre>
+ * {"file":path,"name":name,"readers":[
+ *   {"class":name,"image":[{"format":name,"root":node}],"stream":[...]}],
+ *  "error":message}
+ * node := {"name":name,"attributes":{...},"value":text,"children":[node...]}
+ * </pre>
+ *
+ * Members with no content are omitted. A file that went over its
+ * {@link ReadBudget} has <code>"budgetExceeded":reason</code> in place of
+ * <code>"error"</code>.
+ */
+public class JsonMetadataSerializer extends MetadataSerializer
+{
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Output state of one open metadata element.
+	 */
+	private static class Frame
+	{
+		boolean attributesOpen;
+		int children;
+	}
+
+	private final Deque<Frame> elements = new ArrayDeque<Frame>();
+	private boolean inFile;
+	private boolean inReader;
+	private boolean inMetadata;
+	private boolean inImages;
+	private boolean inFormat;
+	private int readers;
+	private int metadataFormats;
+
+	public JsonMetadataSerializer(PrintStream out)
+	{
+		super(out);
+	}
+
+	/**
+	 * Appends <code>text</code> as a quoted JSON string.
+	 */
+	static void appendString(StringBuilder buffer, String text)
+	{
+		buffer.append('"');
+		int length = text.length();
+		for (int i = 0; i < length; i++)
+		{
+			char c = text.charAt(i);
+			switch (c)
+			{
+			case '"':
+				buffer.append("\\\"");
+				break;
+			case '\\':
+				buffer.append("\\\\");
+				break;
+			case '\n':
+				buffer.append("\\n");
+				break;
+			case '\r':
+				buffer.append("\\r");
+				break;
+			case '\t':
+				buffer.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+				{
+					buffer.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+				}
+				else
+				{
+					buffer.append(c);
+				}
+				break;
+			}
+		}
+		buffer.append('"');
+	}
+
+	private void string(String text)
+	{
+		appendString(buffer, text);
+	}
+
+	private void closeAttributes(Frame frame)
+	{
+		if (frame.attributesOpen)
+		{
+			buffer.append('}');
+			frame.attributesOpen = false;
+		}
+	}
+
+	@Override
+	public void startFile(File file)
+	{
+		buffer.append("{\"file\":");
+		string(file.getAbsolutePath());
+		buffer.append(",\"name\":");
+		string(file.getName());
+		inFile = true;
+		readers = 0;
+	}
+
+	@Override
+	public void startReader(String className)
+	{
+		buffer.append(readers++ == 0 ? ",\"readers\":[" : ",");
+		buffer.append("{\"class\":");
+		string(className);
+		inReader = true;
+	}
+
+	@Override
+	public void startMetadata(String kind, int imageIndex)
+	{
+		/*
+		 * Numbered images go in an "images" array, one array of formats per
+		 * image, since they arrive one at a time and a key can't repeat.
+		 */
+		if (imageIndex < 0)
+		{
+			closeImages();
+			buffer.append(",\"").append(kind.toLowerCase(Locale.ENGLISH)).append("\":[");
+		}
+		else
+		{
+			buffer.append(inImages ? ",[" : ",\"images\":[[");
+			inImages = true;
+		}
+		inMetadata = true;
+		metadataFormats = 0;
+	}
+
+	@Override
+	public void startFormat(String formatName)
+	{
+		if (metadataFormats++ > 0)
+		{
+			buffer.append(',');
+		}
+		buffer.append("{\"format\":");
+		string(formatName);
+		buffer.append(",\"root\":");
+		inFormat = true;
+	}
+
+	@Override
+	public void startElement(String name)
+	{
+		Frame parent = elements.peek();
+		if (parent != null)
+		{
+			closeAttributes(parent);
+			buffer.append(parent.children++ == 0 ? ",\"children\":[" : ",");
+		}
+		buffer.append("{\"name\":");
+		string(name);
+		elements.push(new Frame());
+	}
+
+	@Override
+	public void attribute(String name, String value)
+	{
+		Frame frame = elements.peek();
+		if (!frame.attributesOpen)
+		{
+			buffer.append(",\"attributes\":{");
+			frame.attributesOpen = true;
+		}
+		else
+		{
+			buffer.append(',');
+		}
+		string(name);
+		buffer.append(':');
+		string(value);
+	}
+
+	@Override
+	public void value(String value)
+	{
+		if (value == null || value.length() == 0)
+		{
+			return;
+		}
+
+		closeAttributes(elements.peek());
+		buffer.append(",\"value\":");
+		string(value);
+	}
+
+	@Override
+	public void endElement(String name)
+	{
+		Frame frame = elements.pop();
+		closeAttributes(frame);
+		if (frame.children > 0)
+		{
+			buffer.append(']');
+		}
+		buffer.append('}');
+		flushIfFull();
+	}
+
+	@Override
+	public void endFormat()
+	{
+		if (elements.isEmpty() && buffer.charAt(buffer.length() - 1) == ':')
+		{
+			buffer.append("null");
+		}
+		buffer.append('}');
+		inFormat = false;
+	}
+
+	@Override
+	public void endMetadata()
+	{
+		buffer.append(']');
+		inMetadata = false;
+	}
+
+	private void closeImages()
+	{
+		if (inImages)
+		{
+			buffer.append(']');
+			inImages = false;
+		}
+	}
+
+	@Override
+	public void endReader()
+	{
+		closeImages();
+		buffer.append('}');
+		inReader = false;
+	}
+
+	private void closeFile()
+	{
+		if (readers > 0)
+		{
+			buffer.append(']');
+		}
+		buffer.append("}\n");
+		inFile = false;
+		flush();
+	}
+
+	@Override
+	public void endFile()
+	{
+		closeFile();
+	}
+
+	@Override
+	public void failFile(File file, Exception e)
+	{
+		if (!inFile)
+		{
+			startFile(file);
+		}
+		while (!elements.isEmpty())
+		{
+			endElement(null);
+		}
+		if (inFormat)
+		{
+			endFormat();
+		}
+		if (inMetadata)
+		{
+			endMetadata();
+		}
+		if (inReader)
+		{
+			endReader();
+		}
+		if (readers > 0)
+		{
+			buffer.append(']');
+			readers = 0;
+		}
+		if (e instanceof ReadBudget.BudgetExceededException)
+		{
+			buffer.append(",\"budgetExceeded\":");
+			string(e.getMessage());
+		}
+		else
+		{
+			buffer.append(",\"error\":");
+			string(String.valueOf(e));
+		}
+		buffer.append("}\n");
+		inFile = false;
+		flush();
+	}
+}
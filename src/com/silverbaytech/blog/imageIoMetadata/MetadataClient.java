@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.silverbaytech.blog.imageIoMetadata.MetadataDaemon.ChannelInputStream;
+import com.silverbaytech.blog.imageIoMetadata.MetadataDaemon.ChannelOutputStream;
+
+/**
+ * Sends requests to a {@link MetadataDaemon} and prints the responses. All
+ * the requests are sent on one connection without waiting for answers, so
+ * the daemon can work on several files at once.
+ *
+ * Directories are expanded to the files directly inside them. The exit
+ * status is 1 if any request failed.
+ *
+ * It connects to the daemon's default socket unless told otherwise; over
+ * TCP it first authenticates with the daemon's token file.
+ */
+public class MetadataClient
+{
+	private static void addFiles(List<File> files, File fileOrDirectory)
+	{
+		if (!fileOrDirectory.isDirectory())
+		{
+			files.add(fileOrDirectory.getAbsoluteFile());
+			return;
+		}
+
+		File[] children = fileOrDirectory.listFiles();
+		if (children != null)
+		{
+			Arrays.sort(children);
+			for (File child : children)
+			{
+				if (child.isFile())
+				{
+					files.add(child.getAbsoluteFile());
+				}
+			}
+		}
+	}
+
+	private static void checkField(String field)
+	{
+		if (field.indexOf('\t') >= 0 || field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0)
+		{
+			throw new IllegalArgumentException("Can't send '" + field + "': it contains a tab or line break");
+		}
+	}
+
+	private static String createRequest(String... fields)
+	{
+		StringBuilder request = new StringBuilder();
+		for (String field : fields)
+		{
+			checkField(field);
+			if (request.length() > 0)
+			{
+				request.append('\t');
+			}
+			request.append(field);
+		}
+		return request.append('\n').toString();
+	}
+
+	/**
+	 * Reads a line ended by a newline alone. Tool output can contain
+	 * carriage returns, from binary metadata, that aren't line breaks.
+	 */
+	private static String readLine(InputStream input) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = input.read()) != '\n')
+		{
+			if (b < 0)
+			{
+				return line.size() == 0 ? null : line.toString(MetadataDaemon.UTF8.name());
+			}
+			line.write(b);
+		}
+		return line.toString(MetadataDaemon.UTF8.name());
+	}
+
+	/**
+	 * Reads one response, printing its body to <code>out</code>. Returns the
+	 * error message, or <code>null</code> if the request succeeded.
+	 */
+	private static String readResponse(InputStream input, PrintStream out) throws IOException
+	{
+		String status = readLine(input);
+		if (status == null)
+		{
+			throw new IOException("Daemon closed the connection");
+		}
+
+		String line;
+		while ((line = readLine(input)) != null && !line.equals("."))
+		{
+			out.println(line.startsWith(".") ? line.substring(1) : line);
+		}
+		if (line == null)
+		{
+			throw new IOException("Daemon closed the connection mid-response");
+		}
+
+		return status.equals("OK") ? null : status.substring(Math.min(4, status.length()));
+	}
+
+	/**
+	 * Sends <code>requests</code> and prints the responses as they arrive.
+	 * Returns the number of requests that failed.
+	 */
+	static int send(SocketChannel channel, final List<String> requests, PrintStream out)
+		throws IOException, InterruptedException
+	{
+		final OutputStream output = new BufferedOutputStream(new ChannelOutputStream(channel));
+		final SocketChannel connection = channel;
+		ExecutorService sender = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<Void> sent = sender.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws IOException
+				{
+					for (String request : requests)
+					{
+						output.write(request.getBytes(MetadataDaemon.UTF8));
+					}
+					output.flush();
+					connection.shutdownOutput();
+					return null;
+				}
+			});
+
+			InputStream input = new BufferedInputStream(new ChannelInputStream(channel));
+			int failures = 0;
+			for (int i = 0; i < requests.size(); i++)
+			{
+				String error = readResponse(input, out);
+				if (error != null)
+				{
+					failures++;
+					System.err.println(requests.get(i).trim().replace('\t', ' ') + ": " + error);
+				}
+			}
+
+			try
+			{
+				sent.get();
+			}
+			catch (ExecutionException e)
+			{
+				throw new IOException(e.getCause());
+			}
+			return failures;
+		}
+		finally
+		{
+			sender.shutdownNow();
+		}
+	}
+
+	private static void usage()
+	{
+		System.out.println("Usage: MetadataClient [-socket file | -tcp -tokenFile file [-port n]]");
+		System.out.println("           [-format text|xml|json] [-allImages] [-patch] command [arguments]");
+		System.out.println("    probe fileOrDirectory [...]");
+		System.out.println("    dump fileOrDirectory [...]");
+		System.out.println("    change newResolutionDPI inputFile outputFile");
+		System.out.println("    ping | shutdown");
+	}
+
+	public static void main(String[] args)
+	{
+		File socketFile = null;
+		boolean tcp = false;
+		int port = MetadataDaemon.DEFAULT_PORT;
+		File tokenFile = null;
+		MetadataSerializer.Format format = MetadataSerializer.Format.TEXT;
+		boolean allImages = false;
+		boolean patch = false;
+
+		int first = 0;
+		while (first + 1 < args.length && args[first].startsWith("-"))
+		{
+			String flag = args[first++];
+			if (flag.equals("-socket"))
+			{
+				socketFile = new File(args[first++]);
+			}
+			else if (flag.equals("-tcp"))
+			{
+				tcp = true;
+			}
+			else if (flag.equals("-port"))
+			{
+				tcp = true;
+				port = Integer.parseInt(args[first++]);
+			}
+			else if (flag.equals("-tokenFile"))
+			{
+				tokenFile = new File(args[first++]);
+			}
+			else if (flag.equals("-format"))
+			{
+				format = MetadataSerializer.Format.valueOf(args[first++].toUpperCase(Locale.ENGLISH));
+			}
+			else if (flag.equals("-allImages"))
+			{
+				allImages = true;
+			}
+			else if (flag.equals("-patch"))
+			{
+				patch = true;
+			}
+			else
+			{
+				usage();
+				return;
+			}
+		}
+
+		if (first >= args.length || (tcp && (socketFile != null || tokenFile == null)))
+		{
+			usage();
+			return;
+		}
+
+		String command = args[first++].toLowerCase(Locale.ENGLISH);
+		List<String> arguments = Arrays.asList(args).subList(first, args.length);
+		List<String> requests = new ArrayList<String>();
+
+		if (command.equals("probe") || command.equals("dump"))
+		{
+			List<File> files = new ArrayList<File>();
+			for (String argument : arguments)
+			{
+				addFiles(files, new File(argument));
+			}
+			for (File file : files)
+			{
+				requests.add(command.equals("probe") ? createRequest("PROBE", file.getPath())
+					: createRequest(	"DUMP",
+										file.getPath(),
+										format.name().toLowerCase(Locale.ENGLISH),
+										allImages ? "all" : "first"));
+			}
+		}
+		else if (command.equals("change") && arguments.size() == 3)
+		{
+			requests.add(createRequest(	"CHANGE",
+										arguments.get(0),
+										new File(arguments.get(1)).getAbsolutePath(),
+										new File(arguments.get(2)).getAbsolutePath(),
+										patch ? "patch" : "reencode"));
+		}
+		else if ((command.equals("ping") || command.equals("shutdown")) && arguments.isEmpty())
+		{
+			requests.add(createRequest(command.toUpperCase(Locale.ENGLISH)));
+		}
+		else
+		{
+			usage();
+			return;
+		}
+
+		int failures;
+		try
+		{
+			if (tcp)
+			{
+				requests.add(0, createRequest("AUTH", MetadataDaemon.readToken(tokenFile, false)));
+			}
+			else if (socketFile == null)
+			{
+				socketFile = MetadataDaemon.getDefaultSocketFile();
+			}
+
+			SocketChannel channel = MetadataDaemon.connect(MetadataDaemon.getAddress(tcp ? null : socketFile, port));
+			try
+			{
+				boolean dump = command.equals("dump");
+				if (dump)
+				{
+					format.beginDocument(System.out);
+				}
+				failures = send(channel, requests, System.out);
+				if (dump)
+				{
+					format.endDocument(System.out);
+				}
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			failures = 1;
+		}
+
+		System.out.flush();
+		if (failures > 0)
+		{
+			System.exit(1);
+		}
+	}
+}
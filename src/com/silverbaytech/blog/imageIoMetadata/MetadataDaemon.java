@@ -0,0 +1,1082 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.silverbaytech.blog.imageIoMetadata.BatchProcessor.ReportedException;
+
+/**
+ * A long-running server for the metadata tools, so scripts that handle one
+ * file at a time don't pay for JVM startup and the plugin scan on every
+ * call. {@link MetadataClient} is the matching client.
+ *
+ * By default it listens on a Unix domain socket (Java 16 and later) that
+ * only its own user can open, and on Linux and macOS it also checks that
+ * each connection comes from that user. Listening on a loopback TCP port,
+ * which any local user can reach, has to be asked for with
+ * <code>-tcp</code>, and every connection must then start with
+ * <code>AUTH</code> and the contents of the daemon's token file.
+ * <code>CHANGE</code> is refused unless the daemon was given an output root,
+ * and then only writes below it.
+ *
+ * Requests are single lines of tab-separated fields:
+ *
+ * <pre>
+ * PROBE    path                          as GetImageResolution
+ * DUMP     path [text|xml|json [all]]    as DumpImageMetadata
+ * CHANGE   dpi input output [patch]      as ChangeImageResolution
+ * AUTH     token                         first, over TCP
+ * PING
+ * SHUTDOWN
+ * </pre>
+ *
+ * Each response is a status line, <code>OK</code> or <code>ERR</code>
+ * followed by a message, then the tool's output, then a line holding just
+ * a period. Output lines that start with a period get a second one.
+ *
+ * Requests may be pipelined: a client can send any number before reading
+ * the responses. The requests on a connection run in parallel on the
+ * worker threads, and their responses are sent in request order.
+ *
+ * Before accepting connections the daemon spends a while running each
+ * kind of request against small images written by every installed writer,
+ * so the readers and writers are loaded and their hot paths compiled
+ * before real requests arrive.
+ */
+public class MetadataDaemon
+{
+	static final int DEFAULT_PORT = 7345;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+	private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+
+	/**
+	 * Number of requests on one connection that may be in progress or
+	 * waiting to be sent before the daemon stops reading more.
+	 */
+	private static final int MAX_PIPELINED = 64;
+
+	private static final Response END_OF_REQUESTS = new Response(true, null, null);
+
+	/**
+	 * Reads from a blocking channel. The streams from
+	 * <code>Channels.newInputStream</code> and <code>newOutputStream</code>
+	 * lock the channel for each call, so one connection couldn't be read and
+	 * written from two threads at once.
+	 */
+	static class ChannelInputStream extends InputStream
+	{
+		private final SocketChannel channel;
+
+		ChannelInputStream(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			return channel.read(ByteBuffer.wrap(b, off, len));
+		}
+	}
+
+	/**
+	 * Writes to a blocking channel; see {@link ChannelInputStream}.
+	 */
+	static class ChannelOutputStream extends OutputStream
+	{
+		private final SocketChannel channel;
+
+		ChannelOutputStream(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+		}
+	}
+
+	static class Response
+	{
+		final boolean ok;
+		final String message;
+		final byte[] body;
+
+		Response(boolean ok, String message, byte[] body)
+		{
+			this.ok = ok;
+			this.message = message;
+			this.body = body;
+		}
+	}
+
+	private final ServerSocketChannel server;
+	private final ExecutorService workers;
+	private final ExecutorService connections = Executors.newCachedThreadPool();
+	private volatile boolean stopping;
+	private String token;
+	private File outputRoot;
+	private UserPrincipal owner;
+
+	public MetadataDaemon(ServerSocketChannel server, int threads)
+	{
+		this.server = server;
+		this.workers = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Requires every connection to start with <code>AUTH</code> and
+	 * <code>token</code>.
+	 */
+	public void setToken(String token)
+	{
+		this.token = token;
+	}
+
+	/**
+	 * Allows <code>CHANGE</code>, writing only below <code>outputRoot</code>.
+	 */
+	public void setOutputRoot(File outputRoot) throws IOException
+	{
+		this.outputRoot = outputRoot.getCanonicalFile();
+	}
+
+	/**
+	 * Only accepts connections from <code>owner</code>, where the platform
+	 * can say who's connecting.
+	 */
+	public void setOwner(UserPrincipal owner)
+	{
+		this.owner = owner;
+	}
+
+	/**
+	 * Returns the socket used when none is given: one in a directory in
+	 * the user's home directory that only they can get into.
+	 */
+	static File getDefaultSocketFile()
+	{
+		return new File(new File(System.getProperty("user.home"), ".imageIoMetadata"), "daemon.sock");
+	}
+
+	/**
+	 * Restricts <code>path</code> to its owner, where the file system has
+	 * POSIX permissions.
+	 */
+	private static void restrict(Path path, Set<PosixFilePermission> permissions) throws IOException
+	{
+		try
+		{
+			Files.setPosixFilePermissions(path, permissions);
+		}
+		catch (UnsupportedOperationException e)
+		{
+		}
+	}
+
+	/**
+	 * Returns the token in <code>tokenFile</code>, first writing a new
+	 * random one, readable only by its owner, if the file doesn't exist.
+	 */
+	static String readToken(File tokenFile, boolean create) throws IOException
+	{
+		if (!tokenFile.exists() && create)
+		{
+			byte[] random = new byte[32];
+			new SecureRandom().nextBytes(random);
+			String token = MetadataStore.toHex(random);
+			Path path = tokenFile.toPath();
+			Files.write(path, new byte[0]);
+			restrict(path, OWNER_ONLY_FILE);
+			Files.write(path, token.getBytes(UTF8));
+			return token;
+		}
+
+		String token = new String(Files.readAllBytes(tokenFile.toPath()), UTF8).trim();
+		if (token.isEmpty())
+		{
+			throw new IOException(tokenFile + " is empty");
+		}
+		return token;
+	}
+
+	private static ProtocolFamily getUnixFamily()
+	{
+		try
+		{
+			return StandardProtocolFamily.valueOf("UNIX");
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IllegalArgumentException("Unix domain sockets require Java 16 or later");
+		}
+	}
+
+	/**
+	 * Returns the address of a Unix domain socket at <code>socketFile</code>
+	 * if it's given, otherwise of <code>port</code> on the loopback
+	 * interface.
+	 */
+	static SocketAddress getAddress(File socketFile, int port)
+	{
+		if (socketFile == null)
+		{
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		}
+
+		getUnixFamily();
+		try
+		{
+			return (SocketAddress)Class.forName("java.net.UnixDomainSocketAddress")
+				.getMethod("of", Path.class)
+				.invoke(null, socketFile.toPath());
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new IllegalArgumentException("Unix domain sockets require Java 16 or later");
+		}
+	}
+
+	/**
+	 * Calls <code>open(StandardProtocolFamily.UNIX)</code> on a channel
+	 * class, which only exists from Java 16 on.
+	 */
+	private static Object openUnix(Class<?> channelClass) throws IOException
+	{
+		try
+		{
+			return channelClass.getMethod("open", ProtocolFamily.class).invoke(null, getUnixFamily());
+		}
+		catch (InvocationTargetException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new IllegalArgumentException("Unix domain sockets require Java 16 or later");
+		}
+	}
+
+	/**
+	 * Opens a server channel listening at <code>address</code>, replacing a
+	 * socket file left behind by a daemon that didn't shut down cleanly.
+	 */
+	static ServerSocketChannel listen(SocketAddress address, File socketFile) throws IOException
+	{
+		ServerSocketChannel channel;
+		if (address instanceof InetSocketAddress)
+		{
+			channel = ServerSocketChannel.open();
+		}
+		else
+		{
+			File directory = socketFile.getAbsoluteFile().getParentFile();
+			if (socketFile.equals(getDefaultSocketFile()) && !directory.isDirectory())
+			{
+				Files.createDirectories(directory.toPath());
+				restrict(directory.toPath(), OWNER_ONLY_DIRECTORY);
+			}
+			Files.deleteIfExists(socketFile.toPath());
+			channel = (ServerSocketChannel)openUnix(ServerSocketChannel.class);
+		}
+		try
+		{
+			channel.bind(address);
+			if (socketFile != null)
+			{
+				restrict(socketFile.toPath(), OWNER_ONLY_FILE);
+			}
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Opens a channel connected to the daemon at <code>address</code>.
+	 */
+	static SocketChannel connect(SocketAddress address) throws IOException
+	{
+		SocketChannel channel = address instanceof InetSocketAddress ? SocketChannel.open()
+			: (SocketChannel)openUnix(SocketChannel.class);
+		try
+		{
+			channel.connect(address);
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Returns the user at the other end of a Unix domain socket, or
+	 * <code>null</code> if the platform can't tell. The option is in
+	 * <code>jdk.net</code> from Java 16 on.
+	 */
+	@SuppressWarnings("unchecked")
+	private static UserPrincipal getPeerUser(SocketChannel channel)
+	{
+		try
+		{
+			java.net.SocketOption<Object> option = (java.net.SocketOption<Object>)Class
+				.forName("jdk.net.ExtendedSocketOptions")
+				.getField("SO_PEERCRED")
+				.get(null);
+			if (!channel.supportedOptions().contains(option))
+			{
+				return null;
+			}
+			Object principal = channel.getOption(option);
+			return (UserPrincipal)principal.getClass().getMethod("user").invoke(principal);
+		}
+		catch (ReflectiveOperationException | IOException | RuntimeException e)
+		{
+			return null;
+		}
+	}
+
+	private boolean isOwner(SocketChannel channel)
+	{
+		if (owner == null)
+		{
+			return true;
+		}
+		UserPrincipal peer = getPeerUser(channel);
+		return peer == null || peer.getName().equals(owner.getName());
+	}
+
+	/**
+	 * Resolves a <code>CHANGE</code> output path, which must be below the
+	 * output root.
+	 */
+	private static File resolveOutput(String path, File root) throws IOException
+	{
+		if (root == null)
+		{
+			throw new IllegalArgumentException("CHANGE is disabled; start the daemon with -outputRoot dir");
+		}
+		File output = new File(path);
+		if (!output.isAbsolute())
+		{
+			output = new File(root, path);
+		}
+		output = output.getCanonicalFile();
+		if (!output.toPath().startsWith(root.toPath()) || output.equals(root))
+		{
+			throw new IllegalArgumentException(path + " isn't below " + root);
+		}
+		return output;
+	}
+
+	private static void requireFields(String[] fields, int min, int max)
+	{
+		if (fields.length < min || fields.length > max)
+		{
+			throw new IllegalArgumentException(fields[0] + " takes " + (min - 1)
+												+ (max > min ? " to " + (max - 1) : "") + " arguments");
+		}
+	}
+
+	private void executeCommand(String[] fields, PrintStream out, File root) throws Exception
+	{
+		String command = fields[0].toUpperCase(Locale.ENGLISH);
+		switch (command)
+		{
+		case "PING":
+			requireFields(fields, 1, 1);
+			return;
+		case "PROBE":
+			requireFields(fields, 2, 2);
+			GetImageResolution.processFile(out, new File(fields[1]));
+			return;
+		case "DUMP":
+			requireFields(fields, 2, 4);
+			MetadataSerializer.Format format = MetadataSerializer.Format.TEXT;
+			if (fields.length > 2)
+			{
+				format = MetadataSerializer.Format.valueOf(fields[2].toUpperCase(Locale.ENGLISH));
+			}
+			boolean allImages = fields.length > 3 && fields[3].equalsIgnoreCase("all");
+			DumpImageMetadata.processFile(out, new File(fields[1]), format, allImages);
+			return;
+		case "CHANGE":
+			requireFields(fields, 4, 5);
+			File input = new File(fields[2]);
+			File output = resolveOutput(fields[3], root);
+			boolean patch = fields.length > 4 && fields[4].equalsIgnoreCase("patch");
+			ChangeImageResolution.changeResolution(input, Double.parseDouble(fields[1]), output, patch);
+			out.println("Changed " + input.getPath());
+			return;
+		case "SHUTDOWN":
+			requireFields(fields, 1, 1);
+			stop();
+			return;
+		default:
+			throw new IllegalArgumentException("Unknown command " + fields[0]);
+		}
+	}
+
+	/**
+	 * Runs one request line, capturing everything it prints.
+	 */
+	Response execute(String line)
+	{
+		return execute(line, outputRoot);
+	}
+
+	private Response execute(String line, File root)
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		PrintStream out;
+		try
+		{
+			out = new PrintStream(body, false, UTF8.name());
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+
+		try
+		{
+			executeCommand(line.split("\t", -1), out, root);
+			out.flush();
+			return new Response(true, null, body.toByteArray());
+		}
+		catch (Exception e)
+		{
+			/*
+			 * The dump has already described the failure in its output.
+			 */
+			Throwable cause = e instanceof ReportedException ? e.getCause() : e;
+			out.flush();
+			return new Response(false, String.valueOf(cause), body.toByteArray());
+		}
+	}
+
+	private static void writeResponse(OutputStream output, Response response) throws IOException
+	{
+		StringBuilder text = new StringBuilder();
+		text.append(response.ok ? "OK" : "ERR " + response.message.replace('\n', ' ')).append('\n');
+
+		String body = new String(response.body, UTF8);
+		int start = 0;
+		while (start < body.length())
+		{
+			int end = body.indexOf('\n', start);
+			if (end < 0)
+			{
+				end = body.length();
+			}
+			if (body.startsWith(".", start))
+			{
+				text.append('.');
+			}
+			text.append(body, start, end).append('\n');
+			start = end + 1;
+		}
+		text.append(".\n");
+
+		output.write(text.toString().getBytes(UTF8));
+	}
+
+	/**
+	 * Sends the responses for a connection in request order, flushing
+	 * whenever it catches up with the requests.
+	 */
+	private static void sendResponses(SocketChannel channel, BlockingQueue<Future<Response>> responses)
+		throws IOException, InterruptedException
+	{
+		OutputStream output = new BufferedOutputStream(new ChannelOutputStream(channel));
+		while (true)
+		{
+			Future<Response> next = responses.poll();
+			if (next == null)
+			{
+				output.flush();
+				next = responses.take();
+			}
+
+			Response response;
+			try
+			{
+				response = next.get();
+			}
+			catch (ExecutionException e)
+			{
+				response = new Response(false, String.valueOf(e.getCause()), new byte[0]);
+			}
+			if (response == END_OF_REQUESTS)
+			{
+				output.flush();
+				return;
+			}
+			writeResponse(output, response);
+		}
+	}
+
+	private static Future<Response> completed(Response response)
+	{
+		FutureTask<Response> future = new FutureTask<Response>(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+			}
+		}, response);
+		future.run();
+		return future;
+	}
+
+	/**
+	 * Queues a response for the sender, waiting while the queue is full.
+	 * Returns <code>false</code> if the sender has stopped, in which case
+	 * nothing will ever take it.
+	 */
+	private static boolean enqueue(BlockingQueue<Future<Response>> responses, Future<Response> response,
+		Future<?> sender) throws InterruptedException
+	{
+		while (!responses.offer(response, 100, TimeUnit.MILLISECONDS))
+		{
+			if (sender.isDone())
+			{
+				response.cancel(true);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the first line of a TCP connection against the token.
+	 */
+	private boolean authenticate(String line)
+	{
+		if (line == null || !line.startsWith("AUTH\t"))
+		{
+			return false;
+		}
+		return MessageDigest.isEqual(line.substring(5).getBytes(UTF8), token.getBytes(UTF8));
+	}
+
+	private void serve(final SocketChannel channel)
+	{
+		final BlockingQueue<Future<Response>> responses = new ArrayBlockingQueue<Future<Response>>(MAX_PIPELINED);
+		Future<?> sender = connections.submit(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws Exception
+			{
+				try
+				{
+					sendResponses(channel, responses);
+				}
+				catch (Exception e)
+				{
+					/*
+					 * Stops the reader too: nothing more can be answered.
+					 */
+					channel.close();
+					throw e;
+				}
+				return null;
+			}
+		});
+
+		try
+		{
+			BufferedReader input = new BufferedReader(new InputStreamReader(new ChannelInputStream(channel), UTF8));
+			boolean allowed = isOwner(channel);
+			if (allowed && token != null)
+			{
+				allowed = authenticate(input.readLine());
+			}
+			if (!allowed)
+			{
+				enqueue(responses, completed(new Response(false, "Not authorized", new byte[0])), sender);
+			}
+			else if (token != null && !enqueue(responses, completed(new Response(true, null, new byte[0])), sender))
+			{
+				return;
+			}
+
+			String line;
+			while (allowed && (line = input.readLine()) != null)
+			{
+				if (line.length() == 0)
+				{
+					continue;
+				}
+
+				final String request = line;
+				if (!enqueue(responses, workers.submit(new Callable<Response>()
+				{
+					@Override
+					public Response call()
+					{
+						return execute(request);
+					}
+				}), sender))
+				{
+					return;
+				}
+			}
+			if (enqueue(responses, completed(END_OF_REQUESTS), sender))
+			{
+				sender.get();
+			}
+		}
+		catch (Exception e)
+		{
+			sender.cancel(true);
+		}
+		finally
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Accepts connections until {@link #stop()} is called.
+	 */
+	public void run() throws IOException
+	{
+		try
+		{
+			while (!stopping)
+			{
+				final SocketChannel channel = server.accept();
+				connections.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						serve(channel);
+					}
+				});
+			}
+		}
+		catch (ClosedChannelException e)
+		{
+			if (!stopping)
+			{
+				throw e;
+			}
+		}
+		finally
+		{
+			connections.shutdown();
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * Stops accepting connections. Requests already received are still
+	 * answered.
+	 */
+	public void stop() throws IOException
+	{
+		stopping = true;
+		server.close();
+	}
+
+	/**
+	 * Writes a small image with each installed writer that will take one,
+	 * returning the files written.
+	 */
+	private static List<File> createSamples(File directory)
+	{
+		List<File> samples = new ArrayList<File>();
+		BufferedImage[] images = new BufferedImage[] {	new BufferedImage(64, 48, BufferedImage.TYPE_3BYTE_BGR),
+														new BufferedImage(64, 48, BufferedImage.TYPE_BYTE_GRAY),
+														new BufferedImage(64, 48, BufferedImage.TYPE_BYTE_BINARY) };
+
+		Iterator<ImageWriterSpi> spis = IIORegistry.getDefaultInstance().getServiceProviders(ImageWriterSpi.class,
+																							true);
+		while (spis.hasNext())
+		{
+			ImageWriterSpi spi = spis.next();
+			String[] suffixes = spi.getFileSuffixes();
+			if (suffixes == null || suffixes.length == 0)
+			{
+				continue;
+			}
+
+			File sample = new File(directory, "sample" + samples.size() + "." + suffixes[0]);
+			for (BufferedImage image : images)
+			{
+				if (writeSample(spi, image, sample))
+				{
+					samples.add(sample);
+					break;
+				}
+			}
+		}
+		return samples;
+	}
+
+	private static boolean writeSample(ImageWriterSpi spi, BufferedImage image, File sample)
+	{
+		if (!spi.canEncodeImage(image))
+		{
+			return false;
+		}
+
+		try
+		{
+			ImageWriter writer = spi.createWriterInstance();
+			ImageOutputStream stream = ImageIO.createImageOutputStream(sample);
+			try
+			{
+				writer.setOutput(stream);
+				writer.write(new IIOImage(image, null, null));
+			}
+			finally
+			{
+				stream.close();
+				writer.dispose();
+			}
+			return sample.length() > 0;
+		}
+		catch (Exception | LinkageError e)
+		{
+			/*
+			 * Some older plugins can't even be loaded on current JREs.
+			 */
+			sample.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Runs each kind of request over sample images, and over the files in
+	 * <code>sampleDirectory</code> if one is given, for about
+	 * <code>millis</code> milliseconds.
+	 */
+	public void warmUp(long millis, File sampleDirectory) throws IOException
+	{
+		File directory = Files.createTempDirectory("metadataDaemon").toFile();
+		try
+		{
+			List<String> requests = new ArrayList<String>();
+			List<File> samples = createSamples(directory);
+			if (sampleDirectory != null)
+			{
+				File[] files = sampleDirectory.listFiles();
+				if (files != null)
+				{
+					for (File file : files)
+					{
+						if (file.isFile())
+						{
+							samples.add(file);
+						}
+					}
+				}
+			}
+
+			for (File sample : samples)
+			{
+				String path = sample.getAbsolutePath();
+				requests.add("PROBE\t" + path);
+				requests.add("DUMP\t" + path);
+				requests.add("DUMP\t" + path + "\tjson\tall");
+				if (sample.getParentFile().equals(directory))
+				{
+					String suffix = path.substring(path.lastIndexOf('.'));
+					requests.add("CHANGE\t150\t" + path + "\tchanged" + suffix);
+				}
+			}
+
+			long start = System.nanoTime();
+			long deadline = start + millis * 1000000L;
+			long count = 0;
+			do
+			{
+				for (String request : requests)
+				{
+					execute(request, directory.getCanonicalFile());
+					count++;
+				}
+			}
+			while (System.nanoTime() < deadline && !requests.isEmpty());
+
+			System.err.println("Warm-up: " + count + " requests on " + samples.size() + " samples in "
+								+ (System.nanoTime() - start) / 1000000 + " ms");
+		}
+		finally
+		{
+			File[] files = directory.listFiles();
+			if (files != null)
+			{
+				for (File file : files)
+				{
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+
+	private static String requireValue(String[] args, int i)
+	{
+		if (i + 1 >= args.length)
+		{
+			throw new IllegalArgumentException(args[i] + " requires a value");
+		}
+		return args[i + 1];
+	}
+
+	public static void main(String[] args)
+	{
+		File socketFile = null;
+		boolean tcp = false;
+		Integer port = null;
+		File portFile = null;
+		File tokenFile = null;
+		File outputRoot = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long warmupMillis = 2000;
+		File warmupFiles = null;
+		FileChannelStreams.Mode streams = FileChannelStreams.getDefaultMode();
+		File rankingFile = null;
+
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-socket"))
+				{
+					socketFile = new File(requireValue(args, i++));
+				}
+				else if (args[i].equals("-tcp"))
+				{
+					tcp = true;
+				}
+				else if (args[i].equals("-port"))
+				{
+					port = Integer.valueOf(requireValue(args, i++));
+				}
+				else if (args[i].equals("-tokenFile"))
+				{
+					tokenFile = new File(requireValue(args, i++));
+				}
+				else if (args[i].equals("-outputRoot"))
+				{
+					outputRoot = new File(requireValue(args, i++));
+				}
+				else if (args[i].equals("-portFile"))
+				{
+					portFile = new File(requireValue(args, i++));
+				}
+				else if (args[i].equals("-threads"))
+				{
+					threads = Integer.parseInt(requireValue(args, i++));
+				}
+				else if (args[i].equals("-warmup"))
+				{
+					warmupMillis = Long.parseLong(requireValue(args, i++));
+				}
+				else if (args[i].equals("-warmupFiles"))
+				{
+					warmupFiles = new File(requireValue(args, i++));
+				}
+				else if (args[i].equals("-streams"))
+				{
+					streams = FileChannelStreams.parseMode(requireValue(args, i++));
+				}
+				else if (args[i].equals("-ranking"))
+				{
+					rankingFile = new File(requireValue(args, i++));
+				}
+				else
+				{
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+				}
+			}
+
+			if (tcp && (socketFile != null || tokenFile == null))
+			{
+				throw new IllegalArgumentException("-tcp requires -tokenFile and can't be used with -socket");
+			}
+			if (!tcp && (port != null || portFile != null || tokenFile != null))
+			{
+				throw new IllegalArgumentException("-port, -portFile and -tokenFile are only used with -tcp");
+			}
+			if (outputRoot != null && !outputRoot.isDirectory())
+			{
+				throw new IllegalArgumentException(outputRoot + " isn't a directory");
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.out.println(e.getMessage());
+			System.out.println("Usage: MetadataDaemon [-socket file | -tcp -tokenFile file [-port n] [-portFile file]]");
+			System.out.println("           [-outputRoot dir] [-threads n] [-warmup ms] [-warmupFiles dir]");
+			System.out.println("           [-streams mapped|default] [-ranking file]");
+			System.out.println("    the socket defaults to " + getDefaultSocketFile());
+			System.out.println("    -tokenFile is created with a new token if it doesn't exist");
+			System.out.println("    CHANGE is only allowed with -outputRoot, and only writes below it");
+			return;
+		}
+
+		try
+		{
+			FileChannelStreams.install(streams);
+			if (rankingFile != null)
+			{
+				PluginCalibration.applyRanking(rankingFile);
+			}
+			if (!tcp && socketFile == null)
+			{
+				socketFile = getDefaultSocketFile();
+			}
+			String token = tcp ? readToken(tokenFile, true) : null;
+			SocketAddress address = getAddress(tcp ? null : socketFile, port != null ? port : DEFAULT_PORT);
+			ServerSocketChannel server = listen(address, socketFile);
+			try
+			{
+				MetadataDaemon daemon = new MetadataDaemon(server, threads);
+				daemon.setToken(token);
+				if (outputRoot != null)
+				{
+					daemon.setOutputRoot(outputRoot);
+				}
+				if (socketFile != null)
+				{
+					daemon.setOwner(Files.getOwner(socketFile.toPath()));
+				}
+				if (warmupMillis > 0)
+				{
+					daemon.warmUp(warmupMillis, warmupFiles);
+				}
+
+				SocketAddress bound = server.getLocalAddress();
+				if (portFile != null && bound instanceof InetSocketAddress)
+				{
+					Files.write(portFile.toPath(), String.valueOf(((InetSocketAddress)bound).getPort()).getBytes(UTF8));
+				}
+				System.err.println("Listening on " + bound);
+
+				daemon.run();
+			}
+			finally
+			{
+				server.close();
+				if (socketFile != null)
+				{
+					socketFile.delete();
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
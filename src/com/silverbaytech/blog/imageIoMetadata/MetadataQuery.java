@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.imageio.metadata.IIOMetadata;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A compiled path into a metadata tree, such as
+ * <code>javax_imageio_1.0/Dimension/HorizontalPixelSize@value</code>.
+ *
+ * The first step is the metadata format name, the following steps are
+ * element names, and an optional <code>@name</code> at the end selects an
+ * attribute. Without an attribute the query selects the element's value, or
+ * an empty string if it has none, so it can be used to test for presence.
+ * The first matching element in document order wins.
+ *
+ * Compiled queries are cached by path and are immutable, so they can be
+ * held in static fields and shared between threads.
+ */
+public final class MetadataQuery
+{
+	private static final ConcurrentMap<String, MetadataQuery> CACHE = new ConcurrentHashMap<String, MetadataQuery>();
+
+	private final String path;
+	private final String formatName;
+	private final String[] elements;
+	private final String attribute;
+
+	private MetadataQuery(String path)
+	{
+		this.path = path;
+
+		String nodes = path;
+		int at = path.lastIndexOf('@');
+		if (at >= 0)
+		{
+			attribute = path.substring(at + 1);
+			nodes = path.substring(0, at);
+			if (attribute.length() == 0)
+			{
+				throw new IllegalArgumentException("Empty attribute name in " + path);
+			}
+		}
+		else
+		{
+			attribute = null;
+		}
+
+		String[] steps = nodes.split("/", -1);
+		for (String step : steps)
+		{
+			if (step.length() == 0)
+			{
+				throw new IllegalArgumentException("Empty step in " + path);
+			}
+		}
+		formatName = steps[0];
+		elements = Arrays.copyOfRange(steps, 1, steps.length);
+	}
+
+	/**
+	 * Returns the compiled form of <code>path</code>, compiling it the first
+	 * time it's seen.
+	 *
+	 * @throws IllegalArgumentException if the path is malformed.
+	 */
+	public static MetadataQuery compile(String path)
+	{
+		MetadataQuery query = CACHE.get(path);
+		if (query == null)
+		{
+			query = new MetadataQuery(path);
+			MetadataQuery existing = CACHE.putIfAbsent(path, query);
+			if (existing != null)
+			{
+				query = existing;
+			}
+		}
+		return query;
+	}
+
+	public String getPath()
+	{
+		return path;
+	}
+
+	public String getFormatName()
+	{
+		return formatName;
+	}
+
+	@Override
+	public String toString()
+	{
+		return path;
+	}
+
+	private String select(Node node)
+	{
+		if (attribute == null)
+		{
+			String value = node.getNodeValue();
+			return value == null ? "" : value;
+		}
+
+		NamedNodeMap attributes = node.getAttributes();
+		Node item = attributes == null ? null : attributes.getNamedItem(attribute);
+		return item == null ? null : item.getNodeValue();
+	}
+
+	/**
+	 * Evaluation state for one format's tree.
+	 */
+	private static class Traversal
+	{
+		final MetadataQuery[] queries;
+		final String[] results;
+		int remaining;
+
+		Traversal(MetadataQuery[] queries, String[] results, int remaining)
+		{
+			this.queries = queries;
+			this.results = results;
+			this.remaining = remaining;
+		}
+
+		/**
+		 * Visits the children of <code>node</code>, which is at
+		 * <code>depth</code> and matches the path prefix of each query in
+		 * <code>active</code>. Only subtrees on some query's path are entered.
+		 */
+		void visit(Node node, int depth, int[] active, int activeCount)
+		{
+			int[] matching = new int[activeCount];
+			for (Node child = node.getFirstChild(); child != null && remaining > 0; child = child
+				.getNextSibling())
+			{
+				if (child.getNodeType() != Node.ELEMENT_NODE)
+				{
+					continue;
+				}
+
+				String name = child.getNodeName();
+				int matchCount = 0;
+				for (int i = 0; i < activeCount; i++)
+				{
+					int index = active[i];
+					MetadataQuery query = queries[index];
+					if (results[index] != null || !query.elements[depth].equals(name))
+					{
+						continue;
+					}
+
+					if (depth + 1 < query.elements.length)
+					{
+						matching[matchCount++] = index;
+					}
+					else
+					{
+						String value = query.select(child);
+						if (value != null)
+						{
+							results[index] = value;
+							remaining--;
+						}
+					}
+				}
+
+				if (matchCount > 0)
+				{
+					visit(child, depth + 1, matching, matchCount);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evaluates several queries against <code>metadata</code>, getting each
+	 * format's tree once and walking it once for all the queries on that
+	 * format. The walk stops as soon as every query is resolved.
+	 *
+	 * @return the value selected by each query, or <code>null</code> where
+	 *         nothing matched or the metadata doesn't support the format.
+	 */
+	public static String[] evaluate(IIOMetadata metadata, MetadataQuery... queries)
+	{
+		String[] results = new String[queries.length];
+		boolean[] done = new boolean[queries.length];
+
+		for (int first = 0; first < queries.length; first++)
+		{
+			if (done[first])
+			{
+				continue;
+			}
+
+			String formatName = queries[first].formatName;
+			List<Integer> group = new ArrayList<Integer>();
+			for (int i = first; i < queries.length; i++)
+			{
+				if (!done[i] && queries[i].formatName.equals(formatName))
+				{
+					group.add(i);
+					done[i] = true;
+				}
+			}
+
+			Node root;
+			try
+			{
+				root = PhaseMetrics.getAsTree(metadata, formatName);
+			}
+			catch (IllegalArgumentException e)
+			{
+				continue;
+			}
+
+			int[] active = new int[group.size()];
+			int remaining = 0;
+			for (int i = 0; i < active.length; i++)
+			{
+				int index = group.get(i);
+				if (queries[index].elements.length == 0)
+				{
+					results[index] = queries[index].select(root);
+				}
+				else
+				{
+					active[remaining++] = index;
+				}
+			}
+
+			new Traversal(queries, results, remaining).visit(root, 0, active, remaining);
+		}
+
+		return results;
+	}
+
+	/**
+	 * Evaluates this query alone.
+	 */
+	public String evaluate(IIOMetadata metadata)
+	{
+		return evaluate(metadata, this)[0];
+	}
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.metadata.IIOMetadataFormat;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * An immutable copy of an <code>IIOMetadataFormat</code>: its elements,
+ * their attributes and the parent/child relationships between them.
+ *
+ * Elements are identified by name, as they are in the format, so the graph
+ * can contain cycles (the TIFF formats have them). Names are shared
+ * instances, interned per schema or per {@link MetadataSchemaIndex} file.
+ *
+ * Once built, a schema is never modified and can be used from any number
+ * of threads.
+ */
+public final class MetadataSchema
+{
+	/**
+	 * One attribute of an element, with whichever of the value constraints
+	 * apply to its value type.
+	 */
+	public static final class Attribute
+	{
+		public final String name;
+		/** One of the <code>IIOMetadataFormat.DATATYPE_</code> constants. */
+		public final int dataType;
+		/** One of the <code>IIOMetadataFormat.VALUE_</code> constants. */
+		public final int valueType;
+		public final boolean required;
+		/** <code>null</code> if there is none. */
+		public final String defaultValue;
+		/** The legal values, for <code>VALUE_ENUMERATION</code>. */
+		public final List<String> enumerations;
+		/** The bounds, for the <code>VALUE_RANGE</code> types. */
+		public final String minValue;
+		public final String maxValue;
+		/** The bounds on the number of items, for <code>VALUE_LIST</code>. */
+		public final int listMinLength;
+		public final int listMaxLength;
+
+		Attribute(	String name,
+					int dataType,
+					int valueType,
+					boolean required,
+					String defaultValue,
+					List<String> enumerations,
+					String minValue,
+					String maxValue,
+					int listMinLength,
+					int listMaxLength)
+		{
+			this.name = name;
+			this.dataType = dataType;
+			this.valueType = valueType;
+			this.required = required;
+			this.defaultValue = defaultValue;
+			this.enumerations = enumerations;
+			this.minValue = minValue;
+			this.maxValue = maxValue;
+			this.listMinLength = listMinLength;
+			this.listMaxLength = listMaxLength;
+		}
+
+		public boolean isRange()
+		{
+			return (valueType & IIOMetadataFormat.VALUE_RANGE) == IIOMetadataFormat.VALUE_RANGE;
+		}
+	}
+
+	/**
+	 * One element. Its children are filled in while the schema is built and
+	 * never change afterwards.
+	 */
+	public static final class Element
+	{
+		public final String name;
+		/** Position in {@link MetadataSchema#getElements()}. */
+		public final int index;
+		/** One of the <code>IIOMetadataFormat.CHILD_POLICY_</code> constants. */
+		public final int childPolicy;
+		public final List<Attribute> attributes;
+		private List<Element> children;
+		private Map<String, Attribute> attributesByName;
+
+		Element(String name, int index, int childPolicy, List<Attribute> attributes)
+		{
+			this.name = name;
+			this.index = index;
+			this.childPolicy = childPolicy;
+			this.attributes = attributes;
+			this.attributesByName = new HashMap<String, Attribute>();
+			for (Attribute attribute : attributes)
+			{
+				attributesByName.put(attribute.name, attribute);
+			}
+		}
+
+		public List<Element> getChildren()
+		{
+			return children;
+		}
+
+		public Attribute getAttribute(String name)
+		{
+			return attributesByName.get(name);
+		}
+	}
+
+	private final String formatName;
+	private final List<Element> elements;
+	private final Map<String, Element> elementsByName;
+	private final Element root;
+
+	/**
+	 * @param children for each element, the indexes of its children.
+	 */
+	MetadataSchema(String formatName, List<Element> elements, int[][] children, int rootIndex)
+	{
+		this.formatName = formatName;
+		this.elements = Collections.unmodifiableList(new ArrayList<Element>(elements));
+		this.elementsByName = new HashMap<String, Element>();
+		for (Element element : elements)
+		{
+			List<Element> list = new ArrayList<Element>(children[element.index].length);
+			for (int child : children[element.index])
+			{
+				list.add(elements.get(child));
+			}
+			element.children = Collections.unmodifiableList(list);
+			elementsByName.put(element.name, element);
+		}
+		this.root = elements.get(rootIndex);
+	}
+
+	public String getFormatName()
+	{
+		return formatName;
+	}
+
+	public Element getRoot()
+	{
+		return root;
+	}
+
+	public List<Element> getElements()
+	{
+		return elements;
+	}
+
+	public Element getElement(String name)
+	{
+		return elementsByName.get(name);
+	}
+
+	/**
+	 * Collects each string once, so equal names share an instance.
+	 */
+	private static String intern(Map<String, String> pool, String value)
+	{
+		if (value == null)
+		{
+			return null;
+		}
+		String existing = pool.get(value);
+		if (existing == null)
+		{
+			pool.put(value, value);
+			existing = value;
+		}
+		return existing;
+	}
+
+	private static Attribute buildAttribute(IIOMetadataFormat format, String elementName, String attributeName,
+											Map<String, String> pool)
+	{
+		int valueType = format.getAttributeValueType(elementName, attributeName);
+
+		List<String> enumerations = Collections.emptyList();
+		String minValue = null;
+		String maxValue = null;
+		int listMinLength = 0;
+		int listMaxLength = 0;
+		if (valueType == IIOMetadataFormat.VALUE_ENUMERATION)
+		{
+			String[] values = format.getAttributeEnumerations(elementName, attributeName);
+			String[] interned = new String[values.length];
+			for (int i = 0; i < values.length; i++)
+			{
+				interned[i] = intern(pool, values[i]);
+			}
+			enumerations = Collections.unmodifiableList(Arrays.asList(interned));
+		}
+		else if (valueType == IIOMetadataFormat.VALUE_LIST)
+		{
+			listMinLength = format.getAttributeListMinLength(elementName, attributeName);
+			listMaxLength = format.getAttributeListMaxLength(elementName, attributeName);
+		}
+		else if ((valueType & IIOMetadataFormat.VALUE_RANGE) == IIOMetadataFormat.VALUE_RANGE)
+		{
+			minValue = intern(pool, format.getAttributeMinValue(elementName, attributeName));
+			maxValue = intern(pool, format.getAttributeMaxValue(elementName, attributeName));
+		}
+
+		return new Attribute(	intern(pool, attributeName),
+								format.getAttributeDataType(elementName, attributeName),
+								valueType,
+								format.isAttributeRequired(elementName, attributeName),
+								intern(pool, format.getAttributeDefaultValue(elementName, attributeName)),
+								enumerations,
+								minValue,
+								maxValue,
+								listMinLength,
+								listMaxLength);
+	}
+
+	/**
+	 * Walks <code>format</code> once, from its root, and copies everything
+	 * reachable into a new schema.
+	 */
+	public static MetadataSchema build(IIOMetadataFormat format)
+	{
+		Map<String, String> pool = new HashMap<String, String>();
+		Map<String, Integer> indexes = new LinkedHashMap<String, Integer>();
+		List<Element> elements = new ArrayList<Element>();
+		List<int[]> children = new ArrayList<int[]>();
+
+		List<String> pending = new ArrayList<String>();
+		pending.add(format.getRootName());
+		indexes.put(format.getRootName(), 0);
+		for (int next = 0; next < pending.size(); next++)
+		{
+			String elementName = pending.get(next);
+
+			List<Attribute> attributes = new ArrayList<Attribute>();
+			String[] attributeNames = format.getAttributeNames(elementName);
+			if (attributeNames != null)
+			{
+				for (String attributeName : attributeNames)
+				{
+					attributes.add(buildAttribute(format, elementName, attributeName, pool));
+				}
+			}
+
+			String[] childNames = format.getChildNames(elementName);
+			int[] childIndexes = new int[childNames == null ? 0 : childNames.length];
+			for (int i = 0; i < childIndexes.length; i++)
+			{
+				Integer index = indexes.get(childNames[i]);
+				if (index == null)
+				{
+					index = indexes.size();
+					indexes.put(childNames[i], index);
+					pending.add(childNames[i]);
+				}
+				childIndexes[i] = index;
+			}
+
+			elements.add(new Element(	intern(pool, elementName),
+										next,
+										format.getChildPolicy(elementName),
+										Collections.unmodifiableList(attributes)));
+			children.add(childIndexes);
+		}
+
+		return new MetadataSchema(	intern(pool, format.getRootName()),
+									elements,
+									children.toArray(new int[children.size()][]),
+									0);
+	}
+
+	private static boolean parses(int dataType, String value)
+	{
+		try
+		{
+			switch (dataType)
+			{
+			case IIOMetadataFormat.DATATYPE_BOOLEAN:
+				return value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false");
+			case IIOMetadataFormat.DATATYPE_INTEGER:
+				Long.parseLong(value);
+				return true;
+			case IIOMetadataFormat.DATATYPE_FLOAT:
+			case IIOMetadataFormat.DATATYPE_DOUBLE:
+				Double.parseDouble(value);
+				return true;
+			default:
+				return true;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			return false;
+		}
+	}
+
+	private static boolean inRange(Attribute attribute, String value)
+	{
+		if (attribute.dataType == IIOMetadataFormat.DATATYPE_STRING || attribute.minValue == null
+			|| attribute.maxValue == null)
+		{
+			return true;
+		}
+
+		try
+		{
+			double x = Double.parseDouble(value);
+			double min = Double.parseDouble(attribute.minValue);
+			double max = Double.parseDouble(attribute.maxValue);
+			boolean minInclusive = (attribute.valueType & IIOMetadataFormat.VALUE_RANGE_MIN_INCLUSIVE_MASK) != 0;
+			boolean maxInclusive = (attribute.valueType & IIOMetadataFormat.VALUE_RANGE_MAX_INCLUSIVE_MASK) != 0;
+			return (minInclusive ? x >= min : x > min) && (maxInclusive ? x <= max : x < max);
+		}
+		catch (NumberFormatException e)
+		{
+			return true;
+		}
+	}
+
+	private static void validateAttribute(Attribute attribute, String value, String path, List<String> problems)
+	{
+		String where = path + "@" + attribute.name;
+		switch (attribute.valueType)
+		{
+		case IIOMetadataFormat.VALUE_ENUMERATION:
+			if (!attribute.enumerations.contains(value))
+			{
+				problems.add(where + ": '" + value + "' is not one of " + attribute.enumerations);
+			}
+			return;
+		case IIOMetadataFormat.VALUE_LIST:
+			String trimmed = value.trim();
+			String[] items = trimmed.length() == 0 ? new String[0] : trimmed.split("\\s+");
+			if (items.length < attribute.listMinLength || items.length > attribute.listMaxLength)
+			{
+				problems.add(where + ": " + items.length + " items, expected " + attribute.listMinLength + " to "
+								+ attribute.listMaxLength);
+			}
+			for (String item : items)
+			{
+				if (!parses(attribute.dataType, item))
+				{
+					problems.add(where + ": '" + item + "' is not a valid list item");
+					return;
+				}
+			}
+			return;
+		default:
+			break;
+		}
+
+		if (!parses(attribute.dataType, value))
+		{
+			problems.add(where + ": '" + value + "' is not a valid value");
+		}
+		else if (attribute.isRange() && !inRange(attribute, value))
+		{
+			problems.add(where + ": " + value + " is outside " + attribute.minValue + " to " + attribute.maxValue);
+		}
+	}
+
+	private void validate(Element element, Node node, String path, List<String> problems)
+	{
+		NamedNodeMap attributes = node.getAttributes();
+		int count = attributes == null ? 0 : attributes.getLength();
+		for (int i = 0; i < count; i++)
+		{
+			Node attributeNode = attributes.item(i);
+			Attribute attribute = element.getAttribute(attributeNode.getNodeName());
+			if (attribute == null)
+			{
+				problems.add(path + "@" + attributeNode.getNodeName() + ": not defined by the format");
+			}
+			else
+			{
+				validateAttribute(attribute, attributeNode.getNodeValue(), path, problems);
+			}
+		}
+		for (Attribute attribute : element.attributes)
+		{
+			if (attribute.required && (attributes == null || attributes.getNamedItem(attribute.name) == null))
+			{
+				problems.add(path + "@" + attribute.name + ": required but missing");
+			}
+		}
+
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			if (child.getNodeType() != Node.ELEMENT_NODE)
+			{
+				continue;
+			}
+			String childPath = path + "/" + child.getNodeName();
+			Element childElement = elementsByName.get(child.getNodeName());
+			if (childElement == null || !element.children.contains(childElement))
+			{
+				problems.add(childPath + ": not allowed in " + element.name);
+				continue;
+			}
+			validate(childElement, child, childPath, problems);
+		}
+	}
+
+	/**
+	 * Checks a metadata tree in this schema's format: element placement,
+	 * attribute names, required attributes, and attribute values against
+	 * their data type, enumeration, range or list length.
+	 *
+	 * @return a description of each problem found, empty if there are none.
+	 */
+	public List<String> validate(Node tree)
+	{
+		List<String> problems = new ArrayList<String>();
+		if (!tree.getNodeName().equals(root.name))
+		{
+			problems.add(tree.getNodeName() + ": expected root " + root.name);
+			return problems;
+		}
+		validate(root, tree, root.name, problems);
+		return problems;
+	}
+}
@@ -0,0 +1,622 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.imageio.metadata.IIOMetadataFormat;
+import javax.imageio.spi.ImageReaderWriterSpi;
+
+import com.silverbaytech.blog.imageIoMetadata.MetadataSchema.Attribute;
+import com.silverbaytech.blog.imageIoMetadata.MetadataSchema.Element;
+
+/**
+ * The {@link MetadataSchema}s of a set of plugins, keyed by plugin class,
+ * the build of the plugin, image or stream, and format name. The build is
+ * identified by the plugin's version and the jar it came from, with the
+ * jar's size and modification time, or by the Java version for the
+ * plugins built into the runtime, so upgrading either makes the index
+ * build the schemas again rather than serve the old ones.
+ *
+ * An index can be written to a file and loaded again by memory-mapping it.
+ * Loading only reads the string table and the directory; each schema is
+ * decoded from the mapping the first time it's asked for. Schemas that
+ * aren't in the file are built from the plugin on demand and included the
+ * next time the index is written, as are the formats a plugin turns out
+ * not to describe. All methods are thread-safe.
+ *
+ * <pre>
+ * file      := MAGIC VERSION int stringCount string*
+ *              int entryCount entry* schema*
+ * string    := int length, UTF-8
+ * entry     := int plugin, int build, byte kind, int formatName, int offset
+ * schema    := int formatName, int elementCount, element*
+ * element   := int name, byte childPolicy, short attributeCount, attribute*,
+ *              short childCount, int child*
+ * attribute := int name, byte dataType, byte valueType, byte required,
+ *              int defaultValue, then by value type
+ *              short count, int value* (enumeration),
+ *              int minLength, int maxLength (list) or
+ *              int minValue, int maxValue (range)
+ * </pre>
+ *
+ * Strings are stored once per file and referred to by index, -1 standing
+ * for <code>null</code>; schema offsets are from the start of the file,
+ * with -1 for a format the plugin doesn't describe. The offsets are
+ * checked when the file is loaded, and a schema that can't be decoded is
+ * built from its plugin instead.
+ */
+public class MetadataSchemaIndex
+{
+	private static final int MAGIC = 0x49494F53; // "IIOS"
+	private static final int VERSION = 2;
+	private static final int ENTRY_SIZE = 17;
+	private static final int MISSING_OFFSET = -1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte IMAGE = 0;
+	private static final byte STREAM = 1;
+
+	/**
+	 * Marks a schema the plugin doesn't provide, so it isn't looked for
+	 * again.
+	 */
+	private static final MetadataSchema MISSING = createMissing();
+
+	private static final ConcurrentMap<Class<?>, String> BUILDS = new ConcurrentHashMap<Class<?>, String>();
+
+	private final ConcurrentMap<String, MetadataSchema> schemas = new ConcurrentHashMap<String, MetadataSchema>();
+	private final ConcurrentMap<String, String> currentBuilds = new ConcurrentHashMap<String, String>();
+	private final Map<String, Integer> offsets;
+	private final ByteBuffer mapped;
+	private final String[] strings;
+	private volatile boolean modified;
+
+	private static MetadataSchema createMissing()
+	{
+		Element root = new Element("", 0, IIOMetadataFormat.CHILD_POLICY_EMPTY, Collections.<Attribute> emptyList());
+		return new MetadataSchema("", Collections.singletonList(root), new int[][] { new int[0] }, 0);
+	}
+
+	/**
+	 * Creates an empty index.
+	 */
+	public MetadataSchemaIndex()
+	{
+		this.offsets = Collections.emptyMap();
+		this.mapped = null;
+		this.strings = null;
+	}
+
+	private MetadataSchemaIndex(ByteBuffer mapped, String[] strings, Map<String, Integer> offsets)
+	{
+		this.mapped = mapped;
+		this.strings = strings;
+		this.offsets = offsets;
+	}
+
+	private static String createKey(String pluginClassName, String build, byte kind, String formatName)
+	{
+		return pluginClassName + '\0' + build + '\0' + kind + '\0' + formatName;
+	}
+
+	/**
+	 * Identifies the build of the plugin behind <code>spi</code>.
+	 */
+	private static String getBuild(ImageReaderWriterSpi spi)
+	{
+		String build = BUILDS.get(spi.getClass());
+		if (build != null)
+		{
+			return build;
+		}
+
+		StringBuilder text = new StringBuilder(String.valueOf(spi.getVersion()));
+		URL location = null;
+		try
+		{
+			ProtectionDomain domain = spi.getClass().getProtectionDomain();
+			CodeSource source = domain == null ? null : domain.getCodeSource();
+			location = source == null ? null : source.getLocation();
+		}
+		catch (SecurityException e)
+		{
+		}
+
+		if (location == null)
+		{
+			text.append(" java ").append(System.getProperty("java.runtime.version", System.getProperty("java.version")));
+		}
+		else
+		{
+			text.append(' ').append(location);
+			if ("file".equals(location.getProtocol()))
+			{
+				try
+				{
+					File jar = new File(location.toURI());
+					text.append(' ').append(jar.length()).append(' ').append(jar.lastModified());
+				}
+				catch (URISyntaxException | IllegalArgumentException e)
+				{
+				}
+			}
+		}
+
+		build = text.toString();
+		BUILDS.putIfAbsent(spi.getClass(), build);
+		return build;
+	}
+
+	/**
+	 * Maps <code>file</code> and reads its directory.
+	 *
+	 * @throws IOException if the file can't be read or isn't an index.
+	 */
+	public static MetadataSchemaIndex load(File file) throws IOException
+	{
+		MappedByteBuffer mapped;
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = input.getChannel();
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			input.close();
+		}
+
+		try
+		{
+			ByteBuffer buffer = mapped.duplicate();
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+			{
+				throw new IOException(file + " is not a schema index file");
+			}
+
+			String[] strings = new String[readCount(buffer)];
+			for (int i = 0; i < strings.length; i++)
+			{
+				byte[] bytes = new byte[readCount(buffer)];
+				buffer.get(bytes);
+				strings[i] = new String(bytes, UTF8);
+			}
+
+			int entryCount = readCount(buffer);
+			int bodyStart = buffer.position() + entryCount * ENTRY_SIZE;
+			Map<String, Integer> offsets = new HashMap<String, Integer>();
+			for (int i = 0; i < entryCount; i++)
+			{
+				String plugin = strings[buffer.getInt()];
+				String build = strings[buffer.getInt()];
+				byte kind = buffer.get();
+				String formatName = strings[buffer.getInt()];
+				int offset = buffer.getInt();
+				if (offset != MISSING_OFFSET && (offset < bodyStart || offset > mapped.limit() - 8))
+				{
+					throw new IOException(file + " is corrupt: schema offset " + offset + " is out of range");
+				}
+				offsets.put(createKey(plugin, build, kind, formatName), offset);
+			}
+
+			return new MetadataSchemaIndex(mapped, strings, offsets);
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException(file + " is truncated", e);
+		}
+		catch (IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e)
+		{
+			throw new IOException(file + " is corrupt", e);
+		}
+	}
+
+	/**
+	 * Decodes the schema at <code>offset</code>, returning <code>null</code>
+	 * if the file's contents there are damaged.
+	 */
+	private MetadataSchema readSchemaAt(int offset)
+	{
+		if (offset == MISSING_OFFSET)
+		{
+			return MISSING;
+		}
+		try
+		{
+			return readSchema(offset);
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+			| NegativeArraySizeException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a count of items that each take at least one byte, failing as
+	 * a truncated file would if there can't be that many left.
+	 */
+	private static int readCount(ByteBuffer buffer)
+	{
+		int count = buffer.getInt();
+		if (count < 0 || count > buffer.remaining())
+		{
+			throw new BufferUnderflowException();
+		}
+		return count;
+	}
+
+	private String readString(ByteBuffer buffer)
+	{
+		int index = buffer.getInt();
+		return index < 0 ? null : strings[index];
+	}
+
+	private Attribute readAttribute(ByteBuffer buffer)
+	{
+		String name = readString(buffer);
+		int dataType = buffer.get();
+		int valueType = buffer.get();
+		boolean required = buffer.get() != 0;
+		String defaultValue = readString(buffer);
+
+		List<String> enumerations = Collections.emptyList();
+		String minValue = null;
+		String maxValue = null;
+		int listMinLength = 0;
+		int listMaxLength = 0;
+		if (valueType == IIOMetadataFormat.VALUE_ENUMERATION)
+		{
+			String[] values = new String[buffer.getShort()];
+			for (int i = 0; i < values.length; i++)
+			{
+				values[i] = readString(buffer);
+			}
+			enumerations = Collections.unmodifiableList(Arrays.asList(values));
+		}
+		else if (valueType == IIOMetadataFormat.VALUE_LIST)
+		{
+			listMinLength = buffer.getInt();
+			listMaxLength = buffer.getInt();
+		}
+		else if ((valueType & IIOMetadataFormat.VALUE_RANGE) == IIOMetadataFormat.VALUE_RANGE)
+		{
+			minValue = readString(buffer);
+			maxValue = readString(buffer);
+		}
+
+		return new Attribute(	name,
+								dataType,
+								valueType,
+								required,
+								defaultValue,
+								enumerations,
+								minValue,
+								maxValue,
+								listMinLength,
+								listMaxLength);
+	}
+
+	private MetadataSchema readSchema(int offset)
+	{
+		ByteBuffer buffer = mapped.duplicate();
+		buffer.position(offset);
+
+		String formatName = readString(buffer);
+		int elementCount = readCount(buffer);
+		List<Element> elements = new ArrayList<Element>(elementCount);
+		int[][] children = new int[elementCount][];
+		for (int i = 0; i < elementCount; i++)
+		{
+			String name = readString(buffer);
+			int childPolicy = buffer.get();
+			int attributeCount = buffer.getShort();
+			List<Attribute> attributes = new ArrayList<Attribute>(attributeCount);
+			for (int j = 0; j < attributeCount; j++)
+			{
+				attributes.add(readAttribute(buffer));
+			}
+			elements.add(new Element(name, i, childPolicy, Collections.unmodifiableList(attributes)));
+
+			children[i] = new int[buffer.getShort()];
+			for (int j = 0; j < children[i].length; j++)
+			{
+				children[i][j] = buffer.getInt();
+			}
+		}
+
+		return new MetadataSchema(formatName, elements, children, 0);
+	}
+
+	private static IIOMetadataFormat getFormat(ImageReaderWriterSpi spi, byte kind, String formatName)
+	{
+		try
+		{
+			return kind == IMAGE ? spi.getImageMetadataFormat(formatName) : spi.getStreamMetadataFormat(formatName);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return null;
+		}
+		catch (IllegalStateException e)
+		{
+			return null;
+		}
+	}
+
+	private MetadataSchema get(ImageReaderWriterSpi spi, byte kind, String formatName)
+	{
+		String build = getBuild(spi);
+		currentBuilds.putIfAbsent(spi.getPluginClassName(), build);
+		String key = createKey(spi.getPluginClassName(), build, kind, formatName);
+		MetadataSchema schema = schemas.get(key);
+		if (schema == null)
+		{
+			Integer offset = offsets.get(key);
+			if (offset != null)
+			{
+				schema = readSchemaAt(offset);
+			}
+			if (schema == null)
+			{
+				IIOMetadataFormat format = getFormat(spi, kind, formatName);
+				schema = format == null ? MISSING : MetadataSchema.build(format);
+				modified = true;
+			}
+
+			MetadataSchema existing = schemas.putIfAbsent(key, schema);
+			if (existing != null)
+			{
+				schema = existing;
+			}
+		}
+		return schema == MISSING ? null : schema;
+	}
+
+	/**
+	 * Returns the schema of one of <code>spi</code>'s image metadata
+	 * formats, or <code>null</code> if the plugin doesn't describe it.
+	 */
+	public MetadataSchema getImageSchema(ImageReaderWriterSpi spi, String formatName)
+	{
+		return get(spi, IMAGE, formatName);
+	}
+
+	/**
+	 * Returns the schema of one of <code>spi</code>'s stream metadata
+	 * formats, or <code>null</code> if the plugin doesn't describe it.
+	 */
+	public MetadataSchema getStreamSchema(ImageReaderWriterSpi spi, String formatName)
+	{
+		return get(spi, STREAM, formatName);
+	}
+
+	/**
+	 * Returns <code>true</code> if schemas have been built since the index
+	 * was loaded, so it's worth writing out again.
+	 */
+	public boolean isModified()
+	{
+		return modified;
+	}
+
+	private static String[] splitKey(String key)
+	{
+		return key.split("\0", -1);
+	}
+
+	/**
+	 * Decodes every schema still only in the mapping, so the index can be
+	 * written without it. Schemas of an older build of a plugin that's been
+	 * used since the index was loaded are dropped, as are any that can't be
+	 * decoded.
+	 */
+	private Map<String, MetadataSchema> getAll()
+	{
+		for (Map.Entry<String, Integer> entry : offsets.entrySet())
+		{
+			if (!schemas.containsKey(entry.getKey()))
+			{
+				String[] fields = splitKey(entry.getKey());
+				String current = currentBuilds.get(fields[0]);
+				if (current != null && !current.equals(fields[1]))
+				{
+					continue;
+				}
+				MetadataSchema schema = readSchemaAt(entry.getValue());
+				if (schema != null)
+				{
+					schemas.putIfAbsent(entry.getKey(), schema);
+				}
+			}
+		}
+		return new LinkedHashMap<String, MetadataSchema>(schemas);
+	}
+
+	private static int addString(Map<String, Integer> pool, String value)
+	{
+		if (value == null)
+		{
+			return -1;
+		}
+		Integer index = pool.get(value);
+		if (index == null)
+		{
+			index = pool.size();
+			pool.put(value, index);
+		}
+		return index;
+	}
+
+	private static void writeAttribute(DataOutputStream output, Attribute attribute, Map<String, Integer> pool)
+		throws IOException
+	{
+		output.writeInt(addString(pool, attribute.name));
+		output.writeByte(attribute.dataType);
+		output.writeByte(attribute.valueType);
+		output.writeByte(attribute.required ? 1 : 0);
+		output.writeInt(addString(pool, attribute.defaultValue));
+		if (attribute.valueType == IIOMetadataFormat.VALUE_ENUMERATION)
+		{
+			output.writeShort(attribute.enumerations.size());
+			for (String value : attribute.enumerations)
+			{
+				output.writeInt(addString(pool, value));
+			}
+		}
+		else if (attribute.valueType == IIOMetadataFormat.VALUE_LIST)
+		{
+			output.writeInt(attribute.listMinLength);
+			output.writeInt(attribute.listMaxLength);
+		}
+		else if (attribute.isRange())
+		{
+			output.writeInt(addString(pool, attribute.minValue));
+			output.writeInt(addString(pool, attribute.maxValue));
+		}
+	}
+
+	private static void writeSchema(DataOutputStream output, MetadataSchema schema, Map<String, Integer> pool)
+		throws IOException
+	{
+		output.writeInt(addString(pool, schema.getFormatName()));
+		output.writeInt(schema.getElements().size());
+		for (Element element : schema.getElements())
+		{
+			output.writeInt(addString(pool, element.name));
+			output.writeByte(element.childPolicy);
+			output.writeShort(element.attributes.size());
+			for (Attribute attribute : element.attributes)
+			{
+				writeAttribute(output, attribute, pool);
+			}
+			output.writeShort(element.getChildren().size());
+			for (Element child : element.getChildren())
+			{
+				output.writeInt(child.index);
+			}
+		}
+	}
+
+	/**
+	 * Writes the index to <code>file</code>, replacing it atomically.
+	 */
+	public void write(File file) throws IOException
+	{
+		Map<String, MetadataSchema> all = getAll();
+		Map<String, Integer> pool = new LinkedHashMap<String, Integer>();
+
+		/*
+		 * The schemas go after the string table, whose size isn't known until
+		 * they've been encoded, so they're encoded first and their offsets
+		 * fixed up once the header's size is known.
+		 */
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream bodyOutput = new DataOutputStream(body);
+		List<String> keys = new ArrayList<String>();
+		List<Integer> bodyOffsets = new ArrayList<Integer>();
+		for (Map.Entry<String, MetadataSchema> entry : all.entrySet())
+		{
+			keys.add(entry.getKey());
+			if (entry.getValue() == MISSING)
+			{
+				bodyOffsets.add(null);
+				continue;
+			}
+			bodyOffsets.add(bodyOutput.size());
+			writeSchema(bodyOutput, entry.getValue(), pool);
+		}
+		bodyOutput.flush();
+
+		List<int[]> entries = new ArrayList<int[]>();
+		for (String key : keys)
+		{
+			String[] fields = splitKey(key);
+			entries.add(new int[] {	addString(pool, fields[0]),
+									addString(pool, fields[1]),
+									Byte.parseByte(fields[2]),
+									addString(pool, fields[3]) });
+		}
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream headerOutput = new DataOutputStream(header);
+		headerOutput.writeInt(MAGIC);
+		headerOutput.writeInt(VERSION);
+		headerOutput.writeInt(pool.size());
+		for (String value : pool.keySet())
+		{
+			byte[] bytes = value.getBytes(UTF8);
+			headerOutput.writeInt(bytes.length);
+			headerOutput.write(bytes);
+		}
+		headerOutput.writeInt(entries.size());
+		int bodyStart = headerOutput.size() + entries.size() * ENTRY_SIZE;
+		for (int i = 0; i < entries.size(); i++)
+		{
+			int[] entry = entries.get(i);
+			Integer bodyOffset = bodyOffsets.get(i);
+			headerOutput.writeInt(entry[0]);
+			headerOutput.writeInt(entry[1]);
+			headerOutput.writeByte(entry[2]);
+			headerOutput.writeInt(entry[3]);
+			headerOutput.writeInt(bodyOffset == null ? MISSING_OFFSET : bodyStart + bodyOffset);
+		}
+		headerOutput.flush();
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream output = new FileOutputStream(temp);
+		try
+		{
+			header.writeTo(output);
+			body.writeTo(output);
+			output.getFD().sync();
+		}
+		finally
+		{
+			output.close();
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		modified = false;
+	}
+}
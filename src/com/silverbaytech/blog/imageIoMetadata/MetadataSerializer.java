@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Receives the structure of a metadata dump as a series of events and writes
+ * it out in a particular format.
+ *
+ * Output is accumulated in a per-thread buffer and handed to the underlying
+ * stream in large blocks, so the stream's locking and any system calls
+ * happen once per block rather than once per token.
+ *
+ * A serializer is used for a single file: {@link #startFile(File)} through
+ * {@link #endFile()}, or {@link #failFile(File, Exception)} if something goes
+ * wrong part way through.
+ */
+public abstract class MetadataSerializer
+{
+	/**
+	 * The available output formats.
+	 */
+	public enum Format
+	{
+		/** The indented pseudo-XML text the tool has always produced. */
+		TEXT,
+		/** A single well-formed XML document. */
+		XML,
+		/** One JSON object per file, one per line. */
+		JSON;
+
+		public MetadataSerializer create(PrintStream out)
+		{
+			switch (this)
+			{
+			case XML:
+				return new XmlMetadataSerializer(out);
+			case JSON:
+				return new JsonMetadataSerializer(out);
+			default:
+				return new TextMetadataSerializer(out);
+			}
+		}
+
+		/**
+		 * Writes whatever precedes the first file.
+		 */
+		public void beginDocument(PrintStream out)
+		{
+			if (this == XML)
+			{
+				out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+				out.println("<imageMetadata>");
+			}
+		}
+
+		/**
+		 * Writes whatever follows the last file.
+		 */
+		public void endDocument(PrintStream out)
+		{
+			switch (this)
+			{
+			case TEXT:
+				out.println("\nDone");
+				break;
+			case XML:
+				out.println("</imageMetadata>");
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Size at which the buffer is written to the stream.
+	 */
+	private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+	private static final ThreadLocal<StringBuilder> BUFFERS = new ThreadLocal<StringBuilder>()
+	{
+		@Override
+		protected StringBuilder initialValue()
+		{
+			return new StringBuilder(FLUSH_THRESHOLD * 2);
+		}
+	};
+
+	private static final String SPACES = "                                                                ";
+
+	private final PrintStream out;
+	protected final StringBuilder buffer;
+
+	protected MetadataSerializer(PrintStream out)
+	{
+		this.out = out;
+		this.buffer = BUFFERS.get();
+		this.buffer.setLength(0);
+	}
+
+	/**
+	 * For serializers that pass the events on to another rather than writing
+	 * anything themselves, and so must override {@link #flush()}. They have
+	 * no buffer, since the per-thread one belongs to the serializer they
+	 * wrap.
+	 */
+	protected MetadataSerializer()
+	{
+		this.out = null;
+		this.buffer = null;
+	}
+
+	/**
+	 * Appends <code>count</code> spaces.
+	 */
+	protected void spaces(int count)
+	{
+		while (count > SPACES.length())
+		{
+			buffer.append(SPACES);
+			count -= SPACES.length();
+		}
+		buffer.append(SPACES, 0, count);
+	}
+
+	/**
+	 * Writes the buffer to the stream if it has grown past the threshold.
+	 */
+	protected void flushIfFull()
+	{
+		if (buffer.length() >= FLUSH_THRESHOLD)
+		{
+			flush();
+		}
+	}
+
+	/**
+	 * Writes everything buffered so far to the stream.
+	 */
+	public void flush()
+	{
+		out.append(buffer);
+		buffer.setLength(0);
+	}
+
+	public abstract void startFile(File file);
+
+	public abstract void startReader(String className);
+
+	/**
+	 * @param kind <code>Image</code> or <code>Stream</code>.
+	 * @param imageIndex index of the image the metadata belongs to, or -1
+	 *            for stream metadata and when only the first image is read.
+	 */
+	public abstract void startMetadata(String kind, int imageIndex);
+
+	public abstract void startFormat(String formatName);
+
+	public abstract void startElement(String name);
+
+	/**
+	 * Adds an attribute to the element most recently started. Must come
+	 * before any of that element's children or value.
+	 */
+	public abstract void attribute(String name, String value);
+
+	/**
+	 * Sets the text value of the current element, which has no children.
+	 */
+	public abstract void value(String value);
+
+	public abstract void endElement(String name);
+
+	public abstract void endFormat();
+
+	public abstract void endMetadata();
+
+	public abstract void endReader();
+
+	/**
+	 * Finishes the file and flushes the buffer.
+	 */
+	public abstract void endFile();
+
+	/**
+	 * Records that processing <code>file</code> failed, closing anything left
+	 * open so the output stays well-formed, and flushes the buffer.
+	 */
+	public abstract void failFile(File file, Exception e);
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A content-addressed store of metadata subtrees, in the manner of a Merkle
+ * tree: each element is stored once under the SHA-256 of its name,
+ * attributes, value and the hashes of its children. Equal hashes mean equal
+ * subtrees, so an element shared by many files, or by two runs over the
+ * same files, takes the space of one.
+ *
+ * The store is a single append-only file. When it's opened the file is
+ * scanned to index the records, and records are read back with positional
+ * reads. All methods are thread-safe.
+ *
+ * <pre>
+ * file   := MAGIC VERSION record*
+ * record := hash[32], int length, node
+ * node   := string name, value, int attributeCount, (string name, value)*,
+ *           int childCount, hash[32]*
+ * value  := boolean present, [string text]
+ * string := int length, UTF-8 bytes
+ * </pre>
+ *
+ * Lengths and counts are ints because metadata values, such as PNG text
+ * chunks, and child lists, such as TIFF strip offsets, can run past what a
+ * short holds.
+ */
+public class MetadataStore
+{
+	private static final int MAGIC = 0x49494F54; // "IIOT"
+	private static final int VERSION = 2;
+	private static final int FILE_HEADER_SIZE = 8;
+
+	public static final int HASH_LENGTH = 32;
+
+	/**
+	 * A decoded element.
+	 */
+	public static class StoredNode
+	{
+		public final String name;
+		public final String value;
+		public final String[] attributeNames;
+		public final String[] attributeValues;
+		public final byte[][] children;
+
+		StoredNode(String name, String value, String[] attributeNames, String[] attributeValues, byte[][] children)
+		{
+			this.name = name;
+			this.value = value;
+			this.attributeNames = attributeNames;
+			this.attributeValues = attributeValues;
+			this.children = children;
+		}
+	}
+
+	private final File storeFile;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ConcurrentMap<ByteBuffer, Long> index = new ConcurrentHashMap<ByteBuffer, Long>();
+	private long end;
+
+	/**
+	 * Opens (or creates) the store in <code>storeFile</code>.
+	 */
+	public MetadataStore(File storeFile) throws IOException
+	{
+		this.storeFile = storeFile;
+		file = new RandomAccessFile(storeFile, "rw");
+		channel = file.getChannel();
+		try
+		{
+			if (channel.size() < FILE_HEADER_SIZE)
+			{
+				ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).flip();
+				channel.truncate(0);
+				channel.write(header, 0);
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			channel.read(header, 0);
+			if (header.getInt(0) != MAGIC)
+			{
+				throw new IOException(storeFile + " is not a metadata store");
+			}
+			if (header.getInt(4) != VERSION)
+			{
+				throw new IOException(storeFile + " was written by a different version and has to be recreated");
+			}
+
+			end = scan();
+			if (end < channel.size())
+			{
+				channel.truncate(end);
+			}
+		}
+		catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Indexes the records, returning the offset just past the last complete
+	 * one. Anything after that is the remains of a crash while appending.
+	 */
+	private long scan() throws IOException
+	{
+		long size = channel.size();
+		long position = FILE_HEADER_SIZE;
+		ByteBuffer header = ByteBuffer.allocate(HASH_LENGTH + 4);
+		while (position + header.capacity() <= size)
+		{
+			header.clear();
+			while (header.hasRemaining() && channel.read(header, position + header.position()) > 0)
+			{
+			}
+			int length = header.getInt(HASH_LENGTH);
+			if (length < 0 || position + header.capacity() + length > size)
+			{
+				break;
+			}
+
+			byte[] hash = new byte[HASH_LENGTH];
+			header.position(0);
+			header.get(hash);
+			index.put(ByteBuffer.wrap(hash), position);
+			position += header.capacity() + length;
+		}
+		return position;
+	}
+
+	static MessageDigest createDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	public static String toHex(byte[] hash)
+	{
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++)
+		{
+			hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0x0F];
+			hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0x0F];
+		}
+		return new String(hex);
+	}
+
+	public static byte[] fromHex(String hex)
+	{
+		if (hex.length() != HASH_LENGTH * 2)
+		{
+			throw new IllegalArgumentException("Bad hash " + hex);
+		}
+		byte[] hash = new byte[HASH_LENGTH];
+		for (int i = 0; i < hash.length; i++)
+		{
+			hash[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return hash;
+	}
+
+	private static void writeString(DataOutputStream output, String text) throws IOException
+	{
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	/**
+	 * Reads a length or count, which can't be more than the bytes left.
+	 */
+	private static int readCount(DataInputStream input) throws IOException
+	{
+		int count = input.readInt();
+		if (count < 0 || count > input.available())
+		{
+			throw new IOException("Corrupt node: count " + count + " with " + input.available() + " bytes left");
+		}
+		return count;
+	}
+
+	private static String readString(DataInputStream input) throws IOException
+	{
+		byte[] bytes = new byte[readCount(input)];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeValue(DataOutputStream output, String value) throws IOException
+	{
+		output.writeBoolean(value != null);
+		if (value != null)
+		{
+			writeString(output, value);
+		}
+	}
+
+	private static String readValue(DataInputStream input) throws IOException
+	{
+		return input.readBoolean() ? readString(input) : null;
+	}
+
+	/**
+	 * Encodes an element for hashing and storing.
+	 */
+	static byte[] encode(String name, String value, List<String> attributeNames, List<String> attributeValues,
+							List<byte[]> children)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream output = new DataOutputStream(bytes);
+		try
+		{
+			writeString(output, name);
+			writeValue(output, value);
+			output.writeInt(attributeNames.size());
+			for (int i = 0; i < attributeNames.size(); i++)
+			{
+				writeString(output, attributeNames.get(i));
+				writeValue(output, attributeValues.get(i));
+			}
+			output.writeInt(children.size());
+			for (byte[] child : children)
+			{
+				output.write(child);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	static StoredNode decode(byte[] node) throws IOException
+	{
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(node));
+		String name = readString(input);
+		String value = readValue(input);
+		String[] attributeNames = new String[readCount(input)];
+		String[] attributeValues = new String[attributeNames.length];
+		for (int i = 0; i < attributeNames.length; i++)
+		{
+			attributeNames[i] = readString(input);
+			attributeValues[i] = readValue(input);
+		}
+		byte[][] children = new byte[readCount(input)][HASH_LENGTH];
+		for (byte[] child : children)
+		{
+			input.readFully(child);
+		}
+		return new StoredNode(name, value, attributeNames, attributeValues, children);
+	}
+
+	public boolean contains(byte[] hash)
+	{
+		return index.containsKey(ByteBuffer.wrap(hash));
+	}
+
+	/**
+	 * Stores an encoded element under its hash unless it's already there.
+	 */
+	public void put(byte[] hash, byte[] node) throws IOException
+	{
+		if (contains(hash))
+		{
+			return;
+		}
+
+		synchronized (this)
+		{
+			if (contains(hash))
+			{
+				return;
+			}
+
+			ByteBuffer record = ByteBuffer.allocate(HASH_LENGTH + 4 + node.length);
+			record.put(hash).putInt(node.length).put(node).flip();
+			long position = end;
+			while (record.hasRemaining())
+			{
+				position += channel.write(record, position);
+			}
+			index.put(ByteBuffer.wrap(hash.clone()), end);
+			end = position;
+		}
+	}
+
+	/**
+	 * Returns the element stored under <code>hash</code>, or
+	 * <code>null</code> if there isn't one.
+	 */
+	public StoredNode get(byte[] hash) throws IOException
+	{
+		Long position = index.get(ByteBuffer.wrap(hash));
+		if (position == null)
+		{
+			return null;
+		}
+
+		ByteBuffer length = ByteBuffer.allocate(4);
+		channel.read(length, position + HASH_LENGTH);
+		ByteBuffer node = ByteBuffer.allocate(length.getInt(0));
+		long offset = position + HASH_LENGTH + 4;
+		while (node.hasRemaining() && channel.read(node, offset + node.position()) > 0)
+		{
+		}
+		return decode(node.array());
+	}
+
+	public int size()
+	{
+		return index.size();
+	}
+
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			channel.force(false);
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return storeFile.getPath();
+	}
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.Node;
+
+/**
+ * Latency histograms for the phases the tools go through for each file,
+ * plus a count and parse-time histogram for each image format.
+ *
+ * Recording is off until {@link #enable()} is called; until then the
+ * timing calls cost a volatile read. Once enabled, recording is lock-free:
+ * each histogram is an array of atomic counters in log-linear buckets, so
+ * values are kept to within about 6%.
+ *
+ * <pre>
+ * long start = PhaseMetrics.start();
+ * List&lt;ImageReaderSpi&gt; spis = FormatSniffer.findReaderSpis(file);
+ * PhaseMetrics.stop(PhaseMetrics.Phase.LOOKUP, start);
+ * </pre>
+ *
+ * The common ImageIO calls have timed equivalents here.
+ */
+public final class PhaseMetrics
+{
+	/**
+	 * The phases of handling a file.
+	 */
+	public enum Phase
+	{
+		/** Reading a file ahead of parsing it, in a prefetch pipeline. */
+		PREFETCH,
+		/** Waiting for a parsing thread once a file has been prefetched. */
+		QUEUE,
+		/** Opening the image input stream. */
+		OPEN,
+		/** Sniffing the format and finding its readers. */
+		LOOKUP,
+		/** Reading metadata, through a reader or the header probe. */
+		PARSE,
+		/** Building DOM trees from metadata. */
+		TREE,
+		/** Turning trees or values into report text. */
+		SERIALIZE,
+		/** Copying finished reports to the output. */
+		WRITE,
+		/** Waiting for room in a full prefetch pipeline. */
+		STALL;
+
+		String label()
+		{
+			return name().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	/**
+	 * A histogram of durations in nanoseconds. Values below 32 have a bucket
+	 * each; above that, each power of two is split into 16 buckets.
+	 */
+	static final class Histogram
+	{
+		private static final int SUB_BUCKET_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+		private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		static int bucket(long value)
+		{
+			if (value < LINEAR_LIMIT)
+			{
+				return (int)value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int mantissa = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS + mantissa;
+		}
+
+		/**
+		 * Returns the largest value that falls in <code>bucket</code>.
+		 */
+		static long highestValue(int bucket)
+		{
+			if (bucket < LINEAR_LIMIT)
+			{
+				return bucket;
+			}
+			int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+			long mantissa = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+			return ((mantissa + 1) << shift) - 1;
+		}
+
+		void record(long nanos)
+		{
+			if (nanos < 0)
+			{
+				nanos = 0;
+			}
+			counts.incrementAndGet(bucket(nanos));
+			count.incrementAndGet();
+			sum.addAndGet(nanos);
+
+			long current;
+			while (nanos > (current = max.get()))
+			{
+				if (max.compareAndSet(current, nanos))
+				{
+					break;
+				}
+			}
+		}
+
+		long getCount()
+		{
+			return count.get();
+		}
+
+		long getSum()
+		{
+			return sum.get();
+		}
+
+		long getMax()
+		{
+			return max.get();
+		}
+
+		/**
+		 * Returns the values at the given quantiles, each between 0 and 1.
+		 * Counts recorded while this runs may or may not be included.
+		 */
+		long[] getQuantiles(double... quantiles)
+		{
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				snapshot[i] = counts.get(i);
+				total += snapshot[i];
+			}
+
+			long[] values = new long[quantiles.length];
+			long highest = max.get();
+			for (int q = 0; q < quantiles.length; q++)
+			{
+				long rank = Math.max(1, (long)Math.ceil(quantiles[q] * total));
+				long seen = 0;
+				for (int i = 0; i < BUCKETS && total > 0; i++)
+				{
+					seen += snapshot[i];
+					if (seen >= rank)
+					{
+						values[q] = Math.min(highestValue(i), highest);
+						break;
+					}
+				}
+			}
+			return values;
+		}
+	}
+
+	private static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+	private static final String[] QUANTILE_LABELS = { "0.5", "0.95", "0.99" };
+
+	private static volatile PhaseMetrics current;
+
+	private final Histogram[] phases = new Histogram[Phase.values().length];
+	private final ConcurrentMap<String, Histogram> formats = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, Long> gauges = new ConcurrentSkipListMap<String, Long>();
+
+	private PhaseMetrics()
+	{
+		for (int i = 0; i < phases.length; i++)
+		{
+			phases[i] = new Histogram();
+		}
+	}
+
+	/**
+	 * Starts recording, discarding anything recorded so far.
+	 */
+	public static void enable()
+	{
+		current = new PhaseMetrics();
+	}
+
+	/**
+	 * Returns the metrics being recorded, or <code>null</code> if recording
+	 * is off.
+	 */
+	public static PhaseMetrics get()
+	{
+		return current;
+	}
+
+	/**
+	 * Returns the start time for a phase, or 0 if recording is off.
+	 */
+	public static long start()
+	{
+		return current == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Records a phase that began at <code>start</code>.
+	 */
+	public static void stop(Phase phase, long start)
+	{
+		PhaseMetrics metrics = current;
+		if (metrics != null && start != 0)
+		{
+			metrics.phases[phase.ordinal()].record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Records a phase that began at <code>start</code>, also counting it
+	 * against <code>format</code>. Only the parse phase is counted by format.
+	 */
+	public static void stop(Phase phase, long start, String format)
+	{
+		PhaseMetrics metrics = current;
+		if (metrics != null && start != 0)
+		{
+			long nanos = System.nanoTime() - start;
+			metrics.phases[phase.ordinal()].record(nanos);
+			metrics.getFormat(format).record(nanos);
+		}
+	}
+
+	/**
+	 * Records a setting or total that isn't a latency, such as the size of a
+	 * pool, replacing any earlier value of the same name. <code>name</code>
+	 * is lower case with underscores.
+	 */
+	public static void setGauge(String name, long value)
+	{
+		PhaseMetrics metrics = current;
+		if (metrics != null)
+		{
+			metrics.gauges.put(name, value);
+		}
+	}
+
+	/**
+	 * <code>ImageIO.createImageInputStream</code>, timed as the open phase.
+	 */
+	public static ImageInputStream openImageInputStream(File file) throws IOException
+	{
+		long start = start();
+		try
+		{
+			return ImageIO.createImageInputStream(file);
+		}
+		finally
+		{
+			stop(Phase.OPEN, start);
+		}
+	}
+
+	/**
+	 * <code>reader.getImageMetadata</code>, timed as the parse phase.
+	 */
+	public static IIOMetadata getImageMetadata(ImageReader reader, int imageIndex) throws IOException
+	{
+		long start = start();
+		try
+		{
+			return reader.getImageMetadata(imageIndex);
+		}
+		finally
+		{
+			stop(Phase.PARSE, start, reader.getFormatName());
+		}
+	}
+
+	/**
+	 * <code>reader.getStreamMetadata</code>, timed as the parse phase.
+	 */
+	public static IIOMetadata getStreamMetadata(ImageReader reader) throws IOException
+	{
+		long start = start();
+		try
+		{
+			return reader.getStreamMetadata();
+		}
+		finally
+		{
+			stop(Phase.PARSE, start, reader.getFormatName());
+		}
+	}
+
+	/**
+	 * <code>metadata.getAsTree</code>, timed as the tree phase.
+	 */
+	public static Node getAsTree(IIOMetadata metadata, String formatName)
+	{
+		long start = start();
+		try
+		{
+			return metadata.getAsTree(formatName);
+		}
+		finally
+		{
+			stop(Phase.TREE, start);
+		}
+	}
+
+	private Histogram getFormat(String format)
+	{
+		String key = format == null ? "unknown" : format.toLowerCase(Locale.ENGLISH);
+		Histogram histogram = formats.get(key);
+		if (histogram == null)
+		{
+			histogram = new Histogram();
+			Histogram existing = formats.putIfAbsent(key, histogram);
+			if (existing != null)
+			{
+				histogram = existing;
+			}
+		}
+		return histogram;
+	}
+
+	private List<String> getFormatNames()
+	{
+		List<String> names = new ArrayList<String>(formats.keySet());
+		Collections.sort(names);
+		return names;
+	}
+
+	private static String millis(long nanos)
+	{
+		return String.format(Locale.ENGLISH, "%.3f", nanos / 1e6);
+	}
+
+	private static String seconds(long nanos)
+	{
+		return String.format(Locale.ENGLISH, "%.9f", nanos / 1e9);
+	}
+
+	private static void printRow(PrintStream out, String name, Histogram histogram)
+	{
+		long[] quantiles = histogram.getQuantiles(QUANTILES);
+		out.println(String.format(	Locale.ENGLISH,
+									"%-12s %8d %10s %10s %10s %10s %12s",
+									name,
+									histogram.getCount(),
+									millis(quantiles[0]),
+									millis(quantiles[1]),
+									millis(quantiles[2]),
+									millis(histogram.getMax()),
+									millis(histogram.getSum())));
+	}
+
+	private static void printHeader(PrintStream out, String title)
+	{
+		out.println(String.format(	Locale.ENGLISH,
+									"%-12s %8s %10s %10s %10s %10s %12s",
+									title,
+									"count",
+									"p50 ms",
+									"p95 ms",
+									"p99 ms",
+									"max ms",
+									"total ms"));
+	}
+
+	/**
+	 * Prints a table of each phase's and format's latencies, in
+	 * milliseconds. Phases with nothing recorded are left out.
+	 */
+	public void printSummary(PrintStream out)
+	{
+		printHeader(out, "Phase");
+		for (Phase phase : Phase.values())
+		{
+			Histogram histogram = phases[phase.ordinal()];
+			if (histogram.getCount() > 0)
+			{
+				printRow(out, phase.label(), histogram);
+			}
+		}
+
+		if (!formats.isEmpty())
+		{
+			printHeader(out, "Parse by");
+			for (String format : getFormatNames())
+			{
+				printRow(out, format, formats.get(format));
+			}
+		}
+
+		if (!gauges.isEmpty())
+		{
+			out.println(String.format(Locale.ENGLISH, "%-28s %12s", "Gauge", "value"));
+			for (Map.Entry<String, Long> gauge : gauges.entrySet())
+			{
+				out.println(String.format(Locale.ENGLISH, "%-28s %12d", gauge.getKey(), gauge.getValue()));
+			}
+		}
+	}
+
+	private static void appendPrometheus(StringBuilder text, String name, String label, Histogram histogram)
+	{
+		long[] quantiles = histogram.getQuantiles(QUANTILES);
+		for (int i = 0; i < QUANTILES.length; i++)
+		{
+			text.append(name).append('{').append(label).append(",quantile=\"").append(QUANTILE_LABELS[i])
+				.append("\"} ").append(seconds(quantiles[i])).append('\n');
+		}
+		text.append(name).append("{").append(label).append(",quantile=\"1\"} ")
+			.append(seconds(histogram.getMax())).append('\n');
+		text.append(name).append("_sum{").append(label).append("} ").append(seconds(histogram.getSum()))
+			.append('\n');
+		text.append(name).append("_count{").append(label).append("} ").append(histogram.getCount())
+			.append('\n');
+	}
+
+	/**
+	 * Returns the metrics in the Prometheus text exposition format, as
+	 * summaries in seconds, and gauges. The maximum is reported as
+	 * quantile 1.
+	 */
+	public String toPrometheus()
+	{
+		StringBuilder text = new StringBuilder();
+		text.append("# HELP imageio_metadata_phase_seconds Time spent in each phase of handling a file.\n");
+		text.append("# TYPE imageio_metadata_phase_seconds summary\n");
+		for (Phase phase : Phase.values())
+		{
+			appendPrometheus(	text,
+								"imageio_metadata_phase_seconds",
+								"phase=\"" + phase.label() + "\"",
+								phases[phase.ordinal()]);
+		}
+
+		text.append("# HELP imageio_metadata_parse_seconds Time spent reading metadata, by image format.\n");
+		text.append("# TYPE imageio_metadata_parse_seconds summary\n");
+		for (String format : getFormatNames())
+		{
+			appendPrometheus(	text,
+								"imageio_metadata_parse_seconds",
+								"format=\"" + format.replace("\\", "\\\\").replace("\"", "\\\"") + "\"",
+								formats.get(format));
+		}
+
+		for (Map.Entry<String, Long> gauge : gauges.entrySet())
+		{
+			String name = "imageio_metadata_" + gauge.getKey();
+			text.append("# TYPE ").append(name).append(" gauge\n");
+			text.append(name).append(' ').append(gauge.getValue()).append('\n');
+		}
+		return text.toString();
+	}
+
+	private static void appendJson(StringBuilder text, String name, Histogram histogram)
+	{
+		long[] quantiles = histogram.getQuantiles(QUANTILES);
+		JsonMetadataSerializer.appendString(text, name);
+		text.append(":{\"count\":").append(histogram.getCount());
+		text.append(",\"sumSeconds\":").append(seconds(histogram.getSum()));
+		text.append(",\"p50Seconds\":").append(seconds(quantiles[0]));
+		text.append(",\"p95Seconds\":").append(seconds(quantiles[1]));
+		text.append(",\"p99Seconds\":").append(seconds(quantiles[2]));
+		text.append(",\"maxSeconds\":").append(seconds(histogram.getMax()));
+		text.append('}');
+	}
+
+	/**
+	 * Returns the metrics as a JSON object with <code>phases</code>,
+	 * <code>parseByFormat</code> and <code>gauges</code> members, durations
+	 * in seconds.
+	 */
+	public String toJson()
+	{
+		StringBuilder text = new StringBuilder("{\"phases\":{");
+		for (Phase phase : Phase.values())
+		{
+			if (phase.ordinal() > 0)
+			{
+				text.append(',');
+			}
+			appendJson(text, phase.label(), phases[phase.ordinal()]);
+		}
+		text.append("},\"parseByFormat\":{");
+		boolean first = true;
+		for (String format : getFormatNames())
+		{
+			if (!first)
+			{
+				text.append(',');
+			}
+			first = false;
+			appendJson(text, format, formats.get(format));
+		}
+		text.append("},\"gauges\":{");
+		first = true;
+		for (Map.Entry<String, Long> gauge : gauges.entrySet())
+		{
+			if (!first)
+			{
+				text.append(',');
+			}
+			first = false;
+			JsonMetadataSerializer.appendString(text, gauge.getKey());
+			text.append(':').append(gauge.getValue());
+		}
+		return text.append("}}\n").toString();
+	}
+
+	/**
+	 * Writes the metrics to <code>file</code>, as JSON if its name ends in
+	 * <code>.json</code> and in the Prometheus text format otherwise. The
+	 * file is replaced atomically, so a collector never sees half of it.
+	 */
+	public void export(File file) throws IOException
+	{
+		String text = file.getName().toLowerCase(Locale.ENGLISH).endsWith(".json") ? toJson() : toPrometheus();
+
+		File temp = new File(file.getPath() + ".tmp");
+		Files.write(temp.toPath(), text.getBytes(StandardCharsets.UTF_8));
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
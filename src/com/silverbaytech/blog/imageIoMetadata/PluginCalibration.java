@@ -0,0 +1,698 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageReaderWriterSpi;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Times every registered reader and writer for each format in a sample
+ * corpus and makes the fastest one that gets the right answer the default.
+ *
+ * A reader is correct if it reads the metadata and pixels of every sample
+ * of its format, and the pixels match those of the first reader, in
+ * registry order, that could read them. A writer is correct if it can
+ * encode every sample and the result reads back with the same size and,
+ * for lossless formats, the same pixels. Plugins that can't be loaded at
+ * all, such as JAI's native codecs when their library is missing or built
+ * for another architecture, are recorded as unavailable rather than
+ * stopping the run.
+ *
+ * The ranking is saved to a file that {@link #applyRanking(File)} reads
+ * back, so the tools can pick it up with <code>-ranking file</code>:
+ *
+ * <pre>
+ * # comment
+ * kind TAB format TAB pluginSpiClass TAB nanosPerPass|- [TAB reason]
+ * </pre>
+ *
+ * Lines for one kind and format are in rank order, correct plugins first.
+ */
+public class PluginCalibration
+{
+	private static final long DEFAULT_WARMUP_MILLIS = 500;
+	private static final long DEFAULT_MEASURE_MILLIS = 1000;
+
+	/**
+	 * How far apart two decodes of the same pixel may be, per channel, and
+	 * still count as the same. IDCT implementations legitimately differ by a
+	 * level or so.
+	 */
+	private static final int CHANNEL_TOLERANCE = 2;
+
+	/**
+	 * Formats whose writers aren't expected to reproduce the pixels.
+	 */
+	private static final Set<String> LOSSY_FORMATS = new HashSet<String>(Arrays.asList("jpeg", "jpeg2000"));
+
+	private static final String READER = "reader";
+	private static final String WRITER = "writer";
+
+	/**
+	 * One sample file, with its contents held in memory so the timings
+	 * aren't affected by the file system.
+	 */
+	private static class Sample
+	{
+		final File file;
+		final byte[] contents;
+		BufferedImage reference;
+
+		Sample(File file) throws IOException
+		{
+			this.file = file;
+			this.contents = Files.readAllBytes(file.toPath());
+		}
+	}
+
+	/**
+	 * The outcome for one plugin and format.
+	 */
+	private static class Entry
+	{
+		final String kind;
+		final String format;
+		final String plugin;
+		long nanosPerPass = -1;
+		String reason;
+
+		Entry(String kind, String format, String plugin)
+		{
+			this.kind = kind;
+			this.format = format;
+			this.plugin = plugin;
+		}
+
+		boolean isCorrect()
+		{
+			return nanosPerPass >= 0;
+		}
+	}
+
+	private static final Comparator<Entry> RANK_ORDER = new Comparator<Entry>()
+	{
+		@Override
+		public int compare(Entry a, Entry b)
+		{
+			if (a.isCorrect() != b.isCorrect())
+			{
+				return a.isCorrect() ? -1 : 1;
+			}
+			return Long.compare(a.nanosPerPass, b.nanosPerPass);
+		}
+	};
+
+	private interface Pass
+	{
+		/**
+		 * Processes every sample once.
+		 */
+		void run() throws Exception;
+	}
+
+	private static long time(Pass pass, long warmupMillis, long measureMillis) throws Exception
+	{
+		long deadline = System.nanoTime() + warmupMillis * 1000000L;
+		do
+		{
+			pass.run();
+		}
+		while (System.nanoTime() < deadline);
+
+		long passes = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do
+		{
+			pass.run();
+			passes++;
+			elapsed = System.nanoTime() - start;
+		}
+		while (elapsed < measureMillis * 1000000L);
+		return elapsed / passes;
+	}
+
+	private static String describe(Throwable e)
+	{
+		return (e.getClass().getSimpleName() + ": " + e.getMessage()).replace('\t', ' ').replace('\n', ' ');
+	}
+
+	private static boolean samePixels(BufferedImage a, BufferedImage b, int tolerance)
+	{
+		int width = a.getWidth();
+		int height = a.getHeight();
+		if (width != b.getWidth() || height != b.getHeight())
+		{
+			return false;
+		}
+
+		int[] rowA = new int[width];
+		int[] rowB = new int[width];
+		for (int y = 0; y < height; y++)
+		{
+			a.getRGB(0, y, width, 1, rowA, 0, width);
+			b.getRGB(0, y, width, 1, rowB, 0, width);
+			for (int x = 0; x < width; x++)
+			{
+				int pixelA = rowA[x];
+				int pixelB = rowB[x];
+				for (int shift = 0; shift < 32; shift += 8)
+				{
+					int difference = ((pixelA >>> shift) & 0xFF) - ((pixelB >>> shift) & 0xFF);
+					if (Math.abs(difference) > tolerance)
+					{
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private static BufferedImage read(ImageReader reader, byte[] contents) throws IOException
+	{
+		ImageInputStream stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(contents));
+		try
+		{
+			reader.setInput(stream, true);
+			reader.getImageMetadata(0);
+			return reader.read(0);
+		}
+		finally
+		{
+			reader.reset();
+			stream.close();
+		}
+	}
+
+	private static byte[] write(ImageWriter writer, BufferedImage image) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(bytes);
+		try
+		{
+			writer.setOutput(stream);
+			writer.write(image);
+		}
+		finally
+		{
+			writer.reset();
+			stream.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Entry calibrateReader(final ImageReaderSpi spi, String format, final List<Sample> samples,
+											long warmupMillis, long measureMillis)
+	{
+		Entry entry = new Entry(READER, format, spi.getClass().getName());
+		ImageReader instance = null;
+		try
+		{
+			instance = spi.createReaderInstance();
+			final ImageReader reader = instance;
+			for (Sample sample : samples)
+			{
+				BufferedImage image = read(reader, sample.contents);
+				if (sample.reference == null)
+				{
+					sample.reference = image;
+				}
+				else if (!samePixels(sample.reference, image, CHANNEL_TOLERANCE))
+				{
+					entry.reason = "decodes " + sample.file.getName() + " differently";
+					return entry;
+				}
+			}
+
+			entry.nanosPerPass = time(new Pass()
+			{
+				@Override
+				public void run() throws IOException
+				{
+					for (Sample sample : samples)
+					{
+						read(reader, sample.contents);
+					}
+				}
+			}, warmupMillis, measureMillis);
+		}
+		catch (Exception | LinkageError e)
+		{
+			entry.reason = describe(e);
+		}
+		finally
+		{
+			if (instance != null)
+			{
+				instance.dispose();
+			}
+		}
+		return entry;
+	}
+
+	private static Entry calibrateWriter(ImageWriterSpi spi, String format, final List<Sample> samples,
+											ImageReaderSpi readBack, long warmupMillis, long measureMillis)
+	{
+		Entry entry = new Entry(WRITER, format, spi.getClass().getName());
+		ImageWriter instance = null;
+		ImageReader reader = null;
+		try
+		{
+			final List<BufferedImage> images = new ArrayList<BufferedImage>();
+			for (Sample sample : samples)
+			{
+				if (sample.reference != null)
+				{
+					if (!spi.canEncodeImage(sample.reference))
+					{
+						entry.reason = "can't encode " + sample.file.getName();
+						return entry;
+					}
+					images.add(sample.reference);
+				}
+			}
+			if (images.isEmpty())
+			{
+				entry.reason = "no readable samples";
+				return entry;
+			}
+
+			instance = spi.createWriterInstance();
+			reader = readBack.createReaderInstance();
+			int tolerance = LOSSY_FORMATS.contains(format) ? 255 : CHANNEL_TOLERANCE;
+			for (BufferedImage image : images)
+			{
+				BufferedImage result = read(reader, write(instance, image));
+				if (!samePixels(image, result, tolerance))
+				{
+					entry.reason = "doesn't round-trip";
+					return entry;
+				}
+			}
+
+			final ImageWriter writer = instance;
+			entry.nanosPerPass = time(new Pass()
+			{
+				@Override
+				public void run() throws IOException
+				{
+					for (BufferedImage image : images)
+					{
+						write(writer, image);
+					}
+				}
+			}, warmupMillis, measureMillis);
+		}
+		catch (Exception | LinkageError e)
+		{
+			entry.reason = describe(e);
+		}
+		finally
+		{
+			if (instance != null)
+			{
+				instance.dispose();
+			}
+			if (reader != null)
+			{
+				reader.dispose();
+			}
+		}
+		return entry;
+	}
+
+	private static boolean hasFormat(ImageReaderWriterSpi spi, String format)
+	{
+		for (String name : spi.getFormatNames())
+		{
+			if (name.equalsIgnoreCase(format))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Times the readers and then the writers for one format. Returns the
+	 * entries in rank order.
+	 */
+	private static List<Entry> calibrate(String format, List<Sample> samples, long warmupMillis,
+											long measureMillis)
+	{
+		List<Entry> readers = new ArrayList<Entry>();
+		Map<String, ImageReaderSpi> readerSpis = new HashMap<String, ImageReaderSpi>();
+		for (ImageReaderSpi spi : FormatSniffer.getReaderSpis(format))
+		{
+			readers.add(calibrateReader(spi, format, samples, warmupMillis, measureMillis));
+			readerSpis.put(spi.getClass().getName(), spi);
+		}
+		Collections.sort(readers, RANK_ORDER);
+
+		List<Entry> entries = new ArrayList<Entry>(readers);
+		if (readers.isEmpty() || !readers.get(0).isCorrect())
+		{
+			return entries;
+		}
+
+		ImageReaderSpi readBack = readerSpis.get(readers.get(0).plugin);
+		List<Entry> writers = new ArrayList<Entry>();
+		Iterator<ImageWriterSpi> spis = IIORegistry.getDefaultInstance().getServiceProviders(	ImageWriterSpi.class,
+																								true);
+		while (spis.hasNext())
+		{
+			ImageWriterSpi spi = spis.next();
+			if (hasFormat(spi, format))
+			{
+				writers.add(calibrateWriter(spi, format, samples, readBack, warmupMillis, measureMillis));
+			}
+		}
+		Collections.sort(writers, RANK_ORDER);
+		entries.addAll(writers);
+		return entries;
+	}
+
+	private static void print(PrintStream out, Entry entry)
+	{
+		String result = entry.isCorrect() ? String.format(Locale.ENGLISH, "%12.3f ms", entry.nanosPerPass / 1e6)
+			: "    -        " + entry.reason;
+		out.println(String.format("    %-7s%s  %s", entry.kind, result, entry.plugin));
+	}
+
+	/**
+	 * Writes the ranking in the format {@link #applyRanking(File)} reads.
+	 */
+	private static void saveRanking(List<Entry> entries, File rankingFile) throws IOException
+	{
+		File temporary = new File(rankingFile.getPath() + ".tmp");
+		Writer writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8);
+		try
+		{
+			writer.write("# Plugin ranking by PluginCalibration on Java " + System.getProperty("java.version")
+							+ ", " + System.getProperty("os.arch") + "\n");
+			for (Entry entry : entries)
+			{
+				writer.write(entry.kind + "\t" + entry.format + "\t" + entry.plugin + "\t"
+								+ (entry.isCorrect() ? Long.toString(entry.nanosPerPass) : "-")
+								+ (entry.reason != null ? "\t" + entry.reason : "") + "\n");
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+		Files.move(temporary.toPath(), rankingFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static <T> Map<String, T> getProviders(IIORegistry registry, Class<T> category)
+	{
+		Map<String, T> providers = new HashMap<String, T>();
+		Iterator<T> iterator = registry.getServiceProviders(category, false);
+		while (iterator.hasNext())
+		{
+			T provider = iterator.next();
+			providers.put(provider.getClass().getName(), provider);
+		}
+		return providers;
+	}
+
+	/**
+	 * Orders the providers named in <code>ranking</code> that are installed
+	 * so that each comes ahead of every one after it.
+	 */
+	private static <T> void order(IIORegistry registry, Class<T> category, Map<String, T> providers,
+									List<String> ranking)
+	{
+		List<T> installed = new ArrayList<T>();
+		for (String name : ranking)
+		{
+			T provider = providers.get(name);
+			if (provider != null && !installed.contains(provider))
+			{
+				installed.add(provider);
+			}
+		}
+
+		for (int i = 0; i < installed.size(); i++)
+		{
+			for (int j = i + 1; j < installed.size(); j++)
+			{
+				/*
+				 * Any ordering the other way, such as one a plugin set when
+				 * it was registered, would make a cycle, which hides both.
+				 */
+				registry.unsetOrdering(category, installed.get(j), installed.get(i));
+				registry.setOrdering(category, installed.get(i), installed.get(j));
+			}
+		}
+	}
+
+	/**
+	 * Reorders the registry's readers and writers according to a saved
+	 * ranking. Plugins in the ranking that aren't installed here, for
+	 * example native codecs on a machine without their library, are
+	 * ignored.
+	 */
+	public static void applyRanking(File rankingFile) throws IOException
+	{
+		Map<String, List<String>> rankings = new LinkedHashMap<String, List<String>>();
+		BufferedReader reader = Files.newBufferedReader(rankingFile.toPath(), StandardCharsets.UTF_8);
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				if (line.isEmpty() || line.startsWith("#"))
+				{
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length < 4)
+				{
+					throw new IOException("Malformed ranking line: " + line);
+				}
+				String key = fields[0] + "\t" + fields[1];
+				List<String> ranking = rankings.get(key);
+				if (ranking == null)
+				{
+					ranking = new ArrayList<String>();
+					rankings.put(key, ranking);
+				}
+				ranking.add(fields[2]);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		IIORegistry registry = IIORegistry.getDefaultInstance();
+		Map<String, ImageReaderSpi> readers = getProviders(registry, ImageReaderSpi.class);
+		Map<String, ImageWriterSpi> writers = getProviders(registry, ImageWriterSpi.class);
+		for (Map.Entry<String, List<String>> ranking : rankings.entrySet())
+		{
+			if (ranking.getKey().startsWith(READER + "\t"))
+			{
+				order(registry, ImageReaderSpi.class, readers, ranking.getValue());
+			}
+			else if (ranking.getKey().startsWith(WRITER + "\t"))
+			{
+				order(registry, ImageWriterSpi.class, writers, ranking.getValue());
+			}
+		}
+		FormatSniffer.refresh();
+	}
+
+	private static void addFiles(List<File> files, File fileOrDirectory)
+	{
+		if (fileOrDirectory.isFile())
+		{
+			files.add(fileOrDirectory);
+			return;
+		}
+
+		File[] children = fileOrDirectory.listFiles();
+		if (children == null)
+		{
+			System.out.println("Can't read " + fileOrDirectory);
+			return;
+		}
+		Arrays.sort(children);
+		for (File file : children)
+		{
+			if (file.isFile())
+			{
+				files.add(file);
+			}
+		}
+	}
+
+	private static String requireValue(String[] args, int i)
+	{
+		if (i + 1 >= args.length)
+		{
+			throw new IllegalArgumentException(args[i] + " requires a value");
+		}
+		return args[i + 1];
+	}
+
+	private static long requireMillis(String[] args, int i, long minimum)
+	{
+		String value = requireValue(args, i);
+		try
+		{
+			long millis = Long.parseLong(value);
+			if (millis >= minimum)
+			{
+				return millis;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+		}
+		throw new IllegalArgumentException(args[i] + " requires at least " + minimum + " ms, not " + value);
+	}
+
+	public static void main(String[] args)
+	{
+		long warmupMillis = DEFAULT_WARMUP_MILLIS;
+		long measureMillis = DEFAULT_MEASURE_MILLIS;
+		File rankingFile = null;
+		List<String> inputs = new ArrayList<String>();
+
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				String arg = args[i];
+				if (arg.equals("-warmup"))
+				{
+					warmupMillis = requireMillis(args, i++, 0);
+				}
+				else if (arg.equals("-time"))
+				{
+					measureMillis = requireMillis(args, i++, 1);
+				}
+				else if (arg.equals("-ranking"))
+				{
+					rankingFile = new File(requireValue(args, i++));
+				}
+				else if (arg.startsWith("-"))
+				{
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+				else
+				{
+					inputs.add(arg);
+				}
+			}
+
+			if (inputs.isEmpty())
+			{
+				throw new IllegalArgumentException("No files given");
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.out.println(e.getMessage());
+			System.out.println("Usage: PluginCalibration [-warmup ms] [-time ms] [-ranking file]");
+			System.out.println("           fileOrDirectory [...fileOrDirectory]");
+			return;
+		}
+
+		try
+		{
+			List<File> files = new ArrayList<File>();
+			for (String input : inputs)
+			{
+				addFiles(files, new File(input));
+			}
+
+			Map<String, List<Sample>> samplesByFormat = new TreeMap<String, List<Sample>>();
+			for (File file : files)
+			{
+				String format = FormatSniffer.sniffFormat(file);
+				if (format == null)
+				{
+					continue;
+				}
+				List<Sample> samples = samplesByFormat.get(format);
+				if (samples == null)
+				{
+					samples = new ArrayList<Sample>();
+					samplesByFormat.put(format, samples);
+				}
+				samples.add(new Sample(file));
+			}
+
+			List<Entry> entries = new ArrayList<Entry>();
+			for (Map.Entry<String, List<Sample>> format : samplesByFormat.entrySet())
+			{
+				System.out.println(format.getKey() + " (" + format.getValue().size() + " samples):");
+				for (Entry entry : calibrate(format.getKey(), format.getValue(), warmupMillis, measureMillis))
+				{
+					print(System.out, entry);
+					entries.add(entry);
+				}
+			}
+
+			if (rankingFile != null)
+			{
+				saveRanking(entries, rankingFile);
+				System.out.println("\nRanking saved to " + rankingFile);
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The I/O stage of a {@link BatchProcessor} pipeline. Files are read ahead
+ * of the threads that parse them with <code>AsynchronousFileChannel</code>,
+ * so waiting for the disk overlaps with parsing earlier files instead of
+ * holding up a parsing thread.
+ *
+ * Each file is read into a buffer from a fixed pool: the whole file if it
+ * fits, which {@link FileChannelStreams} then reads from without touching
+ * the file again, and otherwise its first buffer's worth, which is where
+ * nearly every format keeps its header and which leaves that part in the
+ * page cache for the mapping the stream makes. When the read finishes the
+ * file is handed to the parsing executor.
+ *
+ * At most <code>depth</code> files are between being submitted and being
+ * parsed at once; submitting another waits for one of them to finish, as
+ * does running out of buffers, so a slow parsing stage holds back the
+ * reads rather than letting them run ahead without limit.
+ */
+public class PrefetchStage
+{
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * A file on its way through the pipeline.
+	 */
+	public static class Prefetched
+	{
+		private final File file;
+		private ByteBuffer buffer;
+		private boolean complete;
+		private long readyStart;
+
+		Prefetched(File file, ByteBuffer buffer)
+		{
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		public File getFile()
+		{
+			return file;
+		}
+
+		/**
+		 * Returns the whole file, or <code>null</code> if it didn't fit in
+		 * the buffer or couldn't be read.
+		 */
+		public ByteBuffer getContents()
+		{
+			return complete ? buffer.asReadOnlyBuffer() : null;
+		}
+	}
+
+	private final int depth;
+	private final int bufferCount;
+	private final int bufferSize;
+	private final Semaphore slots;
+	private final BlockingQueue<ByteBuffer> buffers;
+	private final AtomicInteger allocated = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger peakInFlight = new AtomicInteger();
+	private final AtomicLong files = new AtomicLong();
+	private final AtomicLong wholeFiles = new AtomicLong();
+	private final AtomicLong failedFiles = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong stalls = new AtomicLong();
+
+	/**
+	 * @param depth most files read or waiting to be parsed at once.
+	 * @param bufferCount number of buffers in the pool, which are allocated
+	 *            as they're first needed.
+	 * @param bufferSize size of each buffer; files no larger than this are
+	 *            read whole.
+	 */
+	public PrefetchStage(int depth, int bufferCount, int bufferSize)
+	{
+		if (depth < 1 || bufferCount < 1 || bufferSize < 1)
+		{
+			throw new IllegalArgumentException("Prefetch depth, buffer count and size must be at least 1");
+		}
+		this.depth = depth;
+		this.bufferCount = bufferCount;
+		this.bufferSize = bufferSize;
+		slots = new Semaphore(depth);
+		buffers = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+	}
+
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * Allocates another buffer, or returns <code>null</code> if the pool
+	 * already has all it may.
+	 */
+	private ByteBuffer allocateBuffer()
+	{
+		if (allocated.incrementAndGet() <= bufferCount)
+		{
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		allocated.decrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Reserves a place in the pipeline and a buffer for <code>file</code>,
+	 * waiting for earlier files to be parsed if necessary.
+	 */
+	public Prefetched acquire(File file) throws InterruptedException
+	{
+		long start = PhaseMetrics.start();
+		boolean stalled = false;
+		if (!slots.tryAcquire())
+		{
+			stalled = true;
+			slots.acquire();
+		}
+
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null)
+		{
+			buffer = allocateBuffer();
+		}
+		if (buffer == null)
+		{
+			stalled = true;
+			try
+			{
+				buffer = buffers.take();
+			}
+			catch (InterruptedException e)
+			{
+				slots.release();
+				throw e;
+			}
+		}
+
+		if (stalled)
+		{
+			stalls.incrementAndGet();
+			PhaseMetrics.stop(PhaseMetrics.Phase.STALL, start);
+		}
+
+		int current = inFlight.incrementAndGet();
+		int peak;
+		while (current > (peak = peakInFlight.get()) && !peakInFlight.compareAndSet(peak, current))
+		{
+		}
+
+		buffer.clear();
+		return new Prefetched(file, buffer);
+	}
+
+	/**
+	 * Reads the file in the background and then runs <code>next</code> on
+	 * <code>executor</code>. If the file can't be read, <code>next</code>
+	 * still runs, and finds the error for itself when it opens the file.
+	 */
+	public void read(final Prefetched prefetched, final Executor executor, final Runnable next)
+	{
+		files.incrementAndGet();
+		final long start = PhaseMetrics.start();
+		final AsynchronousFileChannel channel;
+		final long length;
+		try
+		{
+			channel = AsynchronousFileChannel.open(prefetched.file.toPath(), StandardOpenOption.READ);
+			length = channel.size();
+		}
+		catch (IOException e)
+		{
+			failedFiles.incrementAndGet();
+			prefetched.readyStart = PhaseMetrics.start();
+			executor.execute(next);
+			return;
+		}
+
+		final ByteBuffer buffer = prefetched.buffer;
+		if (length < buffer.capacity())
+		{
+			buffer.limit((int)length);
+		}
+
+		channel.read(buffer, 0, prefetched, new CompletionHandler<Integer, Prefetched>()
+		{
+			private void finish(boolean succeeded)
+			{
+				try
+				{
+					channel.close();
+				}
+				catch (IOException e)
+				{
+					succeeded = false;
+				}
+
+				if (succeeded)
+				{
+					bytesRead.addAndGet(buffer.position());
+					prefetched.complete = buffer.position() == length;
+					if (prefetched.complete)
+					{
+						wholeFiles.incrementAndGet();
+					}
+				}
+				else
+				{
+					failedFiles.incrementAndGet();
+				}
+				buffer.flip();
+				PhaseMetrics.stop(PhaseMetrics.Phase.PREFETCH, start);
+
+				prefetched.readyStart = PhaseMetrics.start();
+				executor.execute(next);
+			}
+
+			@Override
+			public void completed(Integer count, Prefetched attachment)
+			{
+				if (count < 0 || !buffer.hasRemaining())
+				{
+					finish(true);
+					return;
+				}
+				channel.read(buffer, buffer.position(), attachment, this);
+			}
+
+			@Override
+			public void failed(Throwable e, Prefetched attachment)
+			{
+				finish(false);
+			}
+		});
+	}
+
+	/**
+	 * Called on the parsing thread as it picks the file up.
+	 */
+	public void started(Prefetched prefetched)
+	{
+		PhaseMetrics.stop(PhaseMetrics.Phase.QUEUE, prefetched.readyStart);
+	}
+
+	/**
+	 * Returns the file's place and buffer once it's been parsed. Nothing may
+	 * use its contents afterwards.
+	 */
+	public void release(Prefetched prefetched)
+	{
+		ByteBuffer buffer = prefetched.buffer;
+		prefetched.buffer = null;
+		prefetched.complete = false;
+		buffers.add(buffer);
+		inFlight.decrementAndGet();
+		slots.release();
+	}
+
+	/**
+	 * Reports the stage's settings and what it did as metric gauges.
+	 */
+	public void publishMetrics()
+	{
+		PhaseMetrics.setGauge("prefetch_queue_depth", depth);
+		PhaseMetrics.setGauge("prefetch_buffers", bufferCount);
+		PhaseMetrics.setGauge("prefetch_buffer_bytes", bufferSize);
+		PhaseMetrics.setGauge("prefetch_buffers_allocated", Math.min(allocated.get(), bufferCount));
+		PhaseMetrics.setGauge("prefetch_peak_queued", peakInFlight.get());
+		PhaseMetrics.setGauge("prefetch_files", files.get());
+		PhaseMetrics.setGauge("prefetch_whole_files", wholeFiles.get());
+		PhaseMetrics.setGauge("prefetch_failed_files", failedFiles.get());
+		PhaseMetrics.setGauge("prefetch_bytes", bytesRead.get());
+		PhaseMetrics.setGauge("prefetch_stalls", stalls.get());
+	}
+}
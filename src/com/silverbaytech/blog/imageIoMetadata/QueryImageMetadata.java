@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+import com.silverbaytech.blog.imageIoMetadata.BatchProcessor.FileTask;
+
+/**
+ * Prints selected values from the image metadata of the first image in each
+ * file, given as {@link MetadataQuery} paths, e.g.
+ *
+ * <pre>
+ * QueryImageMetadata -query javax_imageio_1.0/Compression/CompressionTypeName@value
+ *                    -query javax_imageio_png_1.0/iCCP testFiles
+ * </pre>
+ */
+public class QueryImageMetadata
+{
+	private static MetadataQuery[] queries;
+
+	private static void processFile(PrintStream out, File file) throws IOException
+	{
+		out.println("\nProcessing " + file.getName() + ":\n");
+
+		List<ImageReaderSpi> spis = FormatSniffer.findReaderSpis(file);
+		if (spis.isEmpty())
+		{
+			out.println("    No compatible reader found");
+			return;
+		}
+
+		ReaderWriterPool pool = ReaderWriterPool.getDefault();
+		ImageReader reader = pool.getReader(spis.get(0));
+		ImageInputStream stream = null;
+		try
+		{
+			stream = PhaseMetrics.openImageInputStream(file);
+
+			reader.setInput(stream, true);
+
+			IIOMetadata metadata = PhaseMetrics.getImageMetadata(reader, 0);
+			String[] values = MetadataQuery.evaluate(metadata, queries);
+			for (int i = 0; i < queries.length; i++)
+			{
+				out.println("    " + queries[i] + ": " + (values[i] == null ? "(not found)" : values[i]));
+			}
+		}
+		finally
+		{
+			if (stream != null)
+			{
+				stream.close();
+			}
+			pool.release(reader);
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		PrintStream out = BatchOptions.createStandardOutput();
+
+		try
+		{
+			BatchOptions options = new BatchOptions();
+			List<String> arguments = options.parse(args);
+
+			List<MetadataQuery> compiled = new ArrayList<MetadataQuery>();
+			StringBuilder namespace = new StringBuilder("QueryImageMetadata");
+			Iterator<String> flags = arguments.iterator();
+			while (flags.hasNext())
+			{
+				String flag = flags.next();
+				if (flag.equals("-query"))
+				{
+					flags.remove();
+					if (!flags.hasNext())
+					{
+						throw new IllegalArgumentException("-query requires a path");
+					}
+					String path = flags.next();
+					compiled.add(MetadataQuery.compile(path));
+					namespace.append(' ').append(path);
+					flags.remove();
+				}
+			}
+
+			if (compiled.isEmpty() || arguments.isEmpty())
+			{
+				throw new IllegalArgumentException(compiled.isEmpty() ? "No -query given" : "No files given");
+			}
+			queries = compiled.toArray(new MetadataQuery[compiled.size()]);
+
+			BatchProcessor batch = options.createProcessor(new FileTask()
+			{
+				@Override
+				public void process(File file, PrintStream out) throws IOException
+				{
+					processFile(out, file);
+				}
+			}, namespace.toString(), out);
+
+			for (String argument : arguments)
+			{
+				File fileOrDirectory = new File(argument);
+
+				if (fileOrDirectory.isFile())
+				{
+					batch.submit(fileOrDirectory);
+				}
+				else
+				{
+					options.getWalker().walk(fileOrDirectory, batch);
+				}
+			}
+
+			options.finish(batch);
+
+			out.println("\nDone");
+		}
+		catch (IllegalArgumentException e)
+		{
+			out.flush();
+			BatchOptions.printUsage(e, "Usage: QueryImageMetadata -query path [-query path ...] [batch options] fileOrDirectory [...]");
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			out.flush();
+		}
+	}
+}
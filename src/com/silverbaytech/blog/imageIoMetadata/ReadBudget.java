@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * Limits on the work done for one file, so that a malformed file, such as a
+ * TIFF whose IFDs form a loop, can't hold up a batch indefinitely.
+ *
+ * <ul>
+ * <li>Bytes read: every stream opened for the file is wrapped to count what
+ * the readers read, including reading the same bytes again, which is what
+ * a loop does.</li>
+ * <li>Metadata nodes: the trees built from the file's metadata.</li>
+ * <li>Time: once the deadline passes, every reader working on the file is
+ * asked to <code>abort()</code>, and the file's streams fail every read.
+ * Most plugins only check for an abort while decoding pixels, so it's the
+ * streams that stop a metadata parse.</li>
+ * </ul>
+ *
+ * Going over any of them throws {@link BudgetExceededException}. A budget
+ * is used for a single file, from {@link #start()} to {@link #finish()},
+ * but may be charged from several threads at once.
+ */
+public class ReadBudget
+{
+	/**
+	 * The limits to apply to each file. Zero means no limit.
+	 */
+	public static class Limits
+	{
+		public static final Limits NONE = new Limits(0, 0, 0);
+
+		private final long maxBytes;
+		private final long maxNodes;
+		private final long timeoutMillis;
+
+		public Limits(long maxBytes, long maxNodes, long timeoutMillis)
+		{
+			if (maxBytes < 0 || maxNodes < 0 || timeoutMillis < 0)
+			{
+				throw new IllegalArgumentException("Budget limits can't be negative");
+			}
+			this.maxBytes = maxBytes;
+			this.maxNodes = maxNodes;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		public Limits withMaxBytes(long value)
+		{
+			return new Limits(value, maxNodes, timeoutMillis);
+		}
+
+		public Limits withMaxNodes(long value)
+		{
+			return new Limits(maxBytes, value, timeoutMillis);
+		}
+
+		public Limits withTimeoutMillis(long value)
+		{
+			return new Limits(maxBytes, maxNodes, value);
+		}
+	}
+
+	/**
+	 * Thrown when a file goes over its budget. The tools report it
+	 * separately from other failures, since it says the file is too costly
+	 * to read rather than that it can't be.
+	 */
+	public static class BudgetExceededException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		public BudgetExceededException(String message)
+		{
+			super(message);
+		}
+	}
+
+	/**
+	 * Runs the deadlines. Its thread is a daemon, so it never keeps a tool
+	 * running, and is only started by the first budget with a timeout.
+	 */
+	private static class Timer
+	{
+		static final ScheduledExecutorService INSTANCE = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "ReadBudget deadline");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	private final Limits limits;
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong nodes = new AtomicLong();
+	private final List<ImageReader> readers = new CopyOnWriteArrayList<ImageReader>();
+	private volatile long deadline;
+	private volatile boolean expired;
+	private volatile BudgetExceededException exceeded;
+	private ScheduledFuture<?> timer;
+
+	public ReadBudget(Limits limits)
+	{
+		this.limits = limits;
+	}
+
+	/**
+	 * Starts the clock.
+	 */
+	public void start()
+	{
+		if (limits.timeoutMillis > 0)
+		{
+			deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(limits.timeoutMillis);
+			timer = Timer.INSTANCE.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					expire();
+				}
+			}, limits.timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void expire()
+	{
+		expired = true;
+		for (ImageReader reader : readers)
+		{
+			reader.abort();
+		}
+	}
+
+	/**
+	 * Stops the clock.
+	 */
+	public void finish()
+	{
+		if (timer != null)
+		{
+			timer.cancel(false);
+		}
+	}
+
+	private BudgetExceededException exceeded(String message)
+	{
+		BudgetExceededException e = new BudgetExceededException(message);
+		if (exceeded == null)
+		{
+			exceeded = e;
+		}
+		return e;
+	}
+
+	/**
+	 * Throws if the deadline has passed.
+	 */
+	public void check() throws BudgetExceededException
+	{
+		if (expired || (deadline != 0 && System.nanoTime() - deadline >= 0))
+		{
+			throw exceeded("took longer than " + limits.timeoutMillis + " ms");
+		}
+	}
+
+	private void chargeBytes(long count) throws BudgetExceededException
+	{
+		if (limits.maxBytes > 0 && bytes.addAndGet(count) > limits.maxBytes)
+		{
+			throw exceeded("read more than " + limits.maxBytes + " bytes");
+		}
+	}
+
+	/**
+	 * Counts nodes of metadata trees built from the file.
+	 */
+	public void chargeNodes(long count) throws BudgetExceededException
+	{
+		if (limits.maxNodes > 0 && nodes.addAndGet(count) > limits.maxNodes)
+		{
+			throw exceeded("has more than " + limits.maxNodes + " metadata nodes");
+		}
+	}
+
+	/**
+	 * Has <code>reader</code> aborted if the deadline passes while it's
+	 * working on the file, until it's unregistered.
+	 */
+	public void register(ImageReader reader)
+	{
+		if (limits.timeoutMillis > 0)
+		{
+			readers.add(reader);
+			if (expired)
+			{
+				reader.abort();
+			}
+		}
+	}
+
+	public void unregister(ImageReader reader)
+	{
+		readers.remove(reader);
+	}
+
+	/**
+	 * Returns <code>true</code> if the file has gone over budget, in which
+	 * case its readers may have been aborted and are best not reused.
+	 */
+	public boolean isExceeded()
+	{
+		return exceeded != null || expired;
+	}
+
+	/**
+	 * Returns the exception to report for a file that failed with
+	 * <code>e</code>. Plugins often wrap the exceptions their streams
+	 * throw, or fail some other way once they're cut off, so if the file
+	 * went over budget that's reported instead.
+	 */
+	public Exception explain(Exception e)
+	{
+		if (e instanceof BudgetExceededException || !isExceeded())
+		{
+			return e;
+		}
+		if (exceeded != null)
+		{
+			return exceeded;
+		}
+		return new BudgetExceededException("took longer than " + limits.timeoutMillis + " ms");
+	}
+
+	/**
+	 * Returns a stream that charges what's read from <code>stream</code> to
+	 * the budget, or <code>stream</code> itself if there's nothing to
+	 * charge.
+	 */
+	public ImageInputStream wrap(ImageInputStream stream)
+	{
+		if (stream == null || (limits.maxBytes == 0 && limits.timeoutMillis == 0))
+		{
+			return stream;
+		}
+		return new BudgetedImageInputStream(stream);
+	}
+
+	/**
+	 * Passes reads through to another stream, charging them to the budget.
+	 */
+	private class BudgetedImageInputStream extends ImageInputStreamImpl
+	{
+		private final ImageInputStream stream;
+
+		BudgetedImageInputStream(ImageInputStream stream)
+		{
+			this.stream = stream;
+			streamPos = 0;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			checkClosed();
+			check();
+			bitOffset = 0;
+			int value = stream.read();
+			if (value >= 0)
+			{
+				streamPos++;
+				chargeBytes(1);
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			checkClosed();
+			check();
+			bitOffset = 0;
+			int count = stream.read(b, off, len);
+			if (count > 0)
+			{
+				streamPos += count;
+				chargeBytes(count);
+			}
+			return count;
+		}
+
+		@Override
+		public void seek(long pos) throws IOException
+		{
+			super.seek(pos);
+			stream.seek(pos);
+		}
+
+		@Override
+		public void flushBefore(long pos) throws IOException
+		{
+			super.flushBefore(pos);
+			stream.flushBefore(pos);
+		}
+
+		@Override
+		public long length()
+		{
+			try
+			{
+				return stream.length();
+			}
+			catch (IOException e)
+			{
+				return -1;
+			}
+		}
+
+		@Override
+		public boolean isCached()
+		{
+			return stream.isCached();
+		}
+
+		@Override
+		public boolean isCachedMemory()
+		{
+			return stream.isCachedMemory();
+		}
+
+		@Override
+		public boolean isCachedFile()
+		{
+			return stream.isCachedFile();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			super.close();
+			stream.close();
+		}
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageReaderWriterSpi;
+import javax.imageio.spi.ImageWriterSpi;
+
+/**
+ * Keeps <code>ImageReader</code> and <code>ImageWriter</code> instances for
+ * reuse, keyed by the SPI that created them.
+ *
+ * Readers and writers aren't thread-safe, so each thread has its own set.
+ * An instance is <code>reset()</code> when it's released and
+ * <code>dispose()</code>d when it's evicted or the pool is disposed, which
+ * matters for plugins such as JAI's that hold native resources.
+ *
+ * Virtual threads aren't pooled for: each runs a single task, so nothing
+ * kept for one would be reused, and it would be held until the pool is
+ * disposed. Their instances are disposed as soon as they're released.
+ */
+public class ReaderWriterPool
+{
+	/**
+	 * Maximum number of idle instances kept per thread.
+	 */
+	private static final int MAX_PER_THREAD = 16;
+
+	private static final ReaderWriterPool DEFAULT = new ReaderWriterPool();
+
+	/**
+	 * <code>Thread.isVirtual()</code>, on Java 21 and later.
+	 */
+	private static final Method IS_VIRTUAL = findIsVirtual();
+
+	/**
+	 * Plugins whose <code>reset()</code> doesn't clear everything from the
+	 * previous image. Both BMP readers keep the palette, so a 24-bit file
+	 * read after a palette file reports the old palette in its metadata.
+	 */
+	private static final Set<String> NOT_REUSABLE = new HashSet<String>(Arrays.asList(
+		"com.sun.imageio.plugins.bmp.BMPImageReader",
+		"com.sun.media.imageioimpl.plugins.bmp.BMPImageReader"));
+
+	private static class Slot
+	{
+		final Object instance;
+		boolean inUse;
+
+		Slot(Object instance)
+		{
+			this.instance = instance;
+		}
+	}
+
+	/**
+	 * A thread's instances. The generation lets {@link #dispose()} invalidate
+	 * the maps of threads it can't reach.
+	 */
+	private class ThreadSlots extends LinkedHashMap<Object, Slot>
+	{
+		private static final long serialVersionUID = 1L;
+
+		final int generation;
+
+		ThreadSlots(int generation)
+		{
+			super(16, 0.75f, true);
+			this.generation = generation;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, Slot> eldest)
+		{
+			if (size() > MAX_PER_THREAD && !eldest.getValue().inUse)
+			{
+				evictions.incrementAndGet();
+				destroy(eldest.getValue().instance);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private final ThreadLocal<ThreadSlots> slots = new ThreadLocal<ThreadSlots>();
+	private final Set<Object> live = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+	private final AtomicInteger generation = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static Method findIsVirtual()
+	{
+		try
+		{
+			return Thread.class.getMethod("isVirtual");
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+
+	private static boolean isPooledThread()
+	{
+		if (IS_VIRTUAL == null)
+		{
+			return true;
+		}
+		try
+		{
+			return !((Boolean)IS_VIRTUAL.invoke(Thread.currentThread())).booleanValue();
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the pool shared by the tools in this package.
+	 */
+	public static ReaderWriterPool getDefault()
+	{
+		return DEFAULT;
+	}
+
+	private ThreadSlots getSlots()
+	{
+		ThreadSlots current = slots.get();
+		if (current == null || current.generation != generation.get())
+		{
+			current = new ThreadSlots(generation.get());
+			slots.set(current);
+		}
+		return current;
+	}
+
+	private void destroy(Object instance)
+	{
+		live.remove(instance);
+		if (instance instanceof ImageReader)
+		{
+			((ImageReader)instance).dispose();
+		}
+		else
+		{
+			((ImageWriter)instance).dispose();
+		}
+	}
+
+	/**
+	 * Returns the calling thread's idle instance for <code>spi</code>, or
+	 * <code>null</code> if it has none.
+	 */
+	private Object acquire(ImageReaderWriterSpi spi)
+	{
+		if (NOT_REUSABLE.contains(spi.getPluginClassName()) || !isPooledThread())
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+
+		Slot slot = getSlots().get(spi);
+		if (slot == null || slot.inUse)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		slot.inUse = true;
+		return slot.instance;
+	}
+
+	private void add(ImageReaderWriterSpi spi, Object instance)
+	{
+		live.add(instance);
+		if (!isPooledThread())
+		{
+			return;
+		}
+		ThreadSlots current = getSlots();
+		if (!current.containsKey(spi) && !NOT_REUSABLE.contains(spi.getPluginClassName()))
+		{
+			Slot slot = new Slot(instance);
+			slot.inUse = true;
+			current.put(spi, slot);
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the instance belongs to the calling
+	 * thread's slots and has been returned to them, <code>false</code> if
+	 * it's an overflow instance the caller should dispose.
+	 */
+	private boolean release(Object spi, Object instance)
+	{
+		if (!isPooledThread())
+		{
+			return false;
+		}
+		Slot slot = getSlots().get(spi);
+		if (slot != null && slot.instance == instance)
+		{
+			slot.inUse = false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets a reader created by <code>spi</code>. It must be handed back with
+	 * {@link #release(ImageReader)} on the same thread.
+	 */
+	public ImageReader getReader(ImageReaderSpi spi) throws IOException
+	{
+		ImageReader reader = (ImageReader)acquire(spi);
+		if (reader == null)
+		{
+			reader = spi.createReaderInstance();
+			add(spi, reader);
+		}
+		return reader;
+	}
+
+	public void release(ImageReader reader)
+	{
+		reader.reset();
+		if (!release(reader.getOriginatingProvider(), reader))
+		{
+			destroy(reader);
+		}
+	}
+
+	/**
+	 * Hands back a reader that shouldn't be used again, such as one that
+	 * was aborted, disposing of it.
+	 */
+	public void discard(ImageReader reader)
+	{
+		if (isPooledThread())
+		{
+			Object spi = reader.getOriginatingProvider();
+			ThreadSlots current = getSlots();
+			Slot slot = current.get(spi);
+			if (slot != null && slot.instance == reader)
+			{
+				current.remove(spi);
+			}
+		}
+		destroy(reader);
+	}
+
+	/**
+	 * Gets a writer created by <code>spi</code>. It must be handed back with
+	 * {@link #release(ImageWriter)} on the same thread.
+	 */
+	public ImageWriter getWriter(ImageWriterSpi spi) throws IOException
+	{
+		ImageWriter writer = (ImageWriter)acquire(spi);
+		if (writer == null)
+		{
+			writer = spi.createWriterInstance();
+			add(spi, writer);
+		}
+		return writer;
+	}
+
+	public void release(ImageWriter writer)
+	{
+		writer.reset();
+		if (!release(writer.getOriginatingProvider(), writer))
+		{
+			destroy(writer);
+		}
+	}
+
+	/**
+	 * Disposes every instance the pool has created, on all threads. Instances
+	 * still in use when this is called are disposed too, so it should only be
+	 * called once all work is finished.
+	 */
+	public void dispose()
+	{
+		generation.incrementAndGet();
+		for (Object instance : live.toArray())
+		{
+			destroy(instance);
+		}
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	public void printStatistics(PrintStream out)
+	{
+		out.println("Reader/writer pool: " + hits.get() + " hits, " + misses.get() + " misses, "
+					+ evictions.get() + " evictions");
+	}
+}
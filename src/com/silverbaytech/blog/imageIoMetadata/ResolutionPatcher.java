@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Changes the resolution of an image by patching the resolution fields in
+ * the file header, without decoding or re-encoding any pixel data.
+ *
+ * Supported containers are PNG (pHYs chunk, inserted after IHDR if absent),
+ * JPEG (JFIF APP0 density), TIFF (XResolution/YResolution/ResolutionUnit in
+ * the first IFD) and BMP (biXPelsPerMeter/biYPelsPerMeter). The bytes that
+ * are not patched are copied with <code>FileChannel.transferTo</code>.
+ * Every offset read from the file is checked against the file's length;
+ * a file whose header points outside it is left to be re-encoded.
+ */
+public class ResolutionPatcher
+{
+	private static final int PNG_IHDR_END = 8 + 8 + 13 + 4;
+
+	private static final int BMP_INFO_HEADER = 14;
+	private static final int BMP_RESOLUTION = 38;
+
+	private static final int TIFF_TAG_X_RESOLUTION = 282;
+	private static final int TIFF_TAG_Y_RESOLUTION = 283;
+	private static final int TIFF_TAG_RESOLUTION_UNIT = 296;
+	private static final int TIFF_TYPE_SHORT = 3;
+	private static final int TIFF_TYPE_RATIONAL = 5;
+	private static final int TIFF_RESOLUTION_DENOMINATOR = 1000;
+
+	private static final int HEADER_BYTES = 64;
+
+	/**
+	 * A single run of bytes to be written over the copied file.
+	 */
+	private static class Patch
+	{
+		final long position;
+		final ByteBuffer bytes;
+
+		Patch(long position, ByteBuffer bytes)
+		{
+			this.position = position;
+			this.bytes = bytes;
+		}
+	}
+
+	private static String getFileExtension(File file)
+	{
+		String fileName = file.getName();
+		int lastDot = fileName.lastIndexOf('.');
+		return fileName.substring(lastDot + 1).toLowerCase(Locale.ENGLISH);
+	}
+
+	private static ByteBuffer readBytes(FileChannel channel, long position, int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+		{
+			int count = channel.read(buffer, position + buffer.position());
+			if (count < 0)
+			{
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void transfer(FileChannel source, long position, long count, FileChannel target)
+		throws IOException
+	{
+		long end = position + count;
+		while (position < end)
+		{
+			long transferred = source.transferTo(position, end - position, target);
+			if (transferred <= 0)
+			{
+				throw new IOException("Unexpected end of file while copying");
+			}
+			position += transferred;
+		}
+	}
+
+	private static ByteBuffer createPngPhysChunk(double resolutionDPI)
+	{
+		int pixelsPerMeter = (int)Math.round(resolutionDPI / 0.0254);
+
+		ByteBuffer chunk = ByteBuffer.allocate(4 + 4 + 9 + 4);
+		chunk.putInt(9);
+		chunk.put(new byte[] { 'p', 'H', 'Y', 's' });
+		chunk.putInt(pixelsPerMeter);
+		chunk.putInt(pixelsPerMeter);
+		chunk.put((byte)1);
+
+		CRC32 crc = new CRC32();
+		crc.update(chunk.array(), 4, 4 + 9);
+		chunk.putInt((int)crc.getValue());
+		chunk.flip();
+		return chunk;
+	}
+
+	/**
+	 * Locates the pHYs chunk. Returns its offset, or -1 if the image data
+	 * is reached without finding one.
+	 */
+	private static long findPngPhys(FileChannel channel) throws IOException
+	{
+		long position = 8;
+		long size = channel.size();
+		while (position + 8 <= size)
+		{
+			ByteBuffer header = readBytes(channel, position, 8);
+			long length = header.getInt(0) & 0xFFFFFFFFL;
+			String type = new String(header.array(), 4, 4, "US-ASCII");
+			if (type.equals("pHYs"))
+			{
+				return position;
+			}
+			if (type.equals("IDAT") || type.equals("IEND"))
+			{
+				return -1;
+			}
+			position += 8 + length + 4;
+		}
+		return -1;
+	}
+
+	private static List<Patch> patchJpeg(ByteBuffer header, double resolutionDPI)
+	{
+		/*
+		 * SOI, then APP0 with the "JFIF\0" identifier.  Files that start
+		 * with some other segment (e.g. EXIF APP1) are left to ImageIO.
+		 */
+		if (header.remaining() < 18 || (header.getShort(2) & 0xFFFF) != 0xFFE0
+			|| header.get(6) != 'J' || header.get(7) != 'F' || header.get(8) != 'I'
+			|| header.get(9) != 'F' || header.get(10) != 0)
+		{
+			return null;
+		}
+
+		int density = (int)Math.round(resolutionDPI);
+		if (density < 1 || density > 0xFFFF)
+		{
+			return null;
+		}
+
+		ByteBuffer bytes = ByteBuffer.allocate(5);
+		bytes.put((byte)1);
+		bytes.putShort((short)density);
+		bytes.putShort((short)density);
+		bytes.flip();
+
+		List<Patch> patches = new ArrayList<Patch>();
+		patches.add(new Patch(13, bytes));
+		return patches;
+	}
+
+	private static List<Patch> patchBmp(ByteBuffer header, double resolutionDPI)
+	{
+		if (header.remaining() < BMP_RESOLUTION + 8)
+		{
+			return null;
+		}
+
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		int infoHeaderSize = header.getInt(BMP_INFO_HEADER);
+		if (infoHeaderSize < 40)
+		{
+			return null;
+		}
+
+		long pixelsPerMeter = Math.round(resolutionDPI / 0.0254);
+		if (pixelsPerMeter < 1 || pixelsPerMeter > Integer.MAX_VALUE)
+		{
+			return null;
+		}
+
+		ByteBuffer bytes = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		bytes.putInt((int)pixelsPerMeter);
+		bytes.putInt((int)pixelsPerMeter);
+		bytes.flip();
+
+		List<Patch> patches = new ArrayList<Patch>();
+		patches.add(new Patch(BMP_RESOLUTION, bytes));
+		return patches;
+	}
+
+	private static List<Patch> patchTiff(FileChannel channel, ByteBuffer header, double resolutionDPI)
+		throws IOException
+	{
+		if (header.remaining() < 8)
+		{
+			return null;
+		}
+
+		ByteOrder order = header.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		header.order(order);
+		if (header.getShort(2) != 42)
+		{
+			return null;
+		}
+
+		long size = channel.size();
+		long ifdOffset = header.getInt(4) & 0xFFFFFFFFL;
+		if (ifdOffset < 8 || ifdOffset + 2 > size)
+		{
+			return null;
+		}
+		ByteBuffer count = readBytes(channel, ifdOffset, 2).order(order);
+		if (count.remaining() < 2)
+		{
+			return null;
+		}
+		int entryCount = count.getShort(0) & 0xFFFF;
+		ByteBuffer entries = readBytes(channel, ifdOffset + 2, entryCount * 12).order(order);
+		if (entries.remaining() < entryCount * 12)
+		{
+			return null;
+		}
+
+		long numerator = Math.round(resolutionDPI * TIFF_RESOLUTION_DENOMINATOR);
+		if (numerator < 1 || numerator > 0xFFFFFFFFL)
+		{
+			return null;
+		}
+
+		List<Patch> patches = new ArrayList<Patch>();
+		boolean foundUnit = false;
+		for (int i = 0; i < entryCount; i++)
+		{
+			int entry = i * 12;
+			int tag = entries.getShort(entry) & 0xFFFF;
+			int type = entries.getShort(entry + 2) & 0xFFFF;
+			long valueCount = entries.getInt(entry + 4) & 0xFFFFFFFFL;
+
+			if (tag == TIFF_TAG_X_RESOLUTION || tag == TIFF_TAG_Y_RESOLUTION)
+			{
+				if (type != TIFF_TYPE_RATIONAL || valueCount != 1)
+				{
+					return null;
+				}
+				/*
+				 * The value is written where the entry says it is, so it
+				 * has to be in the file and clear of the header and the
+				 * IFD's own entries.
+				 */
+				long valueOffset = entries.getInt(entry + 8) & 0xFFFFFFFFL;
+				if (valueOffset < 8 || valueOffset + 8 > size
+					|| (valueOffset + 8 > ifdOffset && valueOffset < ifdOffset + 2 + entryCount * 12 + 4))
+				{
+					return null;
+				}
+				ByteBuffer bytes = ByteBuffer.allocate(8).order(order);
+				bytes.putInt((int)numerator);
+				bytes.putInt(TIFF_RESOLUTION_DENOMINATOR);
+				bytes.flip();
+				patches.add(new Patch(valueOffset, bytes));
+			}
+			else if (tag == TIFF_TAG_RESOLUTION_UNIT)
+			{
+				if (type != TIFF_TYPE_SHORT || valueCount != 1)
+				{
+					return null;
+				}
+				ByteBuffer bytes = ByteBuffer.allocate(2).order(order);
+				bytes.putShort((short)2);
+				bytes.flip();
+				patches.add(new Patch(ifdOffset + 2 + entry + 8, bytes));
+				foundUnit = true;
+			}
+		}
+
+		/*
+		 * Adding entries would mean rewriting the IFD, so only files that
+		 * already carry all three tags can be patched.
+		 */
+		if (patches.size() != 3 || !foundUnit)
+		{
+			return null;
+		}
+
+		return patches;
+	}
+
+	private static void copyWithPatches(FileChannel input, File outputFile, List<Patch> patches)
+		throws IOException
+	{
+		RandomAccessFile output = new RandomAccessFile(outputFile, "rw");
+		try
+		{
+			FileChannel channel = output.getChannel();
+			channel.truncate(0);
+			transfer(input, 0, input.size(), channel);
+			for (Patch patch : patches)
+			{
+				channel.write(patch.bytes, patch.position);
+			}
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	private static void copyWithInsertedChunk(FileChannel input, File outputFile, long insertAt, ByteBuffer chunk)
+		throws IOException
+	{
+		RandomAccessFile output = new RandomAccessFile(outputFile, "rw");
+		try
+		{
+			FileChannel channel = output.getChannel();
+			channel.truncate(0);
+			transfer(input, 0, insertAt, channel);
+			while (chunk.hasRemaining())
+			{
+				channel.write(chunk);
+			}
+			transfer(input, insertAt, input.size() - insertAt, channel);
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	private static boolean patchPng(FileChannel input, ByteBuffer fileHeader, File outputFile, double resolutionDPI)
+		throws IOException
+	{
+		/*
+		 * The pHYs chunk goes after IHDR, which has to be the first chunk
+		 * and have its fixed length for that to be at PNG_IHDR_END.
+		 */
+		if (fileHeader.remaining() < 16 || fileHeader.getInt(8) != 13 || fileHeader.get(12) != 'I'
+			|| fileHeader.get(13) != 'H' || fileHeader.get(14) != 'D' || fileHeader.get(15) != 'R'
+			|| input.size() < PNG_IHDR_END)
+		{
+			return false;
+		}
+
+		long pixelsPerMeter = Math.round(resolutionDPI / 0.0254);
+		if (pixelsPerMeter < 1 || pixelsPerMeter > Integer.MAX_VALUE)
+		{
+			return false;
+		}
+
+		ByteBuffer chunk = createPngPhysChunk(resolutionDPI);
+		long physOffset = findPngPhys(input);
+		if (physOffset < 0)
+		{
+			copyWithInsertedChunk(input, outputFile, PNG_IHDR_END, chunk);
+			return true;
+		}
+
+		if (physOffset + chunk.remaining() > input.size())
+		{
+			return false;
+		}
+		ByteBuffer header = readBytes(input, physOffset, 4);
+		if (header.getInt(0) != 9)
+		{
+			return false;
+		}
+
+		List<Patch> patches = new ArrayList<Patch>();
+		patches.add(new Patch(physOffset, chunk));
+		copyWithPatches(input, outputFile, patches);
+		return true;
+	}
+
+	private static boolean isSameFile(File a, File b) throws IOException
+	{
+		return a.getCanonicalFile().equals(b.getCanonicalFile());
+	}
+
+	private static boolean extensionMatches(File outputFile, String... extensions)
+	{
+		String extension = getFileExtension(outputFile);
+		for (String candidate : extensions)
+		{
+			if (candidate.equals(extension))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Copies <code>inputFile</code> to <code>outputFile</code>, changing the
+	 * stored resolution to <code>resolutionDPI</code>. If they're the same
+	 * file, the copy is made next to it and then renamed over it, so the
+	 * file is never left half patched.
+	 *
+	 * @return <code>true</code> if the file was patched, <code>false</code>
+	 *         if the format (or this particular file's layout) can't be
+	 *         patched in place, in which case nothing has been written.
+	 */
+	public static boolean patch(File inputFile, File outputFile, double resolutionDPI) throws IOException
+	{
+		if (!isSameFile(inputFile, outputFile))
+		{
+			return patchCopy(inputFile, outputFile, resolutionDPI);
+		}
+
+		File directory = inputFile.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile("." + inputFile.getName() + ".", "." + getFileExtension(inputFile), directory);
+		try
+		{
+			if (!patchCopy(inputFile, temp, resolutionDPI))
+			{
+				return false;
+			}
+			GroupCommit.sync(temp);
+			Files.move(	temp.toPath(),
+						inputFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			temp = null;
+			return true;
+		}
+		finally
+		{
+			if (temp != null)
+			{
+				temp.delete();
+			}
+		}
+	}
+
+	private static boolean patchCopy(File inputFile, File outputFile, double resolutionDPI) throws IOException
+	{
+		RandomAccessFile input = new RandomAccessFile(inputFile, "r");
+		try
+		{
+			FileChannel channel = input.getChannel();
+			ByteBuffer header = readBytes(channel, 0, HEADER_BYTES);
+
+			String format = FormatSniffer.sniffFormat(header);
+			List<Patch> patches = null;
+			if ("png".equals(format))
+			{
+				if (!extensionMatches(outputFile, "png"))
+				{
+					return false;
+				}
+				return patchPng(channel, header, outputFile, resolutionDPI);
+			}
+			else if ("jpeg".equals(format))
+			{
+				if (extensionMatches(outputFile, "jpg", "jpeg", "jpe", "jfif"))
+				{
+					patches = patchJpeg(header, resolutionDPI);
+				}
+			}
+			else if ("bmp".equals(format))
+			{
+				if (extensionMatches(outputFile, "bmp", "dib"))
+				{
+					patches = patchBmp(header, resolutionDPI);
+				}
+			}
+			else if ("tiff".equals(format))
+			{
+				if (extensionMatches(outputFile, "tif", "tiff"))
+				{
+					patches = patchTiff(channel, header, resolutionDPI);
+				}
+			}
+
+			if (patches == null)
+			{
+				return false;
+			}
+
+			copyWithPatches(channel, outputFile, patches);
+			return true;
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads image resolution directly from the file header, without going
+ * through an <code>ImageReader</code> or building a metadata tree.
+ *
+ * The values returned are the same ones the <code>javax_imageio_1.0</code>
+ * <code>Dimension</code> node would report: millimeters per pixel, or
+ * <code>NaN</code> if the file doesn't specify an absolute resolution.
+ */
+public class ResolutionProbe
+{
+	/**
+	 * Upper bound on the number of bytes read from any one location.
+	 */
+	private static final int BUFFER_SIZE = 4096;
+
+	private static final int TIFF_TAG_X_RESOLUTION = 282;
+	private static final int TIFF_TAG_Y_RESOLUTION = 283;
+	private static final int TIFF_TAG_RESOLUTION_UNIT = 296;
+	private static final int TIFF_MAX_ENTRIES = (BUFFER_SIZE - 2) / 12;
+
+	private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>()
+	{
+		@Override
+		protected ByteBuffer initialValue()
+		{
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	/**
+	 * Resolution of one image, in millimeters per pixel.
+	 */
+	public static class Resolution
+	{
+		public final double horizontalPixelSize;
+		public final double verticalPixelSize;
+
+		public Resolution(double horizontalPixelSize, double verticalPixelSize)
+		{
+			this.horizontalPixelSize = horizontalPixelSize;
+			this.verticalPixelSize = verticalPixelSize;
+		}
+	}
+
+	private static final Resolution NONE = new Resolution(Double.NaN, Double.NaN);
+
+	/**
+	 * Reads up to <code>length</code> bytes at <code>position</code> into
+	 * the calling thread's buffer. The buffer is returned flipped and in
+	 * big-endian order.
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException
+	{
+		ByteBuffer buffer = BUFFERS.get();
+		buffer.clear();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		buffer.limit(Math.min(length, BUFFER_SIZE));
+		while (buffer.hasRemaining())
+		{
+			int count = channel.read(buffer, position + buffer.position());
+			if (count < 0)
+			{
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static Resolution probePng(FileChannel channel) throws IOException
+	{
+		long position = 8;
+		long size = channel.size();
+		while (position + 8 <= size)
+		{
+			ByteBuffer header = read(channel, position, 8 + 9);
+			if (header.remaining() < 8)
+			{
+				break;
+			}
+			long length = header.getInt(0) & 0xFFFFFFFFL;
+			int type = header.getInt(4);
+			if (type == 0x70485973) // pHYs
+			{
+				if (length != 9 || header.remaining() < 17)
+				{
+					return null;
+				}
+				long x = header.getInt(8) & 0xFFFFFFFFL;
+				long y = header.getInt(12) & 0xFFFFFFFFL;
+				int unit = header.get(16);
+				if (unit != 1 || x == 0 || y == 0)
+				{
+					return NONE;
+				}
+				return new Resolution(1000.0 / x, 1000.0 / y);
+			}
+			if (type == 0x49444154 || type == 0x49454E44) // IDAT, IEND
+			{
+				break;
+			}
+			position += 8 + length + 4;
+		}
+		return NONE;
+	}
+
+	private static Resolution probeJpeg(ByteBuffer header)
+	{
+		if (header.remaining() < 18 || (header.getShort(2) & 0xFFFF) != 0xFFE0
+			|| header.getInt(6) != 0x4A464946 || header.get(10) != 0) // "JFIF\0"
+		{
+			return null;
+		}
+
+		int unit = header.get(13);
+		int x = header.getShort(14) & 0xFFFF;
+		int y = header.getShort(16) & 0xFFFF;
+		if (x == 0 || y == 0)
+		{
+			return NONE;
+		}
+		switch (unit)
+		{
+		case 1:
+			return new Resolution(25.4 / x, 25.4 / y);
+		case 2:
+			return new Resolution(10.0 / x, 10.0 / y);
+		default:
+			return NONE;
+		}
+	}
+
+	private static Resolution probeBmp(ByteBuffer header)
+	{
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		if (header.remaining() < 46 || header.getInt(14) < 40)
+		{
+			return null;
+		}
+
+		int x = header.getInt(38);
+		int y = header.getInt(42);
+		if (x <= 0 || y <= 0)
+		{
+			return NONE;
+		}
+		return new Resolution(1000.0 / x, 1000.0 / y);
+	}
+
+	private static double readRational(FileChannel channel, long offset, ByteOrder order) throws IOException
+	{
+		ByteBuffer value = read(channel, offset, 8).order(order);
+		if (value.remaining() < 8)
+		{
+			return Double.NaN;
+		}
+		long numerator = value.getInt(0) & 0xFFFFFFFFL;
+		long denominator = value.getInt(4) & 0xFFFFFFFFL;
+		if (numerator == 0 || denominator == 0)
+		{
+			return Double.NaN;
+		}
+		return (double)numerator / denominator;
+	}
+
+	private static Resolution probeTiff(FileChannel channel, ByteBuffer header) throws IOException
+	{
+		ByteOrder order = header.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		header.order(order);
+		if (header.remaining() < 8 || header.getShort(2) != 42)
+		{
+			return null;
+		}
+
+		long ifdOffset = header.getInt(4) & 0xFFFFFFFFL;
+		ByteBuffer ifd = read(channel, ifdOffset, BUFFER_SIZE).order(order);
+		if (ifd.remaining() < 2)
+		{
+			return null;
+		}
+		int totalEntries = ifd.getShort(0) & 0xFFFF;
+		int entryCount = Math.min(totalEntries, TIFF_MAX_ENTRIES);
+		if (ifd.remaining() < 2 + entryCount * 12)
+		{
+			return null;
+		}
+
+		/*
+		 * Collect the offsets first, since reading the rationals reuses the
+		 * buffer that holds the IFD.
+		 */
+		long xOffset = -1;
+		long yOffset = -1;
+		int unit = 2;
+		boolean foundUnit = false;
+		for (int i = 0; i < entryCount; i++)
+		{
+			int entry = 2 + i * 12;
+			int tag = ifd.getShort(entry) & 0xFFFF;
+			if (tag == TIFF_TAG_X_RESOLUTION)
+			{
+				xOffset = ifd.getInt(entry + 8) & 0xFFFFFFFFL;
+			}
+			else if (tag == TIFF_TAG_Y_RESOLUTION)
+			{
+				yOffset = ifd.getInt(entry + 8) & 0xFFFFFFFFL;
+			}
+			else if (tag == TIFF_TAG_RESOLUTION_UNIT)
+			{
+				unit = ifd.getShort(entry + 8) & 0xFFFF;
+				foundUnit = true;
+			}
+		}
+
+		/*
+		 * Entries past the buffer haven't been seen, so a missing tag may
+		 * just be further on. Leave those files to ImageIO.
+		 */
+		if (totalEntries > entryCount && (xOffset < 0 || yOffset < 0 || !foundUnit))
+		{
+			return null;
+		}
+
+		if (xOffset < 0 || yOffset < 0)
+		{
+			return NONE;
+		}
+
+		double x = readRational(channel, xOffset, order);
+		double y = readRational(channel, yOffset, order);
+		switch (unit)
+		{
+		case 2:
+			return new Resolution(25.4 / x, 25.4 / y);
+		case 3:
+			return new Resolution(10.0 / x, 10.0 / y);
+		default:
+			return NONE;
+		}
+	}
+
+	private static Resolution probe(FileChannel channel) throws IOException
+	{
+		ByteBuffer header = read(channel, 0, 64);
+		if (header.remaining() < 8)
+		{
+			return null;
+		}
+
+		String format = FormatSniffer.sniffFormat(header);
+		if (format == null)
+		{
+			return null;
+		}
+
+		long start = PhaseMetrics.start();
+		try
+		{
+			return probe(channel, header, format);
+		}
+		finally
+		{
+			PhaseMetrics.stop(PhaseMetrics.Phase.PARSE, start, format);
+		}
+	}
+
+	private static Resolution probe(FileChannel channel, ByteBuffer header, String format) throws IOException
+	{
+		switch (format)
+		{
+		case "png":
+			return probePng(channel);
+		case "jpeg":
+			return probeJpeg(header);
+		case "gif":
+			/*
+			 * GIF only records a pixel aspect ratio, never a size.
+			 */
+			return NONE;
+		case "bmp":
+			return probeBmp(header);
+		case "tiff":
+			return probeTiff(channel, header);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the resolution of the first image in <code>file</code>, or
+	 * <code>null</code> if the format isn't one the probe understands.
+	 */
+	public static Resolution probe(File file) throws IOException
+	{
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try
+		{
+			return probe(input.getChannel());
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+}
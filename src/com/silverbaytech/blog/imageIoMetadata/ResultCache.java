@@ -0,0 +1,528 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent cache of per-file results, keyed by the file's canonical path,
+ * length, modification time and, optionally, a hash of its contents.
+ *
+ * The cache is a single append-only file of records. When it's opened, the
+ * file is memory-mapped and scanned to build the index; values are then read
+ * straight out of the mapping. Entries are kept in least-recently-used
+ * order, and {@link #close()} compacts the file down to the configured size
+ * by dropping the least recently used entries. The file is never allowed to
+ * grow past what a single mapping can hold; once it reaches that, results
+ * stop being stored until it's compacted. All methods are thread-safe.
+ *
+ * <pre>
+ * file   := MAGIC VERSION record*
+ * record := int recordLength, short keyLength, key (UTF-8),
+ *           long fileLength, long lastModified,
+ *           byte hashLength, hash, int valueLength, value
+ * </pre>
+ */
+public class ResultCache
+{
+	private static final int MAGIC = 0x49494F43; // "IIOC"
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 8;
+	private static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+	private static final int MAX_KEY_LENGTH = 0xFFFF;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static class Entry
+	{
+		final long fileLength;
+		final long lastModified;
+		final byte[] hash;
+		final long valueOffset;
+		final int valueLength;
+		final int recordLength;
+
+		Entry(long fileLength, long lastModified, byte[] hash, long valueOffset, int valueLength, int recordLength)
+		{
+			this.fileLength = fileLength;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+			this.recordLength = recordLength;
+		}
+	}
+
+	/**
+	 * A file's identity as it was when it was looked up, so that what's
+	 * stored after processing it is keyed by the contents that were
+	 * actually processed, even if the file changed in between.
+	 */
+	public static class Key
+	{
+		final String key;
+		final long fileLength;
+		final long lastModified;
+		final byte[] hash;
+
+		Key(String key, long fileLength, long lastModified, byte[] hash)
+		{
+			this.key = key;
+			this.fileLength = fileLength;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	private final File cacheFile;
+	private final long maxBytes;
+	private final boolean useHash;
+	private final LinkedHashMap<String, Entry> index = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer mapped;
+	private long liveBytes;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Opens (or creates) the cache in <code>cacheFile</code>.
+	 *
+	 * @param maxBytes size the file is compacted to on close. The whole file
+	 *            is mapped, so this and the size it grows to in between are
+	 *            limited to 2GB.
+	 * @param useHash also require a SHA-1 of the file contents to match. This
+	 *            means every file has to be read, but protects against
+	 *            changes that preserve length and modification time.
+	 */
+	public ResultCache(File cacheFile, long maxBytes, boolean useHash) throws IOException
+	{
+		this.cacheFile = cacheFile;
+		this.maxBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+		this.useHash = useHash;
+		open();
+	}
+
+	private void open() throws IOException
+	{
+		file = new RandomAccessFile(cacheFile, "rw");
+		channel = file.getChannel();
+
+		if (channel.size() < FILE_HEADER_SIZE)
+		{
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			channel.truncate(0);
+			channel.write(header, 0);
+		}
+
+		/*
+		 * Only a file written by something other than this class can be
+		 * larger, and records past the limit are discarded along with any
+		 * partial one that straddles it.
+		 */
+		mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), MAX_FILE_SIZE));
+		if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION)
+		{
+			throw new IOException(cacheFile + " is not a metadata cache file");
+		}
+
+		int end = scan();
+		if (end < channel.size())
+		{
+			channel.truncate(end);
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the mapped file, returning the offset just past
+	 * the last complete record. Anything after that is the remains of a crash
+	 * while appending and is discarded.
+	 */
+	private int scan()
+	{
+		ByteBuffer buffer = mapped.duplicate();
+		buffer.position(FILE_HEADER_SIZE);
+		while (buffer.remaining() >= 4)
+		{
+			int start = buffer.position();
+			int recordLength = buffer.getInt();
+			if (recordLength <= 0 || recordLength > buffer.remaining())
+			{
+				return start;
+			}
+
+			/*
+			 * Each length inside the record has to leave room for the
+			 * fields after it, or the record is damaged.
+			 */
+			int end = start + 4 + recordLength;
+			int keyLength = buffer.getShort() & 0xFFFF;
+			if (keyLength + 8 + 8 + 1 > end - buffer.position())
+			{
+				return start;
+			}
+			byte[] key = new byte[keyLength];
+			buffer.get(key);
+			long fileLength = buffer.getLong();
+			long lastModified = buffer.getLong();
+			int hashLength = buffer.get() & 0xFF;
+			if (hashLength + 4 > end - buffer.position())
+			{
+				return start;
+			}
+			byte[] hash = new byte[hashLength];
+			buffer.get(hash);
+			int valueLength = buffer.getInt();
+			if (valueLength < 0 || valueLength != end - buffer.position())
+			{
+				return start;
+			}
+			long valueOffset = buffer.position();
+
+			Entry previous = index.put(	new String(key, UTF8),
+										new Entry(	fileLength,
+													lastModified,
+													hash,
+													valueOffset,
+													valueLength,
+													4 + recordLength));
+			if (previous != null)
+			{
+				liveBytes -= previous.recordLength;
+			}
+			liveBytes += 4 + recordLength;
+
+			buffer.position(end);
+		}
+		return buffer.position();
+	}
+
+	private static byte[] hashFile(File file) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException(e);
+		}
+
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel source = input.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			while (source.read(buffer) > 0)
+			{
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+		return digest.digest();
+	}
+
+	private static String createKey(String namespace, File file) throws IOException
+	{
+		return namespace + '\0' + file.getCanonicalPath();
+	}
+
+	private byte[] readValue(Entry entry) throws IOException
+	{
+		byte[] value = new byte[entry.valueLength];
+		if (entry.valueOffset + entry.valueLength <= mapped.capacity())
+		{
+			ByteBuffer buffer = mapped.duplicate();
+			buffer.position((int)entry.valueOffset);
+			buffer.get(value);
+		}
+		else
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(value);
+			while (buffer.hasRemaining())
+			{
+				if (channel.read(buffer, entry.valueOffset + buffer.position()) < 0)
+				{
+					throw new IOException("Cache file truncated");
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Takes the key <code>file</code>'s result is looked up and stored
+	 * under. This has to be done before the file is processed.
+	 */
+	public Key getKey(String namespace, File file) throws IOException
+	{
+		/*
+		 * The length and time are taken first, so a change while hashing
+		 * leaves them stale rather than the hash.
+		 */
+		long fileLength = file.length();
+		long lastModified = file.lastModified();
+		byte[] hash = useHash ? hashFile(file) : new byte[0];
+		return new Key(createKey(namespace, file), fileLength, lastModified, hash);
+	}
+
+	/**
+	 * Returns the cached result for <code>key</code>'s file, or
+	 * <code>null</code> if there is none or the file has changed since it
+	 * was stored.
+	 */
+	public byte[] get(Key key) throws IOException
+	{
+		synchronized (this)
+		{
+			Entry entry = index.get(key.key);
+			if (entry != null && entry.fileLength == key.fileLength
+				&& entry.lastModified == key.lastModified
+				&& Arrays.equals(entry.hash, key.hash))
+			{
+				hits++;
+				return readValue(entry);
+			}
+			misses++;
+			return null;
+		}
+	}
+
+	private static ByteBuffer createRecord(String key, Entry entry, byte[] value)
+	{
+		byte[] keyBytes = key.getBytes(UTF8);
+		int recordLength = 2 + keyBytes.length + 8 + 8 + 1 + entry.hash.length + 4 + value.length;
+
+		ByteBuffer record = ByteBuffer.allocate(4 + recordLength);
+		record.putInt(recordLength);
+		record.putShort((short)keyBytes.length);
+		record.put(keyBytes);
+		record.putLong(entry.fileLength);
+		record.putLong(entry.lastModified);
+		record.put((byte)entry.hash.length);
+		record.put(entry.hash);
+		record.putInt(value.length);
+		record.put(value);
+		record.flip();
+		return record;
+	}
+
+	private static Entry append(FileChannel target, String key, Entry entry, byte[] value) throws IOException
+	{
+		ByteBuffer record = createRecord(key, entry, value);
+		long start = target.size();
+		int recordLength = record.remaining();
+		long valueOffset = start + recordLength - value.length;
+		while (record.hasRemaining())
+		{
+			target.write(record, start + record.position());
+		}
+		return new Entry(	entry.fileLength,
+							entry.lastModified,
+							entry.hash,
+							valueOffset,
+							value.length,
+							recordLength);
+	}
+
+	/**
+	 * Stores the result for <code>key</code>'s file, replacing any earlier
+	 * one. Nothing is stored if the key is too long for a record or the file
+	 * has reached its size limit.
+	 */
+	public void put(Key key, byte[] value) throws IOException
+	{
+		int keyLength = key.key.getBytes(UTF8).length;
+		if (keyLength > MAX_KEY_LENGTH)
+		{
+			return;
+		}
+		Entry entry = new Entry(key.fileLength, key.lastModified, key.hash, 0, 0, 0);
+
+		synchronized (this)
+		{
+			long recordSize = 4 + 2 + keyLength + 8 + 8 + 1 + key.hash.length + 4 + value.length;
+			if (channel.size() + recordSize > MAX_FILE_SIZE)
+			{
+				return;
+			}
+			entry = append(channel, key.key, entry, value);
+			Entry previous = index.put(key.key, entry);
+			if (previous != null)
+			{
+				liveBytes -= previous.recordLength;
+			}
+			liveBytes += entry.recordLength;
+		}
+	}
+
+	/**
+	 * Rewrites the cache file with only the most recently used entries that
+	 * fit in the size limit, dropping superseded records along the way.
+	 */
+	private void compact() throws IOException
+	{
+		List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(index.entrySet());
+		Collections.reverse(entries);
+
+		long budget = maxBytes - FILE_HEADER_SIZE;
+		int keep = 0;
+		while (keep < entries.size() && budget >= entries.get(keep).getValue().recordLength)
+		{
+			budget -= entries.get(keep).getValue().recordLength;
+			keep++;
+		}
+
+		List<Map.Entry<String, Entry>> retained = entries.subList(0, keep);
+		Collections.reverse(retained);
+
+		File temp = new File(cacheFile.getPath() + ".tmp");
+		RandomAccessFile output = new RandomAccessFile(temp, "rw");
+		try
+		{
+			FileChannel target = output.getChannel();
+			target.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			target.write(header, 0);
+			for (Map.Entry<String, Entry> entry : retained)
+			{
+				append(target, entry.getKey(), entry.getValue(), readValue(entry.getValue()));
+			}
+			target.force(true);
+		}
+		finally
+		{
+			output.close();
+		}
+
+		file.close();
+		MappedByteBuffer old = mapped;
+		mapped = null;
+		unmap(old);
+		try
+		{
+			Files.move(	temp.toPath(),
+						cacheFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			/*
+			 * Windows won't replace a file that's still mapped, which it
+			 * may be if the mapping couldn't be released. The old file is
+			 * still a valid cache, just a larger one.
+			 */
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Releases a mapping now rather than when it's garbage collected, which
+	 * Windows needs before the file can be replaced. Nothing may touch the
+	 * buffer afterwards. Does nothing if the JDK offers no way to do it.
+	 */
+	private static void unmap(MappedByteBuffer buffer)
+	{
+		try
+		{
+			/*
+			 * Java 9 and later.
+			 */
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+			return;
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+		}
+
+		try
+		{
+			/*
+			 * Java 7 and 8.
+			 */
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null)
+			{
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+		}
+	}
+
+	/**
+	 * Closes the cache, compacting it first if it has outgrown its size
+	 * limit or is mostly superseded records.
+	 */
+	public synchronized void close() throws IOException
+	{
+		long size = channel.size();
+		if (size > maxBytes || size - FILE_HEADER_SIZE > 2 * liveBytes)
+		{
+			compact();
+		}
+		else
+		{
+			file.close();
+		}
+		index.clear();
+		mapped = null;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Vector;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * An image whose pixels are read from an <code>ImageReader</code> one
+ * full-width strip at a time, as a writer asks for them, so a writer can
+ * encode an image far larger than the heap.
+ *
+ * Only the most recently read strip is kept, so a writer that works from
+ * top to bottom reads each strip once. A request for a region larger than
+ * the byte limit fails rather than allocating it.
+ *
+ * Each strip is a separate read of a source region, so this is only
+ * suitable for readers that can go straight to a region; see
+ * {@link #canReadStrips(ImageReader)}. PNG and JPEG readers decode from the
+ * top of the image every time, which would make the whole thing quadratic.
+ */
+public class StripSourceImage implements RenderedImage
+{
+	private final ImageReader reader;
+	private final int imageIndex;
+	private final ImageTypeSpecifier imageType;
+	private final int width;
+	private final int height;
+	private final int stripHeight;
+	private final long maxBytes;
+
+	private int cachedStrip = -1;
+	private Raster cachedRaster;
+
+	/**
+	 * @param reader a reader whose input is already set.
+	 * @param imageType the type strips are decoded to.
+	 * @param maxBytes the largest region that will be assembled for a
+	 *            single request.
+	 */
+	public StripSourceImage(ImageReader reader, int imageIndex, ImageTypeSpecifier imageType, int stripHeight,
+							long maxBytes) throws IOException
+	{
+		this.reader = reader;
+		this.imageIndex = imageIndex;
+		this.imageType = imageType;
+		this.width = reader.getWidth(imageIndex);
+		this.height = reader.getHeight(imageIndex);
+		this.stripHeight = Math.min(stripHeight, height);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns a conservative estimate of the bytes needed to hold a
+	 * <code>width</code> by <code>height</code> image of the given type.
+	 */
+	public static long estimateBytes(ImageTypeSpecifier imageType, int width, int height)
+	{
+		SampleModel sampleModel = imageType.getSampleModel(1, 1);
+		long bytesPerElement = (DataBuffer.getDataTypeSize(sampleModel.getDataType()) + 7) / 8;
+		return (long)width * height * sampleModel.getNumDataElements() * bytesPerElement;
+	}
+
+	/**
+	 * Returns <code>true</code> if <code>reader</code>, whose input is set,
+	 * reads a region without decoding the rows above it: TIFF, whose strips
+	 * and tiles are indexed, or any image stored in tiles.
+	 */
+	public static boolean canReadStrips(ImageReader reader) throws IOException
+	{
+		if (reader.isImageTiled(0))
+		{
+			return true;
+		}
+		String[] formatNames = reader.getOriginatingProvider().getFormatNames();
+		for (String formatName : formatNames)
+		{
+			if (formatName.equalsIgnoreCase("tif") || formatName.equalsIgnoreCase("tiff"))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads a region straight from the reader into a new image.
+	 */
+	public static BufferedImage readRegion(ImageReader reader, int imageIndex, ImageTypeSpecifier imageType,
+											Rectangle region) throws IOException
+	{
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(region);
+		param.setDestinationType(imageType);
+		return reader.read(imageIndex, param);
+	}
+
+	private Raster getStrip(int strip)
+	{
+		if (strip != cachedStrip)
+		{
+			int y = strip * stripHeight;
+			Rectangle region = new Rectangle(0, y, width, Math.min(stripHeight, height - y));
+			try
+			{
+				cachedRaster = null;
+				cachedRaster = readRegion(reader, imageIndex, imageType, region).getRaster()
+					.createTranslatedChild(0, y);
+				cachedStrip = strip;
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Can't read rows " + y + " to " + (y + region.height), e);
+			}
+		}
+		return cachedRaster;
+	}
+
+	@Override
+	public Vector<RenderedImage> getSources()
+	{
+		return null;
+	}
+
+	@Override
+	public Object getProperty(String name)
+	{
+		return Image.UndefinedProperty;
+	}
+
+	@Override
+	public String[] getPropertyNames()
+	{
+		return null;
+	}
+
+	@Override
+	public ColorModel getColorModel()
+	{
+		return imageType.getColorModel();
+	}
+
+	@Override
+	public SampleModel getSampleModel()
+	{
+		return imageType.getSampleModel(width, stripHeight);
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return height;
+	}
+
+	@Override
+	public int getMinX()
+	{
+		return 0;
+	}
+
+	@Override
+	public int getMinY()
+	{
+		return 0;
+	}
+
+	@Override
+	public int getNumXTiles()
+	{
+		return 1;
+	}
+
+	@Override
+	public int getNumYTiles()
+	{
+		return (height + stripHeight - 1) / stripHeight;
+	}
+
+	@Override
+	public int getMinTileX()
+	{
+		return 0;
+	}
+
+	@Override
+	public int getMinTileY()
+	{
+		return 0;
+	}
+
+	@Override
+	public int getTileWidth()
+	{
+		return width;
+	}
+
+	@Override
+	public int getTileHeight()
+	{
+		return stripHeight;
+	}
+
+	@Override
+	public int getTileGridXOffset()
+	{
+		return 0;
+	}
+
+	@Override
+	public int getTileGridYOffset()
+	{
+		return 0;
+	}
+
+	@Override
+	public Raster getTile(int tileX, int tileY)
+	{
+		return getStrip(tileY);
+	}
+
+	private WritableRaster createRaster(Rectangle bounds)
+	{
+		if (estimateBytes(imageType, bounds.width, bounds.height) > maxBytes)
+		{
+			throw new IllegalStateException("Writer asked for a " + bounds.width + "x" + bounds.height
+											+ " region, more than the memory limit allows");
+		}
+
+		SampleModel sampleModel = imageType.getSampleModel(bounds.width, bounds.height);
+		return Raster.createWritableRaster(sampleModel, new Point(bounds.x, bounds.y));
+	}
+
+	@Override
+	public Raster getData()
+	{
+		return getData(new Rectangle(0, 0, width, height));
+	}
+
+	@Override
+	public Raster getData(Rectangle rect)
+	{
+		Rectangle bounds = rect.intersection(new Rectangle(0, 0, width, height));
+		int first = bounds.y / stripHeight;
+		int last = (bounds.y + bounds.height - 1) / stripHeight;
+		if (first == last)
+		{
+			return getStrip(first).createChild(	bounds.x,
+												bounds.y,
+												bounds.width,
+												bounds.height,
+												bounds.x,
+												bounds.y,
+												null);
+		}
+
+		return copyData(createRaster(bounds));
+	}
+
+	@Override
+	public WritableRaster copyData(WritableRaster raster)
+	{
+		if (raster == null)
+		{
+			raster = createRaster(new Rectangle(0, 0, width, height));
+		}
+
+		Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+		if (bounds.isEmpty())
+		{
+			return raster;
+		}
+		int first = bounds.y / stripHeight;
+		int last = (bounds.y + bounds.height - 1) / stripHeight;
+		for (int strip = first; strip <= last; strip++)
+		{
+			Raster source = getStrip(strip);
+			Rectangle overlap = source.getBounds().intersection(bounds);
+			raster.setRect(source.createChild(	overlap.x,
+												overlap.y,
+												overlap.width,
+												overlap.height,
+												overlap.x,
+												overlap.y,
+												null));
+		}
+		return raster;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Writes metadata in the indented, XML-like text format of the original
+ * <code>DumpImageMetadata</code> output.
+ */
+public class TextMetadataSerializer extends MetadataSerializer
+{
+	private static final int INDENT = 4;
+
+	private int level;
+	private boolean tagOpen;
+	private boolean valueWritten;
+
+	public TextMetadataSerializer(PrintStream out)
+	{
+		super(out);
+	}
+
+	private void indent(int count)
+	{
+		spaces(count * INDENT);
+	}
+
+	@Override
+	public void startFile(File file)
+	{
+		buffer.append("\nProcessing ").append(file.getName()).append(":\n\n");
+	}
+
+	@Override
+	public void startReader(String className)
+	{
+		buffer.append("Reader: ").append(className).append('\n');
+	}
+
+	@Override
+	public void startMetadata(String kind, int imageIndex)
+	{
+		indent(1);
+		buffer.append(kind);
+		if (imageIndex >= 0)
+		{
+			buffer.append(' ').append(imageIndex);
+		}
+		buffer.append(" metadata\n");
+	}
+
+	@Override
+	public void startFormat(String formatName)
+	{
+		indent(2);
+		buffer.append("Format name: ").append(formatName).append('\n');
+		level = 3;
+	}
+
+	@Override
+	public void startElement(String name)
+	{
+		if (tagOpen)
+		{
+			buffer.append(">\n");
+		}
+		indent(level++);
+		buffer.append('<').append(name);
+		tagOpen = true;
+	}
+
+	@Override
+	public void attribute(String name, String value)
+	{
+		buffer.append(' ').append(name).append("='").append(value).append('\'');
+	}
+
+	@Override
+	public void value(String value)
+	{
+		if (value == null || value.length() == 0)
+		{
+			return;
+		}
+
+		/*
+		 * The closing tag has never had a slash in this format.
+		 */
+		buffer.append('>').append(value);
+		tagOpen = false;
+		valueWritten = true;
+	}
+
+	@Override
+	public void endElement(String name)
+	{
+		level--;
+		if (tagOpen)
+		{
+			buffer.append("/>\n");
+			tagOpen = false;
+		}
+		else if (valueWritten)
+		{
+			buffer.append('<').append(name).append(">\n");
+			valueWritten = false;
+		}
+		else
+		{
+			indent(level);
+			buffer.append("</").append(name).append(">\n");
+		}
+		flushIfFull();
+	}
+
+	@Override
+	public void endFormat()
+	{
+	}
+
+	@Override
+	public void endMetadata()
+	{
+	}
+
+	@Override
+	public void endReader()
+	{
+	}
+
+	@Override
+	public void endFile()
+	{
+		flush();
+	}
+
+	@Override
+	public void failFile(File file, Exception e)
+	{
+		if (tagOpen)
+		{
+			buffer.append('\n');
+			tagOpen = false;
+		}
+		if (e instanceof ReadBudget.BudgetExceededException)
+		{
+			buffer.append("    Budget exceeded processing ").append(file.getName()).append(": ")
+				.append(e.getMessage()).append('\n');
+		}
+		else
+		{
+			buffer.append("    Error processing ").append(file.getName()).append(": ").append(e).append('\n');
+		}
+		flush();
+	}
+}
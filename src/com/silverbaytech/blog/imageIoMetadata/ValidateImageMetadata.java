@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+import com.silverbaytech.blog.imageIoMetadata.BatchProcessor.FileTask;
+
+/**
+ * Checks the image metadata of the first image in each file against the
+ * metadata formats its reader declares, reporting anything the format
+ * doesn't allow. Formats are taken from a shared
+ * {@link MetadataSchemaIndex}, optionally kept on disk with
+ * <code>-schemaIndex file</code>.
+ */
+public class ValidateImageMetadata
+{
+	private static MetadataSchemaIndex index;
+
+	private static List<String> getFormatNames(IIOMetadata metadata)
+	{
+		List<String> formatNames = new ArrayList<String>();
+		String[] names = metadata.getMetadataFormatNames();
+		if (names != null)
+		{
+			for (String name : names)
+			{
+				formatNames.add(name);
+			}
+		}
+		return formatNames;
+	}
+
+	private static void processFile(PrintStream out, File file) throws IOException
+	{
+		out.println("\nProcessing " + file.getName() + ":\n");
+
+		List<ImageReaderSpi> spis = FormatSniffer.findReaderSpis(file);
+		if (spis.isEmpty())
+		{
+			out.println("    No compatible reader found");
+			return;
+		}
+
+		ReaderWriterPool pool = ReaderWriterPool.getDefault();
+		ImageReaderSpi spi = spis.get(0);
+		ImageReader reader = pool.getReader(spi);
+		ImageInputStream stream = null;
+		try
+		{
+			stream = PhaseMetrics.openImageInputStream(file);
+
+			reader.setInput(stream, true);
+
+			IIOMetadata metadata = PhaseMetrics.getImageMetadata(reader, 0);
+			if (metadata == null)
+			{
+				out.println("    No image metadata");
+				return;
+			}
+
+			for (String formatName : getFormatNames(metadata))
+			{
+				MetadataSchema schema = index.getImageSchema(spi, formatName);
+				if (schema == null)
+				{
+					out.println("    " + formatName + ": no schema available");
+					continue;
+				}
+
+				List<String> problems = schema.validate(PhaseMetrics.getAsTree(metadata, formatName));
+				if (problems.isEmpty())
+				{
+					out.println("    " + formatName + ": valid");
+					continue;
+				}
+
+				out.println("    " + formatName + ": " + problems.size() + " problem(s)");
+				for (String problem : problems)
+				{
+					out.println("        " + problem);
+				}
+			}
+		}
+		finally
+		{
+			if (stream != null)
+			{
+				stream.close();
+			}
+			pool.release(reader);
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		PrintStream out = BatchOptions.createStandardOutput();
+
+		try
+		{
+			BatchOptions options = new BatchOptions();
+			List<String> arguments = options.parse(args);
+
+			File indexFile = null;
+			Iterator<String> flags = arguments.iterator();
+			while (flags.hasNext())
+			{
+				String flag = flags.next();
+				if (flag.equals("-schemaIndex"))
+				{
+					flags.remove();
+					if (!flags.hasNext())
+					{
+						throw new IllegalArgumentException("-schemaIndex requires a file");
+					}
+					indexFile = new File(flags.next());
+					flags.remove();
+				}
+			}
+
+			if (arguments.isEmpty())
+			{
+				throw new IllegalArgumentException("No files given");
+			}
+			index = DumpMetadataFormat.loadIndex(indexFile);
+
+			BatchProcessor batch = options.createProcessor(new FileTask()
+			{
+				@Override
+				public void process(File file, PrintStream out) throws IOException
+				{
+					processFile(out, file);
+				}
+			}, "ValidateImageMetadata", out);
+
+			for (String argument : arguments)
+			{
+				File fileOrDirectory = new File(argument);
+
+				if (fileOrDirectory.isFile())
+				{
+					batch.submit(fileOrDirectory);
+				}
+				else
+				{
+					options.getWalker().walk(fileOrDirectory, batch);
+				}
+			}
+
+			options.finish(batch);
+			DumpMetadataFormat.saveIndex(index, indexFile);
+
+			out.println("\nDone");
+		}
+		catch (IllegalArgumentException e)
+		{
+			out.flush();
+			BatchOptions.printUsage(e, "Usage: ValidateImageMetadata [-schemaIndex file] [batch options] fileOrDirectory [...]");
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+
+/**
+ * Writes metadata as XML. Each file becomes a <code>file</code> element
+ * inside the document's <code>imageMetadata</code> root; the metadata trees
+ * themselves appear with their own element names.
+ */
+public class XmlMetadataSerializer extends MetadataSerializer
+{
+	private static final int INDENT = 2;
+
+	/**
+	 * Marks an element on the stack whose closing tag was written along with
+	 * its value.
+	 */
+	private static final String CLOSED = "";
+
+	/**
+	 * Closing tags for everything currently open, innermost first.
+	 */
+	private final Deque<String> open = new ArrayDeque<String>();
+	private boolean tagOpen;
+
+	public XmlMetadataSerializer(PrintStream out)
+	{
+		super(out);
+	}
+
+	private void escape(String text)
+	{
+		int length = text.length();
+		for (int i = 0; i < length; i++)
+		{
+			char c = text.charAt(i);
+			switch (c)
+			{
+			case '&':
+				buffer.append("&amp;");
+				break;
+			case '<':
+				buffer.append("&lt;");
+				break;
+			case '>':
+				buffer.append("&gt;");
+				break;
+			case '"':
+				buffer.append("&quot;");
+				break;
+			default:
+				if (c < 0x20 && c != '\t' && c != '\n' && c != '\r')
+				{
+					buffer.append("&#xFFFD;");
+				}
+				else
+				{
+					buffer.append(c);
+				}
+				break;
+			}
+		}
+	}
+
+	private void closeStartTag()
+	{
+		if (tagOpen)
+		{
+			buffer.append(">\n");
+			tagOpen = false;
+		}
+	}
+
+	private void start(String name)
+	{
+		closeStartTag();
+		spaces((open.size() + 1) * INDENT);
+		buffer.append('<').append(name);
+		open.push(name);
+		tagOpen = true;
+	}
+
+	private void end()
+	{
+		String name = open.pop();
+		if (tagOpen)
+		{
+			buffer.append("/>\n");
+			tagOpen = false;
+		}
+		else
+		{
+			spaces((open.size() + 1) * INDENT);
+			buffer.append("</").append(name).append(">\n");
+		}
+		flushIfFull();
+	}
+
+	@Override
+	public void startFile(File file)
+	{
+		start("file");
+		attribute("name", file.getName());
+		attribute("path", file.getAbsolutePath());
+	}
+
+	@Override
+	public void startReader(String className)
+	{
+		start("reader");
+		attribute("class", className);
+	}
+
+	@Override
+	public void startMetadata(String kind, int imageIndex)
+	{
+		start("metadata");
+		attribute("type", kind.toLowerCase(Locale.ENGLISH));
+		if (imageIndex >= 0)
+		{
+			attribute("index", Integer.toString(imageIndex));
+		}
+	}
+
+	@Override
+	public void startFormat(String formatName)
+	{
+		start("format");
+		attribute("name", formatName);
+	}
+
+	@Override
+	public void startElement(String name)
+	{
+		start(name);
+	}
+
+	@Override
+	public void attribute(String name, String value)
+	{
+		buffer.append(' ').append(name).append("=\"");
+		escape(value);
+		buffer.append('"');
+	}
+
+	@Override
+	public void value(String value)
+	{
+		if (value == null || value.length() == 0)
+		{
+			return;
+		}
+
+		buffer.append('>');
+		escape(value);
+		buffer.append("</").append(open.pop()).append(">\n");
+		open.push(CLOSED);
+		tagOpen = false;
+	}
+
+	@Override
+	public void endElement(String name)
+	{
+		if (open.peek() == CLOSED)
+		{
+			/*
+			 * Already closed when its value was written.
+			 */
+			open.pop();
+			return;
+		}
+		end();
+	}
+
+	@Override
+	public void endFormat()
+	{
+		end();
+	}
+
+	@Override
+	public void endMetadata()
+	{
+		end();
+	}
+
+	@Override
+	public void endReader()
+	{
+		end();
+	}
+
+	@Override
+	public void endFile()
+	{
+		end();
+		flush();
+	}
+
+	@Override
+	public void failFile(File file, Exception e)
+	{
+		if (open.isEmpty())
+		{
+			startFile(file);
+		}
+		while (open.size() > 1)
+		{
+			endElement(open.peek());
+		}
+		if (e instanceof ReadBudget.BudgetExceededException)
+		{
+			start("budgetExceeded");
+			attribute("message", e.getMessage());
+		}
+		else
+		{
+			start("error");
+			attribute("message", String.valueOf(e));
+		}
+		end();
+		endFile();
+	}
+}
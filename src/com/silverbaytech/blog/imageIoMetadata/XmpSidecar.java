@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2014 Kevin Hunter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silverbaytech.blog.imageIoMetadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import com.silverbaytech.blog.imageIoMetadata.ResolutionProbe.Resolution;
+
+/**
+ * Resolution overrides kept in an XMP sidecar rather than in the image, for
+ * files whose bytes mustn't change. The sidecar is laid out the way Adobe's
+ * applications write them: it sits next to the image with the image's
+ * extension replaced by <code>.xmp</code>, so <code>scan.tif</code> is
+ * described by <code>scan.xmp</code>, and holds the TIFF resolution
+ * properties on an <code>rdf:Description</code>.
+ *
+ * <pre>
+ * &lt;x:xmpmeta xmlns:x="adobe:ns:meta/"&gt;
+ *  &lt;rdf:RDF xmlns:rdf="http://www.w3.org/1999/02/22-rdf-syntax-ns#"&gt;
+ *   &lt;rdf:Description rdf:about=""
+ *     xmlns:tiff="http://ns.adobe.com/tiff/1.0/"
+ *    tiff:XResolution="300/1"
+ *    tiff:YResolution="300/1"
+ *    tiff:ResolutionUnit="2"/&gt;
+ *  &lt;/rdf:RDF&gt;
+ * &lt;/x:xmpmeta&gt;
+ * </pre>
+ *
+ * Like Adobe's, one sidecar serves every image with the same base name in
+ * a directory.
+ */
+public class XmpSidecar
+{
+	public static final String EXTENSION = ".xmp";
+
+	private static final String XMP_NS = "adobe:ns:meta/";
+	private static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+	private static final String TIFF_NS = "http://ns.adobe.com/tiff/1.0/";
+
+	private static final String X_RESOLUTION = "XResolution";
+	private static final String Y_RESOLUTION = "YResolution";
+	private static final String RESOLUTION_UNIT = "ResolutionUnit";
+
+	private static final int UNIT_INCH = 2;
+	private static final int UNIT_CENTIMETER = 3;
+
+	/**
+	 * Marks the temporary file a sidecar is written to before it's renamed
+	 * into place. It doesn't end in <code>.xmp</code>, so it's never taken
+	 * for a sidecar.
+	 */
+	private static final String TEMP_SUFFIX = ".xmp-tmp";
+
+	private static final String TEMPLATE = "<x:xmpmeta xmlns:x=\"" + XMP_NS + "\" x:xmptk=\"imageIoMetadata\">\n"
+											+ " <rdf:RDF xmlns:rdf=\"" + RDF_NS + "\">\n"
+											+ "  <rdf:Description rdf:about=\"\"\n"
+											+ "    xmlns:tiff=\"" + TIFF_NS + "\"\n"
+											+ "   tiff:XResolution=\"%1$s\"\n"
+											+ "   tiff:YResolution=\"%1$s\"\n"
+											+ "   tiff:ResolutionUnit=\"2\"/>\n"
+											+ " </rdf:RDF>\n"
+											+ "</x:xmpmeta>\n";
+
+	/**
+	 * The sidecars in each directory, found with one listing of the
+	 * directory and looked up by base name from then on. Looking for the
+	 * sidecar of an image that doesn't have one then costs neither an open
+	 * nor a stat. The listing isn't refreshed, so an index is for a single
+	 * run over the files.
+	 */
+	public static class Index
+	{
+		private final ConcurrentMap<File, Map<String, String>> directories = new ConcurrentHashMap<File, Map<String, String>>();
+
+		private static Map<String, String> list(File directory)
+		{
+			Map<String, String> sidecars = new HashMap<String, String>();
+			try
+			{
+				DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath());
+				try
+				{
+					for (Path entry : entries)
+					{
+						String name = entry.getFileName().toString();
+						if (isSidecarName(name))
+						{
+							sidecars.put(getBaseName(name), name);
+						}
+					}
+				}
+				finally
+				{
+					entries.close();
+				}
+			}
+			catch (IOException e)
+			{
+				/*
+				 * An unreadable directory has no sidecars we can use; reading
+				 * the image itself reports the problem.
+				 */
+			}
+			return sidecars;
+		}
+
+		/**
+		 * Returns the sidecar for <code>image</code>, or <code>null</code> if
+		 * it doesn't have one.
+		 */
+		public File find(File image)
+		{
+			File directory = image.getAbsoluteFile().getParentFile();
+			Map<String, String> sidecars = directories.get(directory);
+			if (sidecars == null)
+			{
+				sidecars = list(directory);
+				directories.putIfAbsent(directory, sidecars);
+			}
+
+			String name = sidecars.get(getBaseName(image.getName()));
+			return name == null ? null : new File(image.getParentFile(), name);
+		}
+	}
+
+	private static boolean isSidecarName(String name)
+	{
+		return name.toLowerCase(Locale.ROOT).endsWith(EXTENSION);
+	}
+
+	private static String getBaseName(String name)
+	{
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Returns <code>true</code> if <code>file</code> is named like a
+	 * sidecar.
+	 */
+	public static boolean isSidecar(File file)
+	{
+		return isSidecarName(file.getName());
+	}
+
+	/**
+	 * Returns where the sidecar for <code>image</code> goes.
+	 */
+	public static File getSidecarFile(File image)
+	{
+		return new File(image.getParentFile(), getBaseName(image.getName()) + EXTENSION);
+	}
+
+	/**
+	 * Returns the sidecar for a single <code>image</code>, or
+	 * <code>null</code> if it doesn't have one. This costs a stat; use an
+	 * {@link Index} when going through a directory.
+	 */
+	public static File find(File image)
+	{
+		File sidecar = getSidecarFile(image);
+		return sidecar.isFile() ? sidecar : null;
+	}
+
+	private static Document parse(File sidecar) throws IOException
+	{
+		try
+		{
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			factory.setExpandEntityReferences(false);
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			DocumentBuilder builder = factory.newDocumentBuilder();
+			return builder.parse(sidecar);
+		}
+		catch (ParserConfigurationException e)
+		{
+			throw new IOException("Can't parse " + sidecar + ": " + e.getMessage(), e);
+		}
+		catch (SAXException e)
+		{
+			throw new IOException(sidecar + " isn't valid XMP: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns a property of <code>description</code>, which XMP allows to
+	 * be written either as an attribute or as a child element.
+	 */
+	private static String getProperty(Element description, String name)
+	{
+		if (description.hasAttributeNS(TIFF_NS, name))
+		{
+			return description.getAttributeNS(TIFF_NS, name).trim();
+		}
+		for (Node child = description.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			if (child.getNodeType() == Node.ELEMENT_NODE && TIFF_NS.equals(child.getNamespaceURI())
+				&& name.equals(child.getLocalName()))
+			{
+				return child.getTextContent().trim();
+			}
+		}
+		return null;
+	}
+
+	private static double parseRational(File sidecar, String name, String value) throws IOException
+	{
+		try
+		{
+			int slash = value.indexOf('/');
+			if (slash < 0)
+			{
+				return Double.parseDouble(value);
+			}
+			return Double.parseDouble(value.substring(0, slash)) / Double.parseDouble(value.substring(slash + 1));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException(sidecar + ": tiff:" + name + " \"" + value + "\" isn't a number");
+		}
+	}
+
+	private static double getPixelSize(double resolution, int unit)
+	{
+		if (!(resolution > 0) || Double.isInfinite(resolution))
+		{
+			return Double.NaN;
+		}
+		switch (unit)
+		{
+		case UNIT_INCH:
+			return 25.4 / resolution;
+		case UNIT_CENTIMETER:
+			return 10.0 / resolution;
+		default:
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Reads the resolution from a sidecar, as pixel sizes in millimeters.
+	 * Returns <code>null</code> if the sidecar doesn't give one, in which
+	 * case the image's own applies.
+	 */
+	public static Resolution read(File sidecar) throws IOException
+	{
+		NodeList descriptions = parse(sidecar).getElementsByTagNameNS(RDF_NS, "Description");
+
+		String x = null;
+		String y = null;
+		String unit = null;
+		for (int i = 0; i < descriptions.getLength(); i++)
+		{
+			Element description = (Element)descriptions.item(i);
+			if (x == null)
+			{
+				x = getProperty(description, X_RESOLUTION);
+			}
+			if (y == null)
+			{
+				y = getProperty(description, Y_RESOLUTION);
+			}
+			if (unit == null)
+			{
+				unit = getProperty(description, RESOLUTION_UNIT);
+			}
+		}
+
+		if (x == null && y == null)
+		{
+			return null;
+		}
+
+		int resolutionUnit = UNIT_INCH;
+		if (unit != null)
+		{
+			try
+			{
+				resolutionUnit = Integer.parseInt(unit);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException(sidecar + ": tiff:" + RESOLUTION_UNIT + " \"" + unit + "\" isn't a number");
+			}
+		}
+
+		double horizontal = parseRational(sidecar, X_RESOLUTION, x != null ? x : y);
+		double vertical = parseRational(sidecar, Y_RESOLUTION, y != null ? y : x);
+		return new Resolution(getPixelSize(horizontal, resolutionUnit), getPixelSize(vertical, resolutionUnit));
+	}
+
+	/**
+	 * Writes <code>dpi</code> as the smallest exact rational, which is how
+	 * XMP holds TIFF resolutions.
+	 */
+	private static String toRational(double dpi)
+	{
+		BigDecimal value = new BigDecimal(Double.toString(dpi)).stripTrailingZeros();
+		BigInteger numerator;
+		BigInteger denominator;
+		if (value.scale() <= 0)
+		{
+			numerator = value.toBigIntegerExact();
+			denominator = BigInteger.ONE;
+		}
+		else
+		{
+			numerator = value.unscaledValue();
+			denominator = BigInteger.TEN.pow(value.scale());
+			BigInteger divisor = numerator.gcd(denominator);
+			numerator = numerator.divide(divisor);
+			denominator = denominator.divide(divisor);
+		}
+		return numerator + "/" + denominator;
+	}
+
+	/**
+	 * Replaces the resolution in an existing sidecar, leaving everything else
+	 * in it, such as another application's edits, as it was.
+	 */
+	private static byte[] update(File sidecar, String rational) throws IOException
+	{
+		Document document = parse(sidecar);
+		NodeList descriptions = document.getElementsByTagNameNS(RDF_NS, "Description");
+		Element description;
+		if (descriptions.getLength() > 0)
+		{
+			description = (Element)descriptions.item(0);
+		}
+		else
+		{
+			NodeList rdf = document.getElementsByTagNameNS(RDF_NS, "RDF");
+			if (rdf.getLength() == 0)
+			{
+				throw new IOException(sidecar + " isn't XMP: it has no rdf:RDF element");
+			}
+			description = document.createElementNS(RDF_NS, rdf.item(0).getPrefix() + ":Description");
+			description.setAttributeNS(RDF_NS, rdf.item(0).getPrefix() + ":about", "");
+			rdf.item(0).appendChild(description);
+		}
+
+		for (int i = 0; i < descriptions.getLength(); i++)
+		{
+			Element other = (Element)descriptions.item(i);
+			for (String name : new String[] { X_RESOLUTION, Y_RESOLUTION, RESOLUTION_UNIT })
+			{
+				other.removeAttributeNS(TIFF_NS, name);
+				Node child = other.getFirstChild();
+				while (child != null)
+				{
+					Node next = child.getNextSibling();
+					if (child.getNodeType() == Node.ELEMENT_NODE && TIFF_NS.equals(child.getNamespaceURI())
+						&& name.equals(child.getLocalName()))
+					{
+						other.removeChild(child);
+					}
+					child = next;
+				}
+			}
+		}
+
+		String prefix = description.lookupPrefix(TIFF_NS);
+		if (prefix == null)
+		{
+			prefix = "tiff";
+			description.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:" + prefix, TIFF_NS);
+		}
+		description.setAttributeNS(TIFF_NS, prefix + ":" + X_RESOLUTION, rational);
+		description.setAttributeNS(TIFF_NS, prefix + ":" + Y_RESOLUTION, rational);
+		description.setAttributeNS(TIFF_NS, prefix + ":" + RESOLUTION_UNIT, Integer.toString(UNIT_INCH));
+
+		try
+		{
+			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+			transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			transformer.transform(new DOMSource(document), new StreamResult(buffer));
+			return buffer.toByteArray();
+		}
+		catch (TransformerException e)
+		{
+			throw new IOException("Can't write " + sidecar + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Writes what the sidecar of <code>image</code> should hold once its
+	 * resolution is <code>dpi</code> to a new temporary file beside it, and
+	 * returns the temporary file, which isn't synced. The new sidecar is
+	 * based on the one that's there, if any.
+	 */
+	public static File writeTemporary(File image, double dpi) throws IOException
+	{
+		if (!(dpi > 0) || Double.isInfinite(dpi))
+		{
+			throw new IllegalArgumentException("Resolution must be a positive number, not " + dpi);
+		}
+
+		File sidecar = getSidecarFile(image);
+		String rational = toRational(dpi);
+		byte[] contents = sidecar.isFile()
+			? update(sidecar, rational)
+			: String.format(TEMPLATE, rational).getBytes(StandardCharsets.UTF_8);
+
+		File directory = sidecar.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile("." + sidecar.getName() + ".", TEMP_SUFFIX, directory);
+		try
+		{
+			FileOutputStream stream = new FileOutputStream(temp);
+			try
+			{
+				stream.write(contents);
+			}
+			finally
+			{
+				stream.close();
+			}
+			File written = temp;
+			temp = null;
+			return written;
+		}
+		finally
+		{
+			if (temp != null)
+			{
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Sets the resolution of <code>image</code> to <code>dpi</code> in its
+	 * sidecar, creating the sidecar or updating the one that's there. The
+	 * image itself isn't touched. The new sidecar is written to a temporary
+	 * file, synced and renamed into place, so a reader sees either the old
+	 * one or the new one.
+	 *
+	 * @return the sidecar.
+	 */
+	public static File write(File image, double dpi) throws IOException
+	{
+		File sidecar = getSidecarFile(image);
+		File temp = writeTemporary(image, dpi);
+		try
+		{
+			GroupCommit.sync(temp);
+			Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			temp = null;
+		}
+		finally
+		{
+			if (temp != null)
+			{
+				temp.delete();
+			}
+		}
+		return sidecar;
+	}
+}